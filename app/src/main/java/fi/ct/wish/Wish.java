@@ -167,6 +167,7 @@ public class Wish extends Service {
     public void stopWish() {
         Log.d(TAG, "in stopWish");
         wishCoreJni.getWishCoreBridge().shutdownAppToCoreWorker();
+        wishCoreJni.getWishCoreBridge().shutdownCoreToAppDispatcher();
         wishCoreJni.getWishCoreBridge().releaseAll();
      /*   notificationManager.cancel(notificationId);
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.N_MR1) {
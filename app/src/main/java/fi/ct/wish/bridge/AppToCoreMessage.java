@@ -18,10 +18,13 @@ package fi.ct.wish.bridge;
 class AppToCoreMessage {
     private byte[] wsid;
     private byte[] data;
+    private long queuedAt; /* System.nanoTime() when the message was queued, see AppToCoreStats */
     AppToCoreMessage(byte[] wsid, byte[] data) {
         this.wsid = wsid;
         this.data = data;
+        this.queuedAt = System.nanoTime();
     }
     byte[] getWsid() { return wsid; }
     byte[] getData() { return data; }
+    long getQueuedAt() { return queuedAt; }
 }
@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.bridge;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import fi.ct.wish.Util;
+
+/**
+ * The app-to-core messages waiting for the core, in a bounded queue per app (WSID), so that one app sending a lot can neither grow the heap
+ * without limit nor hold up the RPCs of the other apps behind its backlog.
+ *
+ * The queues are drained by deficit round robin over bytes: the apps with messages waiting take turns, and on its turn an app gets the
+ * quantum added to its deficit and may send messages as long as they fit in the deficit. So every app gets about the same number of bytes
+ * through to the core, however small or large its messages are.
+ *
+ * When the queue of an app is full, a new message is handled by the overflow policy: OVERFLOW_DROP_NEWEST, the default, drops the new
+ * message right away, and OVERFLOW_DROP_OLDEST drops the oldest messages of the app to make room. OVERFLOW_BLOCK makes the sender, which is
+ * the binder call of the app, wait for room up to the block timeout, and then drops the message; as the waiting senders hold binder threads
+ * of the service, only MAX_BLOCKING of them wait at once. Dropped messages are counted per app.
+ */
+public class AppToCoreQueues {
+    private final String TAG = "AppToCoreQueues";
+
+    /** Default number of messages an app may have waiting */
+    public static final int DEFAULT_MAX_MESSAGES = 256;
+    /** Default number of bytes an app may have waiting */
+    public static final int DEFAULT_MAX_BYTES = 256*1024;
+    /** Default number of bytes added to the deficit of an app on each turn */
+    public static final int DEFAULT_QUANTUM = 4*1024;
+    /** Default time a sender waits for room in the queue of its app, with OVERFLOW_BLOCK, in milliseconds */
+    public static final int DEFAULT_BLOCK_TIMEOUT = 5*1000;
+
+    /** Overflow policy: the sender waits for room, up to the block timeout, then the message is dropped. At most MAX_BLOCKING senders
+     * wait at once, beyond that the message is dropped right away */
+    public static final int OVERFLOW_BLOCK = 0;
+    /** Overflow policy: the new message is dropped */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+    /** Overflow policy: the oldest messages of the app are dropped to make room */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
+    /** The queue of one app. Guarded by the AppToCoreQueues. */
+    private static final class AppQueue {
+        final byte[] wsid;
+        final ArrayDeque<AppToCoreMessage> messages = new ArrayDeque<AppToCoreMessage>();
+        int bytes = 0;
+        int deficit = 0;
+        boolean active = false; /* On the round robin */
+        boolean hasTurn = false; /* The quantum has been added for the current turn */
+
+        int maxDepth = 0;
+        long enqueued = 0;
+        long delivered = 0;
+        long dropped = 0;
+        long blocked = 0;
+
+        AppQueue(byte[] wsid) {
+            this.wsid = wsid;
+        }
+    }
+
+    /** The counters of the queue of one app, at the time they were asked for */
+    public static final class AppQueueStats {
+        private final byte[] wsid;
+        private final int depth;
+        private final int depthBytes;
+        private final int maxDepth;
+        private final long enqueued;
+        private final long delivered;
+        private final long dropped;
+        private final long blocked;
+
+        private AppQueueStats(AppQueue q) {
+            wsid = q.wsid;
+            depth = q.messages.size();
+            depthBytes = q.bytes;
+            maxDepth = q.maxDepth;
+            enqueued = q.enqueued;
+            delivered = q.delivered;
+            dropped = q.dropped;
+            blocked = q.blocked;
+        }
+
+        public byte[] getWsid() {
+            return wsid.clone();
+        }
+
+        /** Returns the number of messages waiting */
+        public int getDepth() {
+            return depth;
+        }
+
+        /** Returns the number of bytes waiting */
+        public int getDepthBytes() {
+            return depthBytes;
+        }
+
+        /** Returns the largest number of messages seen waiting */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /** Returns the number of messages queued */
+        public long getEnqueuedCount() {
+            return enqueued;
+        }
+
+        /** Returns the number of messages handed to the core */
+        public long getDeliveredCount() {
+            return delivered;
+        }
+
+        /** Returns the number of messages dropped by the overflow policy */
+        public long getDroppedCount() {
+            return dropped;
+        }
+
+        /** Returns the number of times a sender had to wait for room, with OVERFLOW_BLOCK */
+        public long getBlockedCount() {
+            return blocked;
+        }
+
+        @Override
+        public String toString() {
+            return Util.prettyPrintBytes(wsid) + ": depth " + depth + " (" + depthBytes + " bytes), max " + maxDepth + ", enqueued " + enqueued
+                    + ", delivered " + delivered + ", dropped " + dropped + ", blocked " + blocked;
+        }
+    }
+
+    private volatile int maxMessages = DEFAULT_MAX_MESSAGES;
+    private volatile int maxBytes = DEFAULT_MAX_BYTES;
+    private volatile int quantum = DEFAULT_QUANTUM;
+    private volatile int blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT;
+    private volatile int overflowPolicy = OVERFLOW_DROP_NEWEST;
+
+    private final int MAX_BLOCKING = 4;    /* Senders waiting for room at once, with OVERFLOW_BLOCK. Each holds a binder thread of the service */
+
+    /* Guarded by this */
+    private final HashMap<ByteBuffer, AppQueue> queues = new HashMap<ByteBuffer, AppQueue>();
+    /* The apps with messages waiting, in the order of their turns. The head has the turn. Guarded by this. */
+    private final ArrayDeque<AppQueue> active = new ArrayDeque<AppQueue>();
+    private int size = 0;
+    private int blocking = 0; /* Senders waiting for room */
+
+    /**
+     * Queue a message of an app, applying the overflow policy if the queue of the app is full.
+     *
+     * @return true, if the message was queued. False if it was dropped.
+     */
+    public synchronized boolean offer(AppToCoreMessage msg) {
+        AppQueue q = queueOf(msg.getWsid());
+        int length = msg.getData().length;
+
+        if (isFull(q, length)) {
+            switch (overflowPolicy) {
+                case OVERFLOW_DROP_OLDEST:
+                    while (isFull(q, length)) {
+                        AppToCoreMessage oldest = q.messages.poll();
+                        q.bytes -= oldest.getData().length;
+                        size--;
+                        q.dropped++;
+                    }
+                    break;
+                case OVERFLOW_BLOCK:
+                    if (blocking >= MAX_BLOCKING) {
+                        /* Enough binder threads are waiting already, the others must stay free for the other apps */
+                        return drop(q);
+                    }
+                    q.blocked++;
+                    blocking++;
+                    long deadline = System.nanoTime() + blockTimeoutMillis * 1000000L;
+                    try {
+                        while (isFull(q, length) && queues.get(ByteBuffer.wrap(q.wsid)) == q) {
+                            long remaining = (deadline - System.nanoTime()) / 1000000L;
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            wait(remaining);
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        blocking--;
+                    }
+                    if (queues.get(ByteBuffer.wrap(q.wsid)) != q) {
+                        /* The app was removed while we waited */
+                        return false;
+                    }
+                    if (isFull(q, length)) {
+                        /* Timed out */
+                        return drop(q);
+                    }
+                    break;
+                default:
+                    return drop(q);
+            }
+        }
+
+        q.messages.add(msg);
+        q.bytes += length;
+        q.enqueued++;
+        size++;
+        if (q.messages.size() > q.maxDepth) {
+            q.maxDepth = q.messages.size();
+        }
+        if (!q.active) {
+            q.active = true;
+            active.add(q);
+        }
+        return true;
+    }
+
+    /** Drop a new message of an app, as its queue is full. Returns false, for offer() */
+    private boolean drop(AppQueue q) {
+        q.dropped++;
+        if (q.dropped == 1 || q.dropped % 100 == 0) {
+            Log.d(TAG, "Queue of " + Util.prettyPrintBytes(q.wsid) + " is full, dropped " + q.dropped + " messages so far");
+        }
+        return false;
+    }
+
+    /** Returns the message which poll() will return next, without removing it, or null if none are waiting */
+    public synchronized AppToCoreMessage peek() {
+        AppQueue q = turn();
+        return q == null ? null : q.messages.peek();
+    }
+
+    /** Remove and return the next message, in deficit round robin order, or null if none are waiting */
+    public synchronized AppToCoreMessage poll() {
+        return pollIfFits(Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Remove and return the next message, in deficit round robin order, if it fits in what is left of a batch. Checking and removing is
+     * one operation, so that an app removed in between can not make another app's message be taken instead.
+     *
+     * @param remainingBytes the bytes left in the batch
+     * @param first true, if this is the first message of the batch, which is taken whatever its length
+     * @return the message, or null if none are waiting or the next one does not fit
+     */
+    public synchronized AppToCoreMessage pollIfFits(int remainingBytes, boolean first) {
+        AppQueue q = turn();
+        if (q == null) {
+            return null;
+        }
+        if (!first && q.messages.peek().getData().length > remainingBytes) {
+            return null;
+        }
+        AppToCoreMessage msg = q.messages.poll();
+        int length = msg.getData().length;
+        q.bytes -= length;
+        q.deficit -= length;
+        q.delivered++;
+        size--;
+        if (q.messages.isEmpty()) {
+            /* An app does not save up its deficit while it has nothing to send */
+            q.active = false;
+            q.hasTurn = false;
+            q.deficit = 0;
+            active.poll();
+        }
+        /* Wake up the senders waiting for room */
+        notifyAll();
+        return msg;
+    }
+
+    /** Moves the turn on until the app which has it can send its first message, and returns it, or null if no app has messages waiting */
+    private AppQueue turn() {
+        while (true) {
+            AppQueue q = active.peek();
+            if (q == null) {
+                return null;
+            }
+            if (!q.hasTurn) {
+                q.hasTurn = true;
+                q.deficit += quantum;
+            }
+            if (q.messages.peek().getData().length <= q.deficit) {
+                return q;
+            }
+            /* The next message does not fit in the deficit: the turn is over, the deficit is kept for the next one */
+            q.hasTurn = false;
+            active.poll();
+            active.add(q);
+        }
+    }
+
+    /** Drop the messages of an app, for instance when it has gone away */
+    public synchronized void remove(byte[] wsid) {
+        AppQueue q = queues.remove(ByteBuffer.wrap(wsid));
+        if (q != null) {
+            size -= q.messages.size();
+            q.messages.clear();
+            active.remove(q);
+            notifyAll();
+        }
+    }
+
+    /** Drop the messages of all apps */
+    public synchronized void clear() {
+        queues.clear();
+        active.clear();
+        size = 0;
+        notifyAll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns the number of messages waiting, of all apps */
+    public synchronized int size() {
+        return size;
+    }
+
+    private boolean isFull(AppQueue q, int length) {
+        /* A message larger than the limit still gets through an empty queue */
+        return !q.messages.isEmpty() && (q.messages.size() >= maxMessages || q.bytes + length > maxBytes);
+    }
+
+    private AppQueue queueOf(byte[] wsid) {
+        ByteBuffer key = ByteBuffer.wrap(wsid);
+        AppQueue q = queues.get(key);
+        if (q == null) {
+            q = new AppQueue(wsid.clone());
+            queues.put(ByteBuffer.wrap(q.wsid), q);
+        }
+        return q;
+    }
+
+    /** Returns the counters of the queues of all apps */
+    public synchronized List<AppQueueStats> getAppStats() {
+        ArrayList<AppQueueStats> list = new ArrayList<AppQueueStats>(queues.size());
+        for (AppQueue q : queues.values()) {
+            list.add(new AppQueueStats(q));
+        }
+        return list;
+    }
+
+    /** Returns the number of messages an app may have waiting */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(int messages) {
+        if (messages <= 0) {
+            throw new IllegalArgumentException("Queue must hold at least one message: " + messages);
+        }
+        maxMessages = messages;
+    }
+
+    /** Returns the number of bytes an app may have waiting */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Queue must hold at least one byte: " + bytes);
+        }
+        maxBytes = bytes;
+    }
+
+    /** Returns the number of bytes added to the deficit of an app on each turn */
+    public int getQuantum() {
+        return quantum;
+    }
+
+    /** Set the number of bytes added to the deficit of an app on each turn. The smaller it is, the more often the turn moves on. */
+    public void setQuantum(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive: " + bytes);
+        }
+        quantum = bytes;
+    }
+
+    /** Returns the time a sender waits for room in the queue of its app, with OVERFLOW_BLOCK, in milliseconds */
+    public int getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    public void setBlockTimeoutMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Block timeout must not be negative: " + millis);
+        }
+        blockTimeoutMillis = millis;
+    }
+
+    /** Returns what is done with a message when the queue of its app is full: OVERFLOW_BLOCK, OVERFLOW_DROP_NEWEST or OVERFLOW_DROP_OLDEST */
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(int policy) {
+        if (policy != OVERFLOW_BLOCK && policy != OVERFLOW_DROP_NEWEST && policy != OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + policy);
+        }
+        overflowPolicy = policy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("AppToCoreQueues: waiting " + size + ", apps " + queues.size() + ", active " + active.size());
+        for (AppQueue q : queues.values()) {
+            sb.append("\n  ").append(new AppQueueStats(q));
+        }
+        return sb.toString();
+    }
+}
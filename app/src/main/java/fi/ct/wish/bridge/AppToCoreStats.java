@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.bridge;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the app-to-core messages handed to the core, see WishCoreBridge.processAppToCore(). Each batch is one JNI call and one hold
+ * of the core lock, so the number of messages per batch tells how much the batching saves. The queue wait is the time from
+ * CoreBridge.sendAppToCore() until the message was handed to the core.
+ */
+public class AppToCoreStats {
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    /* Number of batches which ended because the message or byte budget was used up, rather than the queue being empty */
+    private final AtomicLong fullBatches = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    void recordBatch(int count, int length, boolean full) {
+        batches.incrementAndGet();
+        messages.addAndGet(count);
+        bytes.addAndGet(length);
+        if (full) {
+            fullBatches.incrementAndGet();
+        }
+        updateMax(maxBatch, count);
+    }
+
+    void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        updateMax(maxWaitNanos, nanos);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+            if (value <= current) {
+                return;
+            }
+        } while (!max.compareAndSet(current, value));
+    }
+
+    /** Returns the number of batches handed to the core */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /** Returns the number of messages handed to the core */
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    /** Returns the number of bytes handed to the core */
+    public long getByteCount() {
+        return bytes.get();
+    }
+
+    /** Returns the average number of messages per batch */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) messages.get() / count;
+    }
+
+    /** Returns the largest number of messages in a batch */
+    public long getMaxBatchSize() {
+        return maxBatch.get();
+    }
+
+    /** Returns the number of batches which used up their budget, with more messages left waiting */
+    public long getFullBatchCount() {
+        return fullBatches.get();
+    }
+
+    /** Returns the average time a message waited in the queue, in milliseconds */
+    public double getAverageWaitMillis() {
+        long count = messages.get();
+        return count == 0 ? 0 : waitNanos.get() / 1000000.0 / count;
+    }
+
+    /** Returns the longest time a message waited in the queue, in milliseconds */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("batches: %d, messages: %d, bytes: %d, batch size avg %.1f, max %d, full batches: %d, wait avg %.2f ms, max %.2f ms",
+                getBatchCount(), getMessageCount(), getByteCount(), getAverageBatchSize(), getMaxBatchSize(), getFullBatchCount(),
+                getAverageWaitMillis(), getMaxWaitMillis());
+    }
+}
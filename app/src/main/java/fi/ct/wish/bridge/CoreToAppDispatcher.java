@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.bridge;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.ct.bridge.AppBridge;
+import fi.ct.wish.Util;
+
+/**
+ * Delivers the core-to-app messages to the apps on dispatcher threads, so that the core, which hands them over with its lock held, does
+ * not wait for the binder transactions into the apps. A slow or frozen app then only holds up its own messages.
+ *
+ * Every app has a bounded queue of its own, and the messages of an app are delivered in order, by one dispatcher thread at a time. The apps
+ * with messages waiting take turns on the dispatcher threads, MAX_PER_TURN messages at a time. When the queue of an app is full, the new
+ * message is dropped, as the core must not be made to wait. If delivering to an app fails because the app has died, the messages waiting
+ * for it are dropped and the app gets no more messages until it registers again; ClientDeathWatcher removes it from the core. The other
+ * apps are not affected.
+ */
+public class CoreToAppDispatcher {
+    private final String TAG = "CoreToAppDispatcher";
+
+    /** Default number of messages an app may have waiting */
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+    /** Default number of bytes an app may have waiting */
+    public static final int DEFAULT_MAX_BYTES = 1024*1024;
+
+    private final int THREADS = 2;          /* Dispatcher threads. Deliveries are oneway, so a thread is seldom held up for long */
+    private final int MAX_PER_TURN = 32;    /* Messages delivered to an app before the next app gets the thread */
+
+    /** The queue of one app. Guarded by the CoreToAppDispatcher. */
+    private static final class AppQueue {
+        final byte[] wsid;
+        AppBridge appBridge;
+        final ArrayDeque<byte[]> messages = new ArrayDeque<byte[]>();
+        final ArrayDeque<Long> queuedAt = new ArrayDeque<Long>();
+        int bytes = 0;
+        boolean scheduled = false;  /* A drain task of the app is on the executor */
+        boolean dead = false;       /* Delivering failed, messages are dropped until the app registers again */
+
+        int maxDepth = 0;
+        long delivered = 0;
+        long dropped = 0;
+        long failed = 0;
+
+        AppQueue(byte[] wsid) {
+            this.wsid = wsid;
+        }
+    }
+
+    /** The counters of the queue of one app, at the time they were asked for */
+    public static final class AppQueueStats {
+        private final byte[] wsid;
+        private final int depth;
+        private final int maxDepth;
+        private final long delivered;
+        private final long dropped;
+        private final long failed;
+        private final boolean dead;
+
+        private AppQueueStats(AppQueue q) {
+            wsid = q.wsid;
+            depth = q.messages.size();
+            maxDepth = q.maxDepth;
+            delivered = q.delivered;
+            dropped = q.dropped;
+            failed = q.failed;
+            dead = q.dead;
+        }
+
+        public byte[] getWsid() {
+            return wsid.clone();
+        }
+
+        /** Returns the number of messages waiting */
+        public int getDepth() {
+            return depth;
+        }
+
+        /** Returns the largest number of messages seen waiting */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /** Returns the number of messages delivered to the app */
+        public long getDeliveredCount() {
+            return delivered;
+        }
+
+        /** Returns the number of messages dropped, as the queue was full or the app had died */
+        public long getDroppedCount() {
+            return dropped;
+        }
+
+        /** Returns the number of deliveries which failed */
+        public long getFailedCount() {
+            return failed;
+        }
+
+        /** Returns true, if the app has died, and gets no messages until it registers again */
+        public boolean isDead() {
+            return dead;
+        }
+
+        @Override
+        public String toString() {
+            return Util.prettyPrintBytes(wsid) + ": depth " + depth + ", max " + maxDepth + ", delivered " + delivered + ", dropped " + dropped
+                    + ", failed " + failed + (dead ? ", dead" : "");
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile int maxMessages = DEFAULT_MAX_MESSAGES;
+    private volatile int maxBytes = DEFAULT_MAX_BYTES;
+
+    /* Guarded by this */
+    private final HashMap<ByteBuffer, AppQueue> queues = new HashMap<ByteBuffer, AppQueue>();
+
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+
+    public CoreToAppDispatcher() {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CoreToAppDispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a message for an app. This returns right away, the message is delivered by a dispatcher thread.
+     *
+     * @param wsid the WSID of the app
+     * @param appBridge the bridge of the app, as given when it registered
+     * @param data the message, which is not modified afterwards
+     * @return true, if the message was queued. False if it was dropped.
+     */
+    public synchronized boolean dispatch(byte[] wsid, AppBridge appBridge, byte[] data) {
+        AppQueue q = queueOf(wsid);
+        if (q.appBridge != appBridge) {
+            /* The app has registered again */
+            q.appBridge = appBridge;
+            q.dead = false;
+        }
+        if (q.dead) {
+            q.dropped++;
+            return false;
+        }
+        if (!q.messages.isEmpty() && (q.messages.size() >= maxMessages || q.bytes + data.length > maxBytes)) {
+            q.dropped++;
+            if (q.dropped == 1 || q.dropped % 100 == 0) {
+                Log.d(TAG, "Queue of " + Util.prettyPrintBytes(q.wsid) + " is full, dropped " + q.dropped + " messages so far");
+            }
+            return false;
+        }
+
+        q.messages.add(data);
+        q.queuedAt.add(System.nanoTime());
+        q.bytes += data.length;
+        if (q.messages.size() > q.maxDepth) {
+            q.maxDepth = q.messages.size();
+        }
+        if (!q.scheduled) {
+            schedule(q);
+        }
+        return true;
+    }
+
+    /** Drop the messages of an app, for instance when it has gone away */
+    public synchronized void remove(byte[] wsid) {
+        AppQueue q = queues.remove(ByteBuffer.wrap(wsid));
+        if (q != null) {
+            clear(q);
+        }
+    }
+
+    /** Stop the dispatcher threads. Messages still waiting are dropped. */
+    public void shutdown() {
+        synchronized (this) {
+            queues.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    private void schedule(final AppQueue q) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(q);
+                }
+            });
+            q.scheduled = true;
+        } catch (RejectedExecutionException ree) {
+            Log.d(TAG, "Dispatch after shutdown");
+        }
+    }
+
+    /** Deliver up to MAX_PER_TURN messages to an app, then let the next app have the thread */
+    private void drain(AppQueue q) {
+        for (int i = 0; i < MAX_PER_TURN; i++) {
+            byte[] data;
+            long queuedAt;
+            AppBridge appBridge;
+            synchronized (this) {
+                data = q.messages.poll();
+                if (data == null || q.dead) {
+                    q.scheduled = false;
+                    return;
+                }
+                queuedAt = q.queuedAt.poll();
+                q.bytes -= data.length;
+                appBridge = q.appBridge;
+            }
+
+            try {
+                appBridge.sendCoreToApp(data);
+                recordDelivered(q, System.nanoTime() - queuedAt);
+            } catch (DeadObjectException doe) {
+                Log.d(TAG, "App " + Util.prettyPrintBytes(q.wsid) + " has died, dropping its messages");
+                synchronized (this) {
+                    q.failed++;
+                    if (q.appBridge == appBridge) {
+                        q.dead = true;
+                        clear(q);
+                    }
+                }
+            } catch (RemoteException e) {
+                Log.d(TAG, "Remote exception delivering to " + Util.prettyPrintBytes(q.wsid) + ": " + e);
+                synchronized (this) {
+                    q.failed++;
+                }
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Unexpected exception delivering to " + Util.prettyPrintBytes(q.wsid) + ": " + e);
+                synchronized (this) {
+                    q.failed++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            q.scheduled = false;
+            if (!q.messages.isEmpty() && !q.dead) {
+                /* Back of the line, behind the other apps with messages waiting */
+                schedule(q);
+            }
+        }
+    }
+
+    private void clear(AppQueue q) {
+        q.dropped += q.messages.size();
+        q.messages.clear();
+        q.queuedAt.clear();
+        q.bytes = 0;
+    }
+
+    private void recordDelivered(AppQueue q, long nanos) {
+        synchronized (this) {
+            q.delivered++;
+        }
+        delivered.incrementAndGet();
+        latencyNanos.addAndGet(nanos);
+        long current;
+        do {
+            current = maxLatencyNanos.get();
+            if (nanos <= current) {
+                return;
+            }
+        } while (!maxLatencyNanos.compareAndSet(current, nanos));
+    }
+
+    private AppQueue queueOf(byte[] wsid) {
+        ByteBuffer key = ByteBuffer.wrap(wsid);
+        AppQueue q = queues.get(key);
+        if (q == null) {
+            q = new AppQueue(wsid.clone());
+            queues.put(ByteBuffer.wrap(q.wsid), q);
+        }
+        return q;
+    }
+
+    /** Returns the counters of the queues of all apps */
+    public synchronized List<AppQueueStats> getAppStats() {
+        ArrayList<AppQueueStats> list = new ArrayList<AppQueueStats>(queues.size());
+        for (AppQueue q : queues.values()) {
+            list.add(new AppQueueStats(q));
+        }
+        return list;
+    }
+
+    /** Returns the number of messages an app may have waiting */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(int messages) {
+        if (messages <= 0) {
+            throw new IllegalArgumentException("Queue must hold at least one message: " + messages);
+        }
+        maxMessages = messages;
+    }
+
+    /** Returns the number of bytes an app may have waiting */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Queue must hold at least one byte: " + bytes);
+        }
+        maxBytes = bytes;
+    }
+
+    /** Returns the number of messages delivered, to all apps */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /** Returns the average time from dispatch() until the message was delivered, in milliseconds */
+    public double getAverageLatencyMillis() {
+        long count = delivered.get();
+        return count == 0 ? 0 : latencyNanos.get() / 1000000.0 / count;
+    }
+
+    /** Returns the longest time from dispatch() until the message was delivered, in milliseconds */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1000000.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(String.format("CoreToAppDispatcher: delivered %d, latency avg %.2f ms, max %.2f ms",
+                getDeliveredCount(), getAverageLatencyMillis(), getMaxLatencyMillis()));
+        for (AppQueue q : queues.values()) {
+            sb.append("\n  ").append(new AppQueueStats(q));
+        }
+        return sb.toString();
+    }
+}
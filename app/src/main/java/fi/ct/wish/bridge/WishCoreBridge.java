@@ -16,8 +16,6 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -25,7 +23,6 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import fi.ct.bridge.AppBridge;
 import fi.ct.bridge.CoreBridge;
@@ -136,21 +133,48 @@ public class WishCoreBridge {
 
     AppList appList = new AppList();
 
-    ConcurrentLinkedQueue<AppToCoreMessage> appToCoreFIFO;
+    /** The length of a WSID */
+    public static final int WSID_LEN = 32;
+
+    /** Default number of app-to-core messages handed to the core with one hold of the core lock */
+    public static final int DEFAULT_BATCH_MESSAGES = 100;
+    /** Default number of bytes of app-to-core messages handed to the core with one hold of the core lock */
+    public static final int DEFAULT_BATCH_BYTES = 64*1024;
+
+    private volatile int batchMessages = DEFAULT_BATCH_MESSAGES;
+    private volatile int batchBytes = DEFAULT_BATCH_BYTES;
+
+    /* The arrays a batch is handed to the core in, grown as needed. Only used by processAppToCore(), with the core lock held. */
+    private byte[] batchWsids = new byte[0];
+    private byte[] batchData = new byte[0];
+    private int[] batchLengths = new int[0];
+
+    private final AppToCoreStats appToCoreStats = new AppToCoreStats();
+
+    /** Delivers the core-to-app messages to the apps, see receiveCoreToApp() */
+    private final CoreToAppDispatcher coreToAppDispatcher = new CoreToAppDispatcher();
+
+    /** The app-to-core messages waiting for the core, per app */
+    AppToCoreQueues appToCoreQueues = new AppToCoreQueues();
     Thread appToCoreWorker = new Thread(new Runnable() {
         @Override
         public void run() {
             while (appToCoreWorkerRunning) {
-                /* Process at most 100 app-to-core messages until we must sleep */
+                /* Process a batch of app-to-core messages, within the budget, until we must sleep */
                 boolean hasMoreMessages = false;
                 if (osJni != null) {
                     synchronized (osJni) {
                         hasMoreMessages = processAppToCore();
                     }
                 }
+                if (hasMoreMessages) {
+                    /* Let the other users of the core, the connections and the timer, have the lock before the next batch */
+                    Thread.yield();
+                    continue;
+                }
                 synchronized (appToCoreWorker) {
                     try {
-                        if (hasMoreMessages == false) {
+                        if (appToCoreQueues.isEmpty()) {
                             appToCoreWorker.wait();
                         }
                     } catch (InterruptedException ie) {
@@ -170,27 +194,99 @@ public class WishCoreBridge {
     public WishCoreBridge(WishCoreJni jni) {
         this._jni = jni;
         clientDeathWatcher = new ClientDeathWatcher(jni);
-        appToCoreFIFO = new ConcurrentLinkedQueue<>();
         appToCoreWorkerRunning = true;
         appToCoreWorker.setDaemon(true);
         appToCoreWorker.start();
     }
 
-    /** Process one message from the appToCoreFIFO (it there are any).
+    /** Process a batch of messages from the appToCoreQueues (it there are any), taking turns between the apps, at most the batch budget, see setBatchMessages() and
+     * setBatchBytes(). The batch is handed to the core with one JNI call, which holds the core lock for the whole batch. Call this with
+     * the WishOsJni monitor held.
      *
      * @return true, if the queue has more messages waiting
      */
     public boolean processAppToCore() {
-        AppToCoreMessage msg = appToCoreFIFO.poll();
-        if (msg != null) {
-            _jni.jni_receive_app_to_core(msg.getWsid(), msg.getData());
+        int maxMessages = batchMessages;
+        int maxBytes = batchBytes;
+        int count = 0;
+        int length = 0;
+        long now = System.nanoTime();
+
+        AppToCoreMessage msg;
+        /* A message larger than the byte budget is handed to the core in a batch of its own */
+        while (count < maxMessages && (msg = appToCoreQueues.pollIfFits(maxBytes - length, count == 0)) != null) {
+            byte[] data = msg.getData();
+            ensureBatchCapacity(count + 1, length + data.length);
+            System.arraycopy(msg.getWsid(), 0, batchWsids, count * WSID_LEN, WSID_LEN);
+            System.arraycopy(data, 0, batchData, length, data.length);
+            batchLengths[count] = data.length;
+            count++;
+            length += data.length;
+            appToCoreStats.recordWait(now - msg.getQueuedAt());
+        }
+
+        boolean hasMore = !appToCoreQueues.isEmpty();
+        if (count > 0) {
+            _jni.jni_receive_app_to_core_batch(batchWsids, batchData, batchLengths, count);
+            appToCoreStats.recordBatch(count, length, hasMore);
+        }
+        return hasMore;
+    }
+
+    private void ensureBatchCapacity(int count, int length) {
+        if (batchLengths.length < count) {
+            int n = Math.max(count, Math.min(batchMessages, Math.max(16, batchLengths.length * 2)));
+            batchLengths = Arrays.copyOf(batchLengths, n);
+            batchWsids = Arrays.copyOf(batchWsids, n * WSID_LEN);
         }
-        return !appToCoreFIFO.isEmpty();
+        if (batchData.length < length) {
+            batchData = Arrays.copyOf(batchData, Math.max(length, Math.min(batchBytes, Math.max(4096, batchData.length * 2))));
+        }
+    }
+
+    /** Returns the number of app-to-core messages handed to the core with one hold of the core lock */
+    public int getBatchMessages() {
+        return batchMessages;
+    }
+
+    /** Set the number of app-to-core messages handed to the core with one hold of the core lock. Use 1 to not batch. */
+    public void setBatchMessages(int messages) {
+        if (messages <= 0) {
+            throw new IllegalArgumentException("Batch must be at least one message: " + messages);
+        }
+        batchMessages = messages;
     }
 
+    /** Returns the number of bytes of app-to-core messages handed to the core with one hold of the core lock */
+    public int getBatchBytes() {
+        return batchBytes;
+    }
 
     /**
-     * This function is called by the Wish C99 core when it wants to send data to a Wish service.
+     * Set the number of bytes of app-to-core messages handed to the core with one hold of the core lock. A larger message is still handed
+     * to the core, in a batch of its own.
+     */
+    public void setBatchBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Batch must be at least one byte: " + bytes);
+        }
+        batchBytes = bytes;
+    }
+
+    /** Returns the queues of the app-to-core messages, see AppToCoreQueues for the limits, the overflow policy and the counters per app */
+    public AppToCoreQueues getAppToCoreQueues() {
+        return appToCoreQueues;
+    }
+
+    /** Returns the counters of the app-to-core batches */
+    public AppToCoreStats getAppToCoreStats() {
+        return appToCoreStats;
+    }
+
+
+    /**
+     * This function is called by the Wish C99 core when it wants to send data to a Wish service. The data is queued for the app, and
+     * delivered by the CoreToAppDispatcher, so that the core does not wait for the app.
      *
      * @param wsid TODO this was int, but should be byte[]
      * @param data
@@ -203,50 +299,22 @@ public class WishCoreBridge {
             return;
         }
 
-
-        if (!appList.containsWSID(wsid)) {
+        AppBridge _appBridge = appList.getAppBridge(wsid);
+        if (_appBridge == null) {
             Log.d(TAG, "WSID not found in appList:  len" + wsid.length + " " + Util.prettyPrintBytes(wsid));
 
             /* FIXME Send down to core a notification that the app (service) does not exist */
             return;
         }
 
-        try {
-            //Log.d(TAG, "Calling send core to app");
-            AppBridge _appBridge;
-
-            _appBridge = appList.getAppBridge(wsid);
-
-
-            if (_appBridge == null) {
-                Log.d(TAG, "AppBridge is null!");
-            }
-            else {
-                _appBridge.sendCoreToApp(data);
-            }
-        } catch (RemoteException e) {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            e.printStackTrace(pw);
-
-            Log.d(TAG, "Remote exception, message: Stack trace:" + sw.toString());
-            if (e.getMessage() != null) {
-                Log.d(TAG, "Remote exception message: " + e.getMessage());
-            }
-            else {
-                Log.d(TAG, "Remote exception message was null");
-            }
-            mBound = false;
-        } catch (Exception e) {
-            Log.d(TAG, "Some other very unexpected exception occurred!");
-        }
-
-
+        coreToAppDispatcher.dispatch(wsid, _appBridge, data);
     }
 
     public void removeFromAppList(byte[] wsid) {
         //Log.d(TAG, "Removing from applist: " + Util.prettyPrintBytes(wsid));
 
+        appToCoreQueues.remove(wsid);
+        coreToAppDispatcher.remove(wsid);
         if (appList.remove(wsid) == false) {
             Log.d(TAG, "WARNING FAIL trying to remove something unknown from appList: + " + Util.prettyPrintBytes(wsid));
         }
@@ -261,12 +329,26 @@ public class WishCoreBridge {
         notifyAppToCoreWorker();
     }
 
+    public void shutdownCoreToAppDispatcher() {
+        coreToAppDispatcher.shutdown();
+    }
+
+    /** Returns the dispatcher of the core-to-app messages, with the counters per app */
+    public CoreToAppDispatcher getCoreToAppDispatcher() {
+        return coreToAppDispatcher;
+    }
+
     public CoreBridge.Stub getBridge(Intent intent) {
         return new CoreBridge.Stub() {
 
             @Override
             public void sendAppToCore(byte[] wsid, byte[] data) throws RemoteException {
-                appToCoreFIFO.add(new AppToCoreMessage(wsid, data));
+                if (wsid == null || wsid.length != WSID_LEN || data == null) {
+                    Log.d(TAG, "Dropping app-to-core message, wsid length is not correct");
+                    return;
+                }
+                /* With AppToCoreQueues.OVERFLOW_BLOCK, this may wait for room in the queue of the app */
+                appToCoreQueues.offer(new AppToCoreMessage(wsid, data));
                 synchronized (appToCoreWorker) {
                     appToCoreWorker.notify();
                 }
@@ -286,6 +368,9 @@ public class WishCoreBridge {
                     //Log.d(TAG, "Adding WSID to appList " + Util.prettyPrintBytes(wsid));
                     appList.add(wsid, service);
                 }
+                if (osJni != null) {
+                    osJni.onAppRegistered();
+                }
             }
         };
     }
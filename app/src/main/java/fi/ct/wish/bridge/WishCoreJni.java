@@ -54,6 +54,15 @@ public class WishCoreJni {
 
     public native void register_core_bridge(WishCoreBridge wcb);
     public native void jni_receive_app_to_core(byte[] wsid, byte buffer[]);
+    /**
+     * Hand a batch of app-to-core messages to the core, with one hold of the core lock.
+     *
+     * @param wsids the WSIDs of the messages, WishCoreBridge.WSID_LEN bytes each, one after another
+     * @param buffer the messages, one after another
+     * @param lengths the length of each message
+     * @param count the number of messages
+     */
+    public native void jni_receive_app_to_core_batch(byte[] wsids, byte buffer[], int[] lengths, int count);
     public native void remove_service(byte[] wsid);
 
     public WishCoreBridge getWishCoreBridge() {
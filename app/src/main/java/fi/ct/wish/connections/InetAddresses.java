@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Conversions between InetAddress and the byte array form of addresses which is passed around in the Tcp and Udp APIs and through the
+ * porting layer. The byte array is the address in network byte order: 4 bytes for IPv4, 16 bytes for IPv6. A scoped IPv6 address (such as a
+ * link-local address, which is meaningless without its interface) has its scope id appended as 4 more bytes, in network byte order.
+ */
+public final class InetAddresses {
+    public static final int IPV4_LENGTH = 4;
+    public static final int IPV6_LENGTH = 16;
+    public static final int SCOPED_IPV6_LENGTH = 20;
+
+    private InetAddresses() {
+    }
+
+    /**
+     * Convert an address from byte array form.
+     *
+     * @throws UnknownHostException if the length of the address is not valid
+     */
+    public static InetAddress toInetAddress(byte[] address) throws UnknownHostException {
+        if (address != null && address.length == SCOPED_IPV6_LENGTH) {
+            ByteBuffer buffer = ByteBuffer.wrap(address);
+            byte[] ipv6 = new byte[IPV6_LENGTH];
+            buffer.get(ipv6);
+            return Inet6Address.getByAddress(null, ipv6, buffer.getInt());
+        }
+        /* Takes care of 4 and 16 byte addresses, and throws on anything else */
+        return InetAddress.getByAddress(address);
+    }
+
+    /** Convert an address to byte array form, keeping the scope of a scoped IPv6 address */
+    public static byte[] toBytes(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet6Address && ((Inet6Address) address).getScopeId() != 0) {
+            return ByteBuffer.allocate(SCOPED_IPV6_LENGTH).put(bytes).putInt(((Inet6Address) address).getScopeId()).array();
+        }
+        return bytes;
+    }
+
+    /** Returns true, if the address in byte array form is an IPv4 address */
+    public static boolean isIpv4(byte[] address) {
+        return address.length == IPV4_LENGTH;
+    }
+}
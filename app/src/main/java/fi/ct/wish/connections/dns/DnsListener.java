@@ -0,0 +1,25 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.dns;
+
+import java.net.InetAddress;
+
+/**
+ * The result of a DnsResolver.resolve() call. It is always called from a resolver thread, never from the caller of resolve().
+ */
+public interface DnsListener {
+    /** The host name resolved to the given addresses, in the order the system resolver returned them */
+    public void onResolved(String hostName, InetAddress[] addresses);
+
+    /** The host name could not be resolved */
+    public void onResolveFailed(String hostName);
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.dns;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves host names on a small fixed pool of threads, and caches the results.
+ *
+ * Successful results are cached for POSITIVE_TTL. The system resolver (InetAddress.getAllByName()) does not tell the TTLs of the DNS records,
+ * so this is a fixed time, kept short enough for relay hosts which move.
+ *
+ * Failures are cached too, so that a host which does not resolve is not looked up again right away. The time a failure is cached starts
+ * at NEGATIVE_TTL_MIN and doubles with each consecutive failure of the same host, up to NEGATIVE_TTL_MAX.
+ *
+ * Concurrent lookups of the same host name are merged into one.
+ */
+public class DnsResolver {
+    private final String TAG = "DnsResolver";
+
+    private final int RESOLVER_THREADS = 2;
+    private final int RESOLVER_KEEP_ALIVE = 30;                 /* Time after which an idle resolver thread exits, in seconds */
+    private final long POSITIVE_TTL = 60*1000;                  /* Time a successful result is cached, in milliseconds */
+    private final long NEGATIVE_TTL_MIN = 2*1000;               /* Time the first failure of a host is cached, in milliseconds */
+    private final long NEGATIVE_TTL_MAX = 5*60*1000;            /* Maximum time a failure is cached, in milliseconds */
+
+    /** A cached result. addresses is null for a cached failure */
+    private static class Entry {
+        InetAddress[] addresses;
+        /** Time (System.nanoTime) at which the result expires */
+        long expires;
+        /** Number of consecutive failures, for the negative TTL backoff */
+        int failures;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /* Both guarded by cache */
+    private final HashMap<String, Entry> cache = new HashMap<String, Entry>();
+    /** The listeners waiting for the lookup in flight of each host name */
+    private final HashMap<String, ArrayList<DnsListener>> inFlight = new HashMap<String, ArrayList<DnsListener>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public DnsResolver() {
+        executor = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DnsResolver " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Resolve a host name. The result is delivered to the listener from a resolver thread, also when it comes from the cache.
+     */
+    public void resolve(final String hostName, final DnsListener listener) {
+        final InetAddress[] cached;
+        synchronized (cache) {
+            Entry entry = cache.get(hostName);
+            if (entry != null && System.nanoTime() - entry.expires < 0) {
+                cached = entry.addresses;
+                if (cached != null) {
+                    hits.incrementAndGet();
+                } else {
+                    negativeHits.incrementAndGet();
+                }
+            } else {
+                ArrayList<DnsListener> waiting = inFlight.get(hostName);
+                if (waiting != null) {
+                    waiting.add(listener);
+                    merged.incrementAndGet();
+                    return;
+                }
+                waiting = new ArrayList<DnsListener>();
+                waiting.add(listener);
+                inFlight.put(hostName, waiting);
+                misses.incrementAndGet();
+                boolean submitted = submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        lookup(hostName);
+                    }
+                }, hostName);
+                if (!submitted) {
+                    inFlight.remove(hostName);
+                }
+                return;
+            }
+        }
+
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                deliver(hostName, cached, listener);
+            }
+        }, hostName);
+    }
+
+    private boolean submit(Runnable task, String hostName) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            Log.d(TAG, "Resolver is shut down, not resolving " + hostName);
+            return false;
+        }
+    }
+
+    private void lookup(String hostName) {
+        InetAddress[] addresses = null;
+        try {
+            addresses = InetAddress.getAllByName(hostName);
+            if (addresses.length == 0) {
+                addresses = null;
+            }
+        } catch (UnknownHostException uhe) {
+            Log.d(TAG, "Error resolving " + hostName + ": " + uhe.getMessage());
+        }
+
+        ArrayList<DnsListener> waiting;
+        synchronized (cache) {
+            long now = System.nanoTime();
+            Entry entry = cache.get(hostName);
+            if (entry == null) {
+                entry = new Entry();
+                cache.put(hostName, entry);
+            }
+            entry.addresses = addresses;
+            if (addresses != null) {
+                entry.failures = 0;
+                entry.expires = now + POSITIVE_TTL * 1000000L;
+            } else {
+                failures.incrementAndGet();
+                entry.failures++;
+                entry.expires = now + negativeTtl(entry.failures) * 1000000L;
+            }
+            waiting = inFlight.remove(hostName);
+        }
+
+        if (waiting != null) {
+            for (DnsListener listener : waiting) {
+                deliver(hostName, addresses, listener);
+            }
+        }
+    }
+
+    /** Returns the time a failure is cached, after the given number of consecutive failures */
+    private long negativeTtl(int failures) {
+        long ttl = NEGATIVE_TTL_MIN;
+        for (int i = 1; i < failures && ttl < NEGATIVE_TTL_MAX; i++) {
+            ttl *= 2;
+        }
+        return Math.min(ttl, NEGATIVE_TTL_MAX);
+    }
+
+    private void deliver(String hostName, InetAddress[] addresses, DnsListener listener) {
+        if (addresses != null) {
+            listener.onResolved(hostName, addresses);
+        } else {
+            listener.onResolveFailed(hostName);
+        }
+    }
+
+    /** Forget all cached results, for example when the network has changed */
+    public void flush() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /** Stop the resolver threads. Lookups in flight are completed, but new ones are not started */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Returns the number of lookups answered with a cached address */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups answered with a cached failure */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    /** Returns the number of lookups which went to the system resolver */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the number of lookups which were merged with a lookup of the same host name already in flight */
+    public long getMergedCount() {
+        return merged.get();
+    }
+
+    /** Returns the number of lookups by the system resolver which failed */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + getHitCount() + ", negative hits: " + getNegativeHitCount() + ", misses: " + getMissCount()
+                + ", merged: " + getMergedCount() + ", failures: " + getFailureCount();
+    }
+}
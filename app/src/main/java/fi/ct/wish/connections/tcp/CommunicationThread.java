@@ -28,22 +28,50 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-public class CommunicationThread implements Runnable {
-    private final int CONNECT_TIMEOUT = 10*1000;    /* connect() timetout in Milliseconds */
+import fi.ct.wish.connections.InetAddresses;
+
+public class CommunicationThread implements Runnable, TcpConnection {
+    private final int RING_FULL_SLEEP = 1000;       /* Time to wait for ring buffer space, if the listener does not signal it, in milliseconds */
+    private final int RX_SIGNAL_TIMEOUT = 5*1000;   /* Safety timeout when waiting for the listener to signal a ring buffer change, in milliseconds */
+    private final int DRAIN_POLL_INTERVAL = 100;    /* Interval of checking for an empty ring buffer, if the listener does not signal it, in milliseconds */
+    private final int DRAIN_TIMEOUT = 10*1000;      /* Time after which unconsumed data is abandoned on remote close, in milliseconds */
+    private final int FLUSH_TIMEOUT = 5*1000;       /* Time to wait for the writer to send queued data when the connection is closed, in milliseconds */
+    private static final int RX_BUFFER_INITIAL_SIZE = 2*1024;
+
+    /* Outcomes of dial() */
+    static final int DIAL_CONNECTED = 0;
+    static final int DIAL_FAILED = 1;
+    static final int DIAL_STOPPED = 2;
 
     private final String TAG = "CommunicationThread";
 
-    private Socket socket;
+    private volatile Socket socket;
     private TcpListener listener;
     private Connections connections;
+    private TcpOptions options;
+    private TcpStats stats;
+
+    /** The socket settings of the connection, and the settings read back from the socket once connected */
+    private final SocketProfile profile;
+    private volatile SocketProfile socketSettings;
+
+    /** Outbound data, written to the socket by writerThread */
+    private final WriteQueue writeQueue;
+    private Thread writerThread;
+
+    /** Counts the calls to rxBufferChanged(). Guarded by rxSignal. */
+    private final Object rxSignal = new Object();
+    private int rxSignalCount = 0;
 
     private int id = 0;
     public int getId() {
         return id;
     }
 
-    private Thread actualThread;
+    private volatile Thread actualThread;
 
     public void setActualThread(Thread actualThread) {
         this.actualThread = actualThread;
@@ -59,11 +87,33 @@ public class CommunicationThread implements Runnable {
         }
     }
 
+    public void waitForStop() {
+        waitForThreadToStop();
+    }
+
+    public boolean waitForStop(long timeoutMillis) {
+        Thread thread = actualThread;
+        if (thread == null) {
+            /* Not started (yet); if it is still being dialed, it will not run now that it is stopped */
+            return true;
+        }
+        try {
+            thread.join(Math.max(1, timeoutMillis));
+        } catch (InterruptedException ie) {
+            Log.d(TAG, "InterruptedException while waiting for thread to join");
+        }
+        return !thread.isAlive();
+    }
+
     private InputStream inputStream;
     private OutputStream outputStream;
     private boolean running = true;
 
-    private byte[] address;
+    /** The receive buffer, which is reused for every read. It is grown as needed, but never beyond the ring buffer size. */
+    private byte[] rxBuffer = new byte[RX_BUFFER_INITIAL_SIZE];
+
+    /** The candidate addresses of the remote peer, tried in this order, see ConnectRace */
+    private byte[][] addresses;
     private int port;
 
     /** This flag is (re)set to false if we use the constructor where we supply the address as IP byte array and port.
@@ -73,24 +123,32 @@ public class CommunicationThread implements Runnable {
     private boolean socketInitialised = false;
     private boolean isServer;
 
-    public CommunicationThread(byte[] address, int port, TcpListener listener, Connections connections, int id, boolean isServer) {
+    public CommunicationThread(byte[] address, int port, TcpListener listener, Connections connections, TcpOptions options, SocketProfile profile, TcpStats parentStats, int id, boolean isServer) {
+        this(new byte[][] { address }, port, listener, connections, options, profile, parentStats, id, isServer);
+    }
+
+    public CommunicationThread(byte[][] addresses, int port, TcpListener listener, Connections connections, TcpOptions options, SocketProfile profile, TcpStats parentStats, int id, boolean isServer) {
         /* XXX this is not too cool */
-        this(null, listener, connections, id, isServer);
+        this((Socket) null, listener, connections, options, profile, parentStats, id, isServer);
         socketInitialised = false;
-        this.address = address;
+        this.addresses = addresses;
         this.port = port;
 
     }
 
-    public CommunicationThread(Socket socket, TcpListener listener, Connections connections, int id, boolean isServer) {
+    public CommunicationThread(Socket socket, TcpListener listener, Connections connections, TcpOptions options, SocketProfile profile, TcpStats parentStats, int id, boolean isServer) {
         this.socket = socket;
+        this.profile = new SocketProfile(profile);
         this.listener = listener;
         this.connections = connections;
+        this.options = options;
+        this.stats = new TcpStats(parentStats);
+        this.writeQueue = new WriteQueue(options, stats);
         this.id = id;
 
+        this.isServer = isServer;
         connections.setConnection(this, id);
         socketInitialised = true;
-        this.isServer = isServer;
     }
 
     /** This function is used right at the beginning of run() method to convert any addresses in byte buffers and port numbers to a Java Socket.
@@ -99,25 +157,46 @@ public class CommunicationThread implements Runnable {
      * @return true, if the socket was successfully initted
      */
     private boolean initSocket() {
-        if (address == null) {
+        if (addresses == null || addresses.length == 0 || addresses[0] == null) {
             Log.d(TAG, "Address is null!");
             return false;
         }
 
+        if (addresses.length > 1) {
+            /* Several candidates: race them, and keep the first one to connect */
+            InetSocketAddress[] candidates = new InetSocketAddress[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                try {
+                    candidates[i] = new InetSocketAddress(InetAddresses.toInetAddress(addresses[i]), port);
+                } catch (UnknownHostException uhe) {
+                    Log.d(TAG, "Unknown host exception when converting address");
+                    return false;
+                }
+            }
+            socket = new ConnectRace(candidates, profile).connect();
+            return socket != null;
+        }
+
         InetAddress ipAddr;
         try {
-            ipAddr = InetAddress.getByAddress(address);
+            ipAddr = InetAddresses.toInetAddress(addresses[0]);
         } catch (UnknownHostException uhe) {
-            Log.d(TAG, "Unknown host exception when getByAddress");
+            Log.d(TAG, "Unknown host exception when converting address");
             return false;
         }
 
         socket = new Socket();
+        InetSocketAddress remote = new InetSocketAddress(ipAddr, port);
 
         try {
-            socket.connect(new InetSocketAddress(ipAddr, port), CONNECT_TIMEOUT); /* This blocks until timeout */
+            /* The buffer sizes must be set before connecting, for the TCP window to be scaled to them */
+            profile.applyTo(socket);
+            long start = System.nanoTime();
+            socket.connect(remote, profile.getConnectTimeoutMillis(remote)); /* This blocks until timeout */
+            profile.recordConnected(remote, System.nanoTime() - start);
         } catch (SocketTimeoutException ste) {
             Log.d(TAG, "Socket timeout exception when connecting socket; msg: " + ste.getMessage() + " toString " + ste.toString());
+            profile.recordConnectTimeout(remote);
             return false;
         } catch (IOException ioe) {
             Log.d(TAG, "IOexception when connecting socket; msg: " + ioe.getMessage() + " toString " + ioe.toString());
@@ -128,12 +207,56 @@ public class CommunicationThread implements Runnable {
         return true;
     }
 
+    /**
+     * Connect the socket, if the connection was created with an address and port. This is used by DialScheduler, which runs the connect on
+     * one of its dialer threads and starts the thread of the connection only once connected. On failure the listener is informed.
+     *
+     * @return DIAL_CONNECTED, DIAL_FAILED, or DIAL_STOPPED if the connection was stopped before it was dialed
+     */
+    int dial() {
+        if (!getRunningStatus()) {
+            dialFailed();
+            return DIAL_STOPPED;
+        }
+        if (!initSocket()) {
+            Log.d(TAG, "Error: Socket init fail");
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    Log.d(TAG, "IOException while closing socket");
+                }
+            }
+            dialFailed();
+            return DIAL_FAILED;
+        }
+        socketInitialised = true;
+        return DIAL_CONNECTED;
+    }
+
+    /** Report that the connection could not be established, without running the thread */
+    void dialFailed() {
+        writeQueue.close(true);
+        listener.onConnectionError(id);
+        connections.removeConnection(id, this);
+    }
+
     public void run() {
+        try {
+            runConnection();
+        } finally {
+            /* However the connection ended, it no longer belongs in the registry */
+            connections.removeConnection(id, this);
+        }
+    }
+
+    private void runConnection() {
         /* Check if we need initialisation of socket etc. */
         if (!socketInitialised) {
             boolean success = initSocket();
             if (!success) {
                 Log.d(TAG, "Error: Socket init fail");
+                writeQueue.close(true);
 
                 try {
                     socket.close();
@@ -159,6 +282,7 @@ public class CommunicationThread implements Runnable {
 
         if (socket == null) {
             Log.d(TAG, "Error: Socket is null!");
+            writeQueue.close(true);
             listener.onError(id);
             return;
         }
@@ -167,6 +291,7 @@ public class CommunicationThread implements Runnable {
             inputStream = socket.getInputStream();
         } catch (IOException ioe) {
             Log.d(TAG, "IOException when getting input stream");
+            writeQueue.close(true);
             try {
                 socket.close();
             } catch (IOException ioec) {
@@ -180,6 +305,7 @@ public class CommunicationThread implements Runnable {
             outputStream = socket.getOutputStream();
         } catch (IOException ioe) {
             Log.d(TAG, "IOException when getting output stream");
+            writeQueue.close(true);
             try {
                 socket.close();
             } catch (IOException ioec) {
@@ -189,13 +315,12 @@ public class CommunicationThread implements Runnable {
             return;
         }
 
-        connectionEstablished(isServer);
-
-
         try {
-            socket.setTcpNoDelay(true);
+            profile.applyTo(socket);
+            socketSettings = SocketProfile.readFrom(socket, profile.getConnectTimeoutMillis());
         } catch (SocketException se) {
-            Log.d(TAG, "While setting tcpNoDelay: " + se.getMessage());
+            Log.d(TAG, "While setting socket options: " + se.getMessage());
+            writeQueue.close(true);
             try {
                 socket.close();
             } catch (IOException ioe) {
@@ -205,32 +330,60 @@ public class CommunicationThread implements Runnable {
             return;
         }
 
+        connectionEstablished(isServer);
+
         Thread.currentThread().setName("CommunicationThread: " + id);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "CommunicationThread writer: " + id);
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        /* Time (System.nanoTime) at which the ring buffer was reported full, or 0 when not stalled */
+        long stallStart = 0;
         /* Thread main loop */
         while (getRunningStatus()) {
-            /* Here we query over JNI how much space is available in the WishCore ring buffer of this connection */
+            /* Here we query over JNI how much space is available in the WishCore ring buffer of this connection.
+             * The signal count is taken first, so that a signal arriving right after the query is not missed */
+            int rxSignals = getRxSignalCount();
+            if (checkSlowConsumer()) {
+                /* The peer does not read what we send, so we do not read what it sends until it catches up */
+                waitForRxSignal(rxSignals, RING_FULL_SLEEP);
+                continue;
+            }
             int rbSpace = listener.getMaxInputDataLength(id);
             if (rbSpace < 0) {
                 Log.d(TAG, "JNI says rbSpace < 0, just exiting thread");
                 this.stop();
                 continue;
             } else if (rbSpace == 0) {
-                Log.d(TAG, "JNI says RB is full, sleeping");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ie) {
-                    Log.d(TAG, "Sleeping was interrupted while waiting for rb space to free up");
+                if (stallStart == 0) {
+                    Log.d(TAG, "JNI says RB is full, waiting, id " + id);
+                    stallStart = System.nanoTime();
                 }
+                waitForRxSignal(rxSignals, listener.signalsRxBufferChanges() ? RX_SIGNAL_TIMEOUT : RING_FULL_SLEEP);
                 continue;
             } else {
+                if (stallStart != 0) {
+                    stats.recordRxStall(System.nanoTime() - stallStart);
+                    stallStart = 0;
+                }
                 /* There is at least some space in ring buffer */
-                /* Try to read as much as the ring buffer can take.  */
-                int readLen = rbSpace; /* Note that here rbSpace is > 0 */
-                byte buffer[] = new byte[readLen];
                 int numBytesRead = 0;
                 try {
-                    if (inputStream.available() > 0) {
-                        numBytesRead = inputStream.read(buffer, 0, readLen); /* Blocks until at least one byte can be read */
+                    int available = inputStream.available();
+                    if (available > 0) {
+                        /* Try to read as much as is available and the ring buffer can take. Note that here rbSpace is > 0 */
+                        int readLen = Math.min(available, rbSpace);
+                        if (readLen > rxBuffer.length) {
+                            rxBuffer = new byte[Math.min(Math.max(readLen, 2 * rxBuffer.length), rbSpace)];
+                        }
+                        readLen = Math.min(rxBuffer.length, rbSpace);
+                        numBytesRead = inputStream.read(rxBuffer, 0, readLen); /* Blocks until at least one byte can be read */
 
                     } else {
                         try {
@@ -241,37 +394,33 @@ public class CommunicationThread implements Runnable {
                     }
                 }
                 catch (IOException ioe) {
-                    Log.d(TAG, "IOException while reading: " + ioe.getMessage() + "Num byte read: " + numBytesRead + " buffer.len " + buffer.length);
+                    Log.d(TAG, "IOException while reading: " + ioe.getMessage() + "Num byte read: " + numBytesRead + " buffer.len " + rxBuffer.length);
                     this.stop();
                 }
 
                 if (numBytesRead > 0 && getRunningStatus()) {
-                    /* Read success, some bytes were read */
-
-                    /* Copy the bytes from 'buffer' to 'trimmedBuffer' which is just the correct size matching the number of bytes we actually read.
-                     * Note that we read at most readLen bytes */
-                    byte trimmedBuffer[] = new byte[numBytesRead];
-                    System.arraycopy(buffer, 0, trimmedBuffer, 0, numBytesRead);
-                    listener.dataReceived(trimmedBuffer, id);
+                    /* Read success, some bytes were read. The listener consumes them before returning, so rxBuffer can be reused right away */
+                    stats.recordRead(numBytesRead);
+                    listener.dataReceived(rxBuffer, 0, numBytesRead, id);
                 } else if (numBytesRead < 0 && getRunningStatus()){
                     /* Connection closed by remote peer */
 
                     Log.d(TAG, "Connection closed by remote peer, id " + id);
                     /* Because we might have unconsumed data in the the connection's ringbuffer, we must allow Wish core to consume it first before we can tear down the connection */
-                    int bailOut = 0;
-                    while (!listener.isAllInputDataConsumed(id)) {
-                        bailOut++;
-                        /* While there is input data in ringbuffer which is not consumed... sleep */
-                        Log.d(TAG, "There is some unconsumed data, id " + id);
-                        if (bailOut > 100) {
-                            Log.d(TAG, "Break out, abandoning unconsumed data for id " + id);
+                    long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+                    while (true) {
+                        rxSignals = getRxSignalCount();
+                        if (listener.isAllInputDataConsumed(id)) {
                             break;
                         }
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException ie) {
-                            Log.d(TAG, "interrupted while waiting for the ring buffer to become empty before socket close");
+                        long remaining = drainDeadline - System.currentTimeMillis();
+                        if (remaining <= 0 || !getRunningStatus()) {
+                            Log.d(TAG, "Break out, abandoning unconsumed data for id " + id);
+                            break;
                         }
+                        /* While there is input data in ringbuffer which is not consumed... wait */
+                        Log.d(TAG, "There is some unconsumed data, id " + id);
+                        waitForRxSignal(rxSignals, listener.signalsRxBufferChanges() ? remaining : Math.min(remaining, DRAIN_POLL_INTERVAL));
                     }
 
                     this.stop();
@@ -282,7 +431,13 @@ public class CommunicationThread implements Runnable {
             }
         }
 
-        /* We are done. Close the socket */
+        /* We are done. Let the writer send what is still queued, then close the socket, which also unblocks a writer stuck on a slow peer */
+        writeQueue.close(false);
+        try {
+            writerThread.join(FLUSH_TIMEOUT);
+        } catch (InterruptedException ie) {
+            Log.d(TAG, "Interrupted while waiting for the writer");
+        }
         if (socket != null) {
             try {
                 socket.close();
@@ -290,6 +445,7 @@ public class CommunicationThread implements Runnable {
                 Log.d(TAG, "IOException while closing socket");
             }
         }
+        writeQueue.close(true);
 
         if (isServer) {
             listener.onServerClose(id);
@@ -305,39 +461,150 @@ public class CommunicationThread implements Runnable {
         listener.connectionEstablished(id, isServer);
     }
 
+    /**
+     * Queue data to be sent. This never blocks: the data is written to the socket by the writer thread, so that a peer which does not keep
+     * up cannot hold up the core, which calls this with the WishOsJni monitor held. If the write queue is over its budget, the connection
+     * is aborted, and its close reported by its own thread.
+     */
     public void sendMessage(byte data[]) {
         if (getRunningStatus() == false) {
             Log.d(TAG, "Will not send data, because the connection is no longer running");
             return;
         }
-        if (socket.isClosed()) {
-            Log.d(TAG, "Will not send data, because the socket is closed");
-            return;
+
+        //Log.i("Debug", "sending data, len = " + data.length);
+        if (!writeQueue.offer(ByteBuffer.wrap(data))) {
+            if (getRunningStatus() == false) {
+                Log.d(TAG, "Will not send data, because the connection is no longer running");
+                return;
+            }
+            Log.d(TAG, "Write queue full (" + writeQueue.getQueuedBytes() + " bytes), closing connection " + id);
+            /* Only abort here, as the core holds its lock; the thread of the connection reports the close to the listener, once */
+            abort();
+        } else {
+            checkSlowConsumer();
         }
+    }
 
+    public boolean checkSlowConsumer() {
+        return SlowConsumers.check(this, writeQueue, listener, options);
+    }
 
+    public int getQueuedBytes() {
+        return writeQueue.getQueuedBytes();
+    }
 
-        //Log.i("Debug", "sending data, len = " + data.length);
-        if (outputStream != null) {
-            try {
-                outputStream.write(data, 0, data.length);
+    /**
+     * The main loop of writerThread: write the queued data to the socket until the queue is closed and empty. The messages queued
+     * together are written with one write, see TcpOptions.setCoalesceWindowMillis().
+     */
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        byte[] coalesced = new byte[0];
+        try {
+            int count;
+            while ((count = writeQueue.awaitBatch(batch)) > 0) {
+                if (count == 1) {
+                    ByteBuffer buffer = batch[0];
+                    outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    /* A plain Socket has no channel for a gathering write, so the messages are copied together and written at once */
+                    int length = 0;
+                    for (int i = 0; i < count; i++) {
+                        length += batch[i].remaining();
+                    }
+                    if (coalesced.length < length) {
+                        coalesced = new byte[length];
+                    }
+                    int offset = 0;
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer buffer = batch[i];
+                        System.arraycopy(buffer.array(), buffer.arrayOffset() + buffer.position(), coalesced, offset, buffer.remaining());
+                        offset += buffer.remaining();
+                    }
+                    outputStream.write(coalesced, 0, length);
+                }
                 outputStream.flush();
-            } catch (IOException e) {
-                Log.d(TAG, "While writing data: " + e);
-
-                listener.onError(id);
-                stop();
+                writeQueue.remove(count);
+                stats.recordWrite(count);
+                Arrays.fill(batch, 0, count, null);
             }
-        }
-        else {
-            Log.d(TAG, "output stream was null");
-            listener.onError(id);
-            stop();
+        } catch (InterruptedException ie) {
+            Log.d(TAG, "Writer interrupted");
+        } catch (IOException e) {
+            Log.d(TAG, "While writing data: " + e);
+            /* The reader thread reports the close, once it sees the socket closed */
+            abort();
         }
     }
 
     public synchronized void stop() {
         running = false;
+        /* No more data is accepted, the writer sends what is already queued */
+        writeQueue.close(false);
+        /* Wake up the thread, if it is waiting for the ring buffer */
+        rxBufferChanged();
+    }
+
+    public void abort() {
+        stop();
+        writeQueue.close(true);
+        /* Closing the socket makes a blocked read or write fail right away */
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ioe) {
+                Log.d(TAG, "IOException while closing socket");
+            }
+        }
+    }
+
+    public void rxBufferChanged() {
+        synchronized (rxSignal) {
+            rxSignalCount++;
+            rxSignal.notifyAll();
+        }
+    }
+
+    private int getRxSignalCount() {
+        synchronized (rxSignal) {
+            return rxSignalCount;
+        }
+    }
+
+    /**
+     * Wait until rxBufferChanged() is called, unless it has been called already after the signal count was taken.
+     *
+     * @param rxSignals the signal count taken with getRxSignalCount() before asking the listener about the ring buffer
+     * @param timeout maximum time to wait, in milliseconds
+     */
+    private void waitForRxSignal(int rxSignals, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (rxSignal) {
+            long remaining = timeout;
+            while (rxSignalCount == rxSignals && remaining > 0) {
+                try {
+                    rxSignal.wait(remaining);
+                } catch (InterruptedException ie) {
+                    Log.d(TAG, "Interrupted while waiting for the ring buffer");
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    public TcpStats getStats() {
+        return stats;
+    }
+
+    public boolean isServer() {
+        return isServer;
+    }
+
+    public SocketProfile getSocketSettings() {
+        return socketSettings;
     }
 
     private synchronized boolean getRunningStatus() {
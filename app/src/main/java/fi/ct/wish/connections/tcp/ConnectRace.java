@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects a blocking Socket to the first of several candidate addresses to answer, in the style of happy eyeballs (RFC 8305): the connects
+ * are started one after another, ATTEMPT_DELAY apart, or right away when the earlier ones have all failed. The first socket to connect is
+ * kept, and the other attempts are abandoned.
+ *
+ * Each attempt runs on a thread of a pool shared by all races, as a blocking connect cannot be abandoned otherwise. The pool is bounded: when
+ * all its threads are busy, attempts wait for one, and an attempt whose race is over by then is skipped. This is used by CommunicationThread,
+ * the selector engine races its non-blocking connects itself.
+ */
+class ConnectRace {
+    private final String TAG = "ConnectRace";
+
+    static final int ATTEMPT_DELAY = 250;           /* Time to wait for an attempt before starting the next one in parallel, in milliseconds */
+    static final int MAX_ATTEMPTS = 4;              /* Candidates beyond this are not tried */
+    private static final int MAX_THREADS = DialScheduler.DEFAULT_MAX_CONCURRENT_DIALS * MAX_ATTEMPTS; /* Attempts in flight at a time, over all races */
+    private static final int KEEP_ALIVE = 30;       /* Time after which an idle attempt thread exits, in seconds */
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ConnectRace " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final InetSocketAddress[] candidates;
+    private final SocketProfile profile;
+
+    /* All guarded by this */
+    private final ArrayList<Socket> sockets = new ArrayList<Socket>();
+    private Socket winner = null;
+    private int started = 0;
+    private int failed = 0;
+    private boolean done = false;
+
+    ConnectRace(InetSocketAddress[] candidates, SocketProfile profile) {
+        this.candidates = candidates;
+        this.profile = profile;
+    }
+
+    /**
+     * Run the race. This blocks until a socket has connected, or all the attempts have failed.
+     *
+     * @return the connected socket, or null if no candidate could be connected
+     */
+    Socket connect() {
+        int attempts = Math.min(candidates.length, MAX_ATTEMPTS);
+        synchronized (this) {
+            try {
+                for (int i = 0; i < attempts && winner == null; i++) {
+                    start(candidates[i]);
+                    long deadline = System.currentTimeMillis() + ATTEMPT_DELAY;
+                    long remaining = ATTEMPT_DELAY;
+                    while (winner == null && failed < started && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+                /* All attempts started, each one ends by itself within the connect timeout */
+                while (winner == null && failed < started) {
+                    wait();
+                }
+            } catch (InterruptedException ie) {
+                Log.d(TAG, "Interrupted while connecting");
+            }
+
+            done = true;
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    close(socket);
+                }
+            }
+            return winner;
+        }
+    }
+
+    private void start(final InetSocketAddress candidate) {
+        started++;
+        final Socket socket = new Socket();
+        sockets.add(socket);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectRace.this) {
+                    if (done || winner != null) {
+                        /* Waited for a thread until the race was over */
+                        failed++;
+                        close(socket);
+                        ConnectRace.this.notifyAll();
+                        return;
+                    }
+                }
+                boolean connected = false;
+                try {
+                    profile.applyTo(socket);
+                    long start = System.nanoTime();
+                    socket.connect(candidate, profile.getConnectTimeoutMillis(candidate)); /* This blocks until timeout */
+                    profile.recordConnected(candidate, System.nanoTime() - start);
+                    connected = true;
+                } catch (SocketTimeoutException ste) {
+                    Log.d(TAG, "Timeout when connecting to " + candidate);
+                    profile.recordConnectTimeout(candidate);
+                } catch (IOException ioe) {
+                    Log.d(TAG, "Could not connect to " + candidate + ": " + ioe.getMessage());
+                }
+                synchronized (ConnectRace.this) {
+                    if (connected && winner == null && !done) {
+                        winner = socket;
+                    } else {
+                        failed++;
+                        close(socket);
+                    }
+                    ConnectRace.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            Log.d(TAG, "IOException while closing socket");
+        }
+    }
+}
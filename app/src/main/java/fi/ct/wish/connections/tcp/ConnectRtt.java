@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connect round trip times per destination, and the connect timeouts derived from them.
+ *
+ * The time a connect takes is about one round trip to the destination, and it is kept as a smoothed estimate with its variance in the
+ * way TCP does for its retransmission timeout (RFC 6298): SRTT and RTTVAR are updated with gains of 1/8 and 1/4, and the timeout is
+ * SRTT + 4 * RTTVAR, but never less than MIN_TIMEOUT, so that a lost SYN can still be retransmitted once. A destination which has never
+ * been connected to gets the connect timeout of the profile. Each connect which times out doubles the timeout of its destination, up to
+ * MAX_TIMEOUT, so that slow links get more time on the next try; a successful connect resets the doubling.
+ *
+ * A Tcp has one of these, shared by its profiles, see SocketProfile#setConnectRtt(ConnectRtt). Only the most recently used MAX_DESTINATIONS
+ * destinations are remembered.
+ */
+public class ConnectRtt {
+    /** Lower bound of a connect timeout derived from an estimate, in milliseconds */
+    public static final int MIN_TIMEOUT = 3*1000;
+
+    /** Upper bound of a connect timeout, in milliseconds */
+    public static final int MAX_TIMEOUT = 60*1000;
+
+    /** The number of destinations which are remembered */
+    public static final int MAX_DESTINATIONS = 256;
+
+    private final int MAX_BACKOFF = 6; /* Doublings of the timeout after consecutive timeouts, 2^6 times the timeout is well past MAX_TIMEOUT */
+
+    /** The estimate of one destination. The fields are guarded by the ConnectRtt. */
+    public static final class Estimate {
+        private final InetSocketAddress remote;
+        private long srttMicros = -1; /* -1 until the first sample */
+        private long rttvarMicros = 0;
+        private long samples = 0;
+        private long timeouts = 0;
+        private int backoff = 0;
+
+        private Estimate(InetSocketAddress remote) {
+            this.remote = remote;
+        }
+
+        private Estimate(Estimate e) {
+            remote = e.remote;
+            srttMicros = e.srttMicros;
+            rttvarMicros = e.rttvarMicros;
+            samples = e.samples;
+            timeouts = e.timeouts;
+            backoff = e.backoff;
+        }
+
+        public InetSocketAddress getRemote() {
+            return remote;
+        }
+
+        /** Returns the smoothed connect round trip time in milliseconds, or -1 if there are no samples yet */
+        public double getSrttMillis() {
+            return srttMicros < 0 ? -1 : srttMicros / 1000.0;
+        }
+
+        /** Returns the variation of the connect round trip time in milliseconds */
+        public double getRttvarMillis() {
+            return rttvarMicros / 1000.0;
+        }
+
+        /** Returns the number of connects measured */
+        public long getSampleCount() {
+            return samples;
+        }
+
+        /** Returns the number of connects which timed out */
+        public long getTimeoutCount() {
+            return timeouts;
+        }
+
+        /** Returns the number of times the timeout is currently doubled */
+        public int getBackoff() {
+            return backoff;
+        }
+
+        @Override
+        public String toString() {
+            return remote + ": " + (srttMicros < 0 ? "no samples" : String.format("srtt %.1f ms, rttvar %.1f ms", getSrttMillis(), getRttvarMillis()))
+                    + ", samples " + samples + ", timeouts " + timeouts + ", backoff " + backoff;
+        }
+    }
+
+    /* In access order, so that the least recently used destination is dropped first. Guarded by this. */
+    private final LinkedHashMap<InetSocketAddress, Estimate> estimates = new LinkedHashMap<InetSocketAddress, Estimate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Estimate> eldest) {
+            return size() > MAX_DESTINATIONS;
+        }
+    };
+
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Returns the connect timeout for a destination.
+     *
+     * @param remote the destination
+     * @param defaultMillis the timeout for a destination without samples, usually the connect timeout of the profile
+     * @return the timeout, in milliseconds
+     */
+    public synchronized int getTimeoutMillis(InetSocketAddress remote, int defaultMillis) {
+        Estimate e = estimates.get(remote);
+        if (e == null) {
+            return defaultMillis;
+        }
+        long timeout;
+        if (e.srttMicros < 0) {
+            timeout = defaultMillis;
+        } else {
+            timeout = Math.max(MIN_TIMEOUT, (e.srttMicros + 4 * e.rttvarMicros + 999) / 1000);
+        }
+        timeout <<= e.backoff;
+        return (int) Math.min(timeout, Math.max(MAX_TIMEOUT, defaultMillis));
+    }
+
+    /**
+     * Record a connect which succeeded.
+     *
+     * @param remote the destination
+     * @param nanos the time the connect took, in nanoseconds
+     */
+    public synchronized void recordConnected(InetSocketAddress remote, long nanos) {
+        long rtt = Math.max(1, nanos / 1000);
+        Estimate e = estimateOf(remote);
+        if (e.srttMicros < 0) {
+            e.srttMicros = rtt;
+            e.rttvarMicros = rtt / 2;
+        } else {
+            e.rttvarMicros = (3 * e.rttvarMicros + Math.abs(e.srttMicros - rtt)) / 4;
+            e.srttMicros = (7 * e.srttMicros + rtt) / 8;
+        }
+        e.samples++;
+        e.backoff = 0;
+        samples.incrementAndGet();
+    }
+
+    /** Record a connect which timed out. The next connect to the destination gets twice the time. */
+    public synchronized void recordTimeout(InetSocketAddress remote) {
+        Estimate e = estimateOf(remote);
+        e.timeouts++;
+        if (e.backoff < MAX_BACKOFF) {
+            e.backoff++;
+        }
+        timeouts.incrementAndGet();
+    }
+
+    private Estimate estimateOf(InetSocketAddress remote) {
+        Estimate e = estimates.get(remote);
+        if (e == null) {
+            e = new Estimate(remote);
+            estimates.put(remote, e);
+        }
+        return e;
+    }
+
+    /** Returns a copy of the estimate of a destination, or null if it is not known */
+    public synchronized Estimate getEstimate(InetSocketAddress remote) {
+        Estimate e = estimates.get(remote);
+        return e == null ? null : new Estimate(e);
+    }
+
+    /** Returns copies of the estimates of all the destinations remembered, least recently used first */
+    public synchronized List<Estimate> getEstimates() {
+        ArrayList<Estimate> list = new ArrayList<Estimate>(estimates.size());
+        for (Estimate e : estimates.values()) {
+            list.add(new Estimate(e));
+        }
+        return list;
+    }
+
+    /** Returns the number of connects measured, over all destinations */
+    public long getSampleCount() {
+        return samples.get();
+    }
+
+    /** Returns the number of connects which timed out, over all destinations */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("ConnectRtt: samples " + getSampleCount() + ", timeouts " + getTimeoutCount()
+                + ", destinations " + estimates.size());
+        for (Estimate e : estimates.values()) {
+            sb.append("\n  ").append(e);
+        }
+        return sb.toString();
+    }
+}
@@ -14,34 +14,241 @@ package fi.ct.wish.connections.tcp;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * The registry of the connections of a Tcp, keyed by the connection id given by the core.
+ *
+ * The ids are kept in an open addressing table with linear probing, so that looking up a connection, which is done for every message the
+ * core sends, neither takes a lock nor boxes the id. Registering and removing a connection, which happens once per connection, is done
+ * under the lock of the registry; when the table gets too full of live or removed entries it is rebuilt, and the new table is published
+ * in one go, so a lookup always sees either the old or the new table in a consistent state.
+ *
+ * Connections remove themselves when they close or fail, see removeConnection(int, TcpConnection). While registered, they are watched by
+ * the IdleMonitor of the Tcp.
+ */
 public class Connections {
 
-    private int id = 0;
-    private Map<Integer, CommunicationThread> threads = new HashMap<Integer, CommunicationThread>();
+    private final int INITIAL_CAPACITY = 64; /* A power of two, comfortably more than the connection pool of the core */
+
+    /** An entry of the table. Entries are immutable, and a slot is only ever changed by replacing its entry. */
+    private static final class Entry {
+        final int id;
+        final TcpConnection connection;
+        /** The entry of the connection in the IdleMonitor, or null */
+        final IdleMonitor.Watch watch;
+
+        Entry(int id, TcpConnection connection, IdleMonitor.Watch watch) {
+            this.id = id;
+            this.connection = connection;
+            this.watch = watch;
+        }
+    }
+
+    /** Marks a slot whose connection was removed, so that probing continues past it */
+    private static final Entry REMOVED = new Entry(0, null, null);
+
+    /** Watches the registered connections for idleness and dead peers, or null */
+    private final IdleMonitor idleMonitor;
+
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+
+    /** The number of slots which are not empty, that is live and removed entries. Guarded by this. */
+    private int usedSlots = 0;
 
-    /** Associate the communication thread with a an id number */
-    public synchronized int setConnection(CommunicationThread thread, int connectionId) {
-        threads.put(connectionId, thread);
+    private final AtomicInteger liveCount = new AtomicInteger();
+    private final AtomicInteger inboundCount = new AtomicInteger();
+    private final AtomicLong totalCount = new AtomicLong();
+
+    public Connections() {
+        this(null);
+    }
+
+    Connections(IdleMonitor idleMonitor) {
+        this.idleMonitor = idleMonitor;
+    }
+
+    private static int slotOf(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** Associate the connection with a an id number. A connection already registered with the same id is replaced. */
+    public synchronized int setConnection(TcpConnection thread, int connectionId) {
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        int free = -1;
+        for (int i = slotOf(connectionId, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Entry e = t.get(i);
+            if (e == null) {
+                if (free < 0) {
+                    free = i;
+                }
+                break;
+            }
+            if (e == REMOVED) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (e.id == connectionId) {
+                t.set(i, new Entry(connectionId, thread, watch(thread)));
+                unwatch(e);
+                countInbound(e.connection, -1);
+                countInbound(thread, 1);
+                totalCount.incrementAndGet();
+                return connectionId;
+            }
+        }
+
+        if (free < 0 || (t.get(free) == null && (usedSlots + 1) * 2 > t.length())) {
+            t = rebuild();
+            mask = t.length() - 1;
+            free = slotOf(connectionId, mask);
+            while (t.get(free) != null) {
+                free = (free + 1) & mask;
+            }
+        }
+        if (t.get(free) == null) {
+            usedSlots++;
+        }
+        t.set(free, new Entry(connectionId, thread, watch(thread)));
+        liveCount.incrementAndGet();
+        countInbound(thread, 1);
+        totalCount.incrementAndGet();
         return connectionId;
     }
 
-    public synchronized CommunicationThread getConnection(int id) {
-        if (threads.containsKey(id)) {
-            return threads.get(id);
+    /** Returns the connection with the id, or null if there is none */
+    public TcpConnection getConnection(int id) {
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = slotOf(id, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return null;
+            }
+            if (e != REMOVED && e.id == id) {
+                return e.connection;
+            }
         }
         return null;
     }
 
+    /** Remove the connection with the id, whichever connection it is */
     public synchronized void removeConnection(int id) {
-        if(threads.containsKey(id)){
-            threads.remove(id);
+        remove(id, null);
+    }
+
+    /**
+     * Remove the connection with the id, but only if it is still the given connection. This is what a connection calls when it has closed
+     * or failed, so that a late removal cannot drop a newer connection which has been registered with the same id.
+     *
+     * @return true if the connection was removed
+     */
+    public synchronized boolean removeConnection(int id, TcpConnection connection) {
+        return remove(id, connection);
+    }
+
+    private boolean remove(int id, TcpConnection connection) {
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = slotOf(id, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return false;
+            }
+            if (e != REMOVED && e.id == id) {
+                if (connection != null && e.connection != connection) {
+                    return false;
+                }
+                t.set(i, REMOVED);
+                unwatch(e);
+                liveCount.decrementAndGet();
+                countInbound(e.connection, -1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private IdleMonitor.Watch watch(TcpConnection connection) {
+        return idleMonitor != null ? idleMonitor.add(connection) : null;
+    }
+
+    private void unwatch(Entry e) {
+        if (e.watch != null) {
+            idleMonitor.remove(e.watch);
+        }
+    }
+
+    private void countInbound(TcpConnection connection, int delta) {
+        if (connection != null && connection.isServer()) {
+            inboundCount.addAndGet(delta);
+        }
+    }
+
+    /** Copy the live entries to a new table, doubling its size if it is more than a quarter full of them. Called with the lock held. */
+    private AtomicReferenceArray<Entry> rebuild() {
+        AtomicReferenceArray<Entry> old = table;
+        int capacity = old.length();
+        if (liveCount.get() * 4 >= capacity) {
+            capacity *= 2;
+        }
+        AtomicReferenceArray<Entry> t = new AtomicReferenceArray<Entry>(capacity);
+        int mask = capacity - 1;
+        int used = 0;
+        for (int j = 0; j < old.length(); j++) {
+            Entry e = old.get(j);
+            if (e == null || e == REMOVED) {
+                continue;
+            }
+            int i = slotOf(e.id, mask);
+            while (t.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            t.set(i, e);
+            used++;
+        }
+        usedSlots = used;
+        table = t;
+        return t;
+    }
+
+    /**
+     * Returns a snapshot of the registered connections. The snapshot is not affected by connections being added or removed later, so it
+     * can be iterated over while stopping the connections, for instance at shutdown.
+     */
+    public Collection<TcpConnection> getCommunicationsThreads() {
+        AtomicReferenceArray<Entry> t = table;
+        ArrayList<TcpConnection> list = new ArrayList<TcpConnection>(liveCount.get());
+        for (int i = 0; i < t.length(); i++) {
+            Entry e = t.get(i);
+            if (e != null && e != REMOVED) {
+                list.add(e.connection);
+            }
         }
+        return list;
+    }
+
+    /** Returns the number of connections currently registered */
+    public int getLiveCount() {
+        return liveCount.get();
+    }
+
+    /** Returns the number of connections currently registered which were accepted by our TcpServer */
+    public int getInboundCount() {
+        return inboundCount.get();
+    }
+
+    /** Returns the number of connections registered since the registry was created */
+    public long getTotalCount() {
+        return totalCount.get();
     }
 
-    public synchronized Collection<CommunicationThread> getCommunicationsThreads() {
-        return threads.values();
+    @Override
+    public String toString() {
+        return "Connections: live " + getLiveCount() + " (inbound " + getInboundCount() + "), total " + getTotalCount();
     }
 }
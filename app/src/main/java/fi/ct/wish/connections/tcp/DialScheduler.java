@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the outbound connects of CommunicationThreads on a bounded pool of dialer threads, instead of a new thread per connect. At most
+ * maxConcurrentDials connects are in flight at a time, the rest wait in a queue.
+ *
+ * Dials to an ip:port which already has a dial queued or in flight are merged with it: they wait for its outcome instead of taking up
+ * dialer threads of their own. If it fails, they all fail right away, so that an unreachable peer costs one connect timeout instead of one
+ * per connection. If it succeeds, they are dialed as usual.
+ *
+ * @see Tcp#getDialScheduler()
+ */
+public class DialScheduler {
+    private final String TAG = "DialScheduler";
+
+    /** Default maximum number of connects in flight at a time */
+    public static final int DEFAULT_MAX_CONCURRENT_DIALS = 4;
+    private final int DIALER_KEEP_ALIVE = 30;      /* Time after which an idle dialer thread exits, in seconds */
+
+    private final ThreadPoolExecutor executor;
+    private volatile boolean closed = false;
+
+    /** The dials merged with the dial in flight to each ip:port. Guarded by itself. */
+    private final HashMap<String, ArrayList<CommunicationThread>> pending = new HashMap<String, ArrayList<CommunicationThread>>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong dials = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public DialScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_DIALS);
+    }
+
+    public DialScheduler(int maxConcurrentDials) {
+        executor = new ThreadPoolExecutor(maxConcurrentDials, maxConcurrentDials, DIALER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Dialer " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Connect the socket of the connection, and start the connection's thread once connected. Failure is reported to the listener of the
+     * connection with onConnectionError(), as before.
+     */
+    void dial(CommunicationThread connection, byte[][] addresses, int port) {
+        final String key = Arrays.deepToString(addresses) + ":" + port;
+        synchronized (pending) {
+            ArrayList<CommunicationThread> followers = pending.get(key);
+            if (followers != null) {
+                followers.add(connection);
+                merged.incrementAndGet();
+                return;
+            }
+            pending.put(key, new ArrayList<CommunicationThread>());
+        }
+        submit(connection, key);
+    }
+
+    /**
+     * Submit a dial to the executor.
+     *
+     * @param key the ip:port key, if this dial decides the fate of the dials merged with it, otherwise null
+     */
+    private void submit(final CommunicationThread connection, final String key) {
+        dials.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean reachable = runDial(connection);
+                    if (key != null) {
+                        release(key, reachable);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            Log.d(TAG, "Dial rejected, scheduler is shut down");
+            fail(connection);
+            if (key != null) {
+                release(key, false);
+            }
+        }
+    }
+
+    /** @return false, if the connect was attempted and failed */
+    private boolean runDial(CommunicationThread connection) {
+        if (closed) {
+            fail(connection);
+            return false;
+        }
+        inFlight.incrementAndGet();
+        try {
+            switch (connection.dial()) {
+                case CommunicationThread.DIAL_CONNECTED:
+                    Thread thread = new Thread(connection);
+                    thread.setDaemon(true);
+                    thread.start();
+                    connection.setActualThread(thread);
+                    return true;
+                case CommunicationThread.DIAL_FAILED:
+                    failed.incrementAndGet();
+                    return false;
+                default:
+                    /* Stopped before it was dialed, this tells nothing of the address */
+                    return true;
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** The dial which decides for key is done: dial the merged ones in turn, or fail them all */
+    private void release(String key, boolean reachable) {
+        ArrayList<CommunicationThread> followers;
+        synchronized (pending) {
+            followers = pending.remove(key);
+        }
+        if (followers == null) {
+            return;
+        }
+        for (CommunicationThread follower : followers) {
+            if (reachable && !closed) {
+                submit(follower, null);
+            } else {
+                Log.d(TAG, "Failing merged dial to " + key + ", id " + follower.getId());
+                fail(follower);
+            }
+        }
+    }
+
+    private void fail(CommunicationThread connection) {
+        failed.incrementAndGet();
+        connection.dialFailed();
+    }
+
+    /** Fail the dials which have not started, and let the dialer threads exit */
+    void shutdown() {
+        closed = true;
+        executor.shutdown();
+    }
+
+    /** Returns the number of dials waiting for a dialer thread */
+    public int getQueuedDials() {
+        return executor.getQueue().size();
+    }
+
+    /** Returns the number of connects in flight */
+    public int getInFlightDials() {
+        return inFlight.get();
+    }
+
+    /** Returns the number of dials currently waiting for the outcome of another dial to the same address */
+    public int getMergedPendingDials() {
+        int count = 0;
+        synchronized (pending) {
+            for (ArrayList<CommunicationThread> followers : pending.values()) {
+                count += followers.size();
+            }
+        }
+        return count;
+    }
+
+    /** Returns the number of dials handed to the executor */
+    public long getDialCount() {
+        return dials.get();
+    }
+
+    /** Returns the number of dials which were merged with another dial to the same address */
+    public long getMergedCount() {
+        return merged.get();
+    }
+
+    /** Returns the number of dials which failed, including merged ones failed without a connect of their own */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "dials: " + getDialCount() + ", merged: " + getMergedCount() + ", failed: " + getFailedCount()
+                + ", queued: " + getQueuedDials() + ", in flight: " + getInFlightDials() + ", waiting on merge: " + getMergedPendingDials();
+    }
+}
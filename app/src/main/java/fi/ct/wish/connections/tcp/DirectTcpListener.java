@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A TcpListener which can take received data straight from a direct ByteBuffer. When direct ingress is enabled (see Tcp.setDirectIngress()),
+ * SelectorTransport reads the socket into native memory and hands over just the buffer and the length, so the data is never copied through
+ * the Java heap.
+ */
+public interface DirectTcpListener extends TcpListener {
+    /** Deliver received data. The buffer is reused for the next read, so the listener must consume the data before returning.
+     * @param buffer a direct buffer holding the data, starting at position 0
+     * @param length the number of bytes of data
+     * @param id the connection id */
+    public void dataReceivedDirect(ByteBuffer buffer, int length, int id);
+}
@@ -0,0 +1,25 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+/**
+ * Gets told about connections which have gone quiet, see TcpOptions.setIdleTimeoutMillis() and TcpOptions.setDeadPeerTimeoutMillis().
+ * The callbacks are made on the thread of the IdleMonitor of the Tcp, so they should return quickly.
+ *
+ * @see Tcp#setIdleListener(IdleListener)
+ */
+public interface IdleListener {
+    /** The connection has had no traffic in either direction for idleMillis milliseconds */
+    public void onIdle(int id, long idleMillis);
+    /** Nothing has been received on the connection for silentMillis milliseconds. The connection is closed after this returns. */
+    public void onDeadPeer(int id, long silentMillis);
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Watches the connections of a Tcp for idleness, dead peers and slow consumers, with one thread and a hashed timer wheel.
+ *
+ * The connections themselves only note the time of every read and write in their TcpStats, so the cost per packet is a volatile write.
+ * Each connection has one entry on the wheel, due when the earliest of its timeouts would pass if there was no more traffic. When the
+ * entry comes due, the times of the latest read and write are checked: if there was traffic meanwhile the entry is just put back on the
+ * wheel for the new due time, otherwise the connection is reported, and if its peer is taken to be dead, closed.
+ *
+ * The wheel has WHEEL_SIZE slots of TICK milliseconds. An entry due further away than one turn of the wheel stays in its slot, and is
+ * skipped until the turn on which it is due. The thread turns the wheel with advance() every TICK; the tests turn it themselves, on a
+ * Clock of their own.
+ */
+class IdleMonitor implements Runnable {
+    private final String TAG = "IdleMonitor";
+
+    static final int TICK = 500;                    /* Resolution of the timeouts, in milliseconds */
+    private final int WHEEL_SIZE = 128;             /* Number of slots, a power of two. One turn takes 64 s */
+    private final int RECHECK_INTERVAL = 10*1000;   /* Time after which an entry is looked at again when no timeout is set, in milliseconds */
+
+    /** An entry of the wheel, one for every watched connection */
+    static final class Watch {
+        final TcpConnection connection;
+        /* All guarded by the IdleMonitor */
+        long dueTick;
+        Watch prev;
+        Watch next;
+        boolean cancelled = false;
+        /** The time of the latest traffic when the connection was reported idle, or 0 if it has not been reported since it had traffic */
+        long idleReportedFor = 0;
+
+        Watch(TcpConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /** The source of the current time, System.nanoTime() unless replaced by the tests */
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final TcpOptions options;
+    private final Clock clock;
+    /** If false, no thread is started, and the wheel only turns when advance() is called */
+    private final boolean threaded;
+    private volatile IdleListener listener = null;
+
+    /** The entries which came due on the current tick. Only used by the caller of advance() */
+    private final ArrayList<Watch> due = new ArrayList<Watch>();
+
+    /* All guarded by this */
+    private final Watch[] wheel = new Watch[WHEEL_SIZE];
+    private long tick = 0;
+    private Thread thread = null;
+    private boolean stopped = false;
+
+    IdleMonitor(TcpOptions options) {
+        this(options, SYSTEM_CLOCK, true);
+    }
+
+    IdleMonitor(TcpOptions options, Clock clock, boolean threaded) {
+        this.options = options;
+        this.clock = clock;
+        this.threaded = threaded;
+    }
+
+    void setListener(IdleListener listener) {
+        this.listener = listener;
+    }
+
+    /** Start watching a connection. The thread of the monitor is started on the first call. */
+    synchronized Watch add(TcpConnection connection) {
+        Watch watch = new Watch(connection);
+        if (stopped) {
+            watch.cancelled = true;
+            return watch;
+        }
+        schedule(watch, nextCheck(watch, clock.nanoTime()));
+        if (threaded && thread == null) {
+            thread = new Thread(this, "TcpIdleMonitor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return watch;
+    }
+
+    /** Stop watching a connection */
+    synchronized void remove(Watch watch) {
+        if (!watch.cancelled) {
+            watch.cancelled = true;
+            unlink(watch);
+        }
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /** Put the entry in the slot of the tick it is due on, at least one tick from now. Called with the lock held. */
+    private void schedule(Watch watch, long delayNanos) {
+        long ticks = (delayNanos + TICK * 1000000L - 1) / (TICK * 1000000L);
+        watch.dueTick = tick + Math.max(1, ticks);
+        int slot = (int) (watch.dueTick & (WHEEL_SIZE - 1));
+        watch.prev = null;
+        watch.next = wheel[slot];
+        if (watch.next != null) {
+            watch.next.prev = watch;
+        }
+        wheel[slot] = watch;
+    }
+
+    private void unlink(Watch watch) {
+        if (watch.prev != null) {
+            watch.prev.next = watch.next;
+        } else {
+            int slot = (int) (watch.dueTick & (WHEEL_SIZE - 1));
+            if (wheel[slot] == watch) {
+                wheel[slot] = watch.next;
+            }
+        }
+        if (watch.next != null) {
+            watch.next.prev = watch.prev;
+        }
+        watch.prev = null;
+        watch.next = null;
+    }
+
+    public void run() {
+        long start = clock.nanoTime();
+        while (true) {
+            synchronized (this) {
+                /* Sleep until the next tick, counted from the start so that the ticks do not drift */
+                long wakeAt = start + (tick + 1) * TICK * 1000000L;
+                long remaining;
+                while (!stopped && (remaining = wakeAt - clock.nanoTime()) > 0) {
+                    try {
+                        wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                    } catch (InterruptedException ie) {
+                        Log.d(TAG, "Interrupted");
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+            }
+            advance();
+        }
+    }
+
+    /** Turn the wheel by one tick, and check the connections which came due. Called by the thread every TICK, or by the tests. */
+    void advance() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            tick++;
+            int slot = (int) (tick & (WHEEL_SIZE - 1));
+            Watch watch = wheel[slot];
+            while (watch != null) {
+                Watch next = watch.next;
+                if (watch.dueTick <= tick) {
+                    unlink(watch);
+                    due.add(watch);
+                }
+                watch = next;
+            }
+        }
+
+        /* The checks call the listener and may close connections, so they are made without the lock */
+        for (Watch watch : due) {
+            long delay = check(watch);
+            synchronized (this) {
+                if (delay >= 0 && !watch.cancelled && !stopped) {
+                    schedule(watch, delay);
+                }
+            }
+        }
+        due.clear();
+    }
+
+    /**
+     * Check a connection whose entry came due.
+     *
+     * @return the time until the connection should be checked again, in nanoseconds, or -1 if it was closed
+     */
+    private long check(Watch watch) {
+        long now = clock.nanoTime();
+        TcpConnection connection = watch.connection;
+        TcpStats stats = connection.getStats();
+        long lastRead = stats.getLastReadNanos();
+        long lastTraffic = Math.max(lastRead - now, stats.getLastWriteNanos() - now) + now;
+        long deadTimeout = options.getDeadPeerTimeoutMillis() * 1000000L;
+        long idleTimeout = options.getIdleTimeoutMillis() * 1000000L;
+        IdleListener l = listener;
+
+        if (deadTimeout > 0 && now - lastRead >= deadTimeout) {
+            Log.d(TAG, "Nothing received for " + (now - lastRead) / 1000000L + " ms, closing connection " + connection.getId());
+            stats.recordDeadPeer();
+            if (l != null) {
+                l.onDeadPeer(connection.getId(), (now - lastRead) / 1000000L);
+            }
+            connection.stop();
+            return -1;
+        }
+
+        /* A peer which stopped reading is found out here also when the core no longer sends to it */
+        if (connection.checkSlowConsumer() && options.getSlowConsumerPolicy() == TcpOptions.SLOW_CONSUMER_CLOSE) {
+            return -1;
+        }
+
+        if (watch.idleReportedFor != 0 && watch.idleReportedFor != lastTraffic) {
+            /* There has been traffic since the connection was reported idle */
+            watch.idleReportedFor = 0;
+        }
+        if (idleTimeout > 0 && watch.idleReportedFor == 0 && now - lastTraffic >= idleTimeout) {
+            watch.idleReportedFor = lastTraffic;
+            stats.recordIdle();
+            if (l != null) {
+                l.onIdle(connection.getId(), (now - lastTraffic) / 1000000L);
+            }
+        }
+        return nextCheck(watch, now);
+    }
+
+    /** Returns the time from now until the earliest timeout of the connection would pass without more traffic, in nanoseconds */
+    private long nextCheck(Watch watch, long now) {
+        TcpStats stats = watch.connection.getStats();
+        long lastRead = stats.getLastReadNanos();
+        long lastTraffic = Math.max(lastRead - now, stats.getLastWriteNanos() - now) + now;
+        long deadTimeout = options.getDeadPeerTimeoutMillis() * 1000000L;
+        long idleTimeout = options.getIdleTimeoutMillis() * 1000000L;
+
+        long delay = RECHECK_INTERVAL * 1000000L;
+        if (options.getWriteStallTimeoutMillis() > 0) {
+            delay = Math.min(delay, options.getWriteStallTimeoutMillis() * 1000000L);
+        }
+        if (deadTimeout > 0) {
+            delay = Math.min(delay, lastRead + deadTimeout - now);
+        }
+        if (idleTimeout > 0 && watch.idleReportedFor == 0) {
+            delay = Math.min(delay, lastTraffic + idleTimeout - now);
+        }
+        return Math.max(0, delay);
+    }
+}
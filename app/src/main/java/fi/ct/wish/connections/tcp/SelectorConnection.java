@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of one connection driven by SelectorTransport.
+ *
+ * Everything except sendMessage(), getQueuedBytes(), stop() and waitForStop() is only ever touched from the selector thread.
+ */
+class SelectorConnection implements TcpConnection {
+    private final String TAG = "SelectorConnection";
+
+    private final SelectorTransport transport;
+    private final int id;
+    final boolean isServer;
+    private final TcpStats stats;
+
+    /** The socket settings of the connection, and the settings read back from the socket once connected */
+    final SocketProfile profile;
+    volatile SocketProfile socketSettings;
+
+    SocketChannel channel;
+    SelectionKey key;
+
+    /** True, when the socket is connected and connectionEstablished() has been reported */
+    volatile boolean established = false;
+
+    /** A connect attempt: the address it connects to, when it was started, and when it is abandoned (System.nanoTime) */
+    static final class Attempt {
+        final InetSocketAddress remote;
+        final long startedAt;
+        final long deadline;
+
+        Attempt(InetSocketAddress remote, long startedAt, long deadline) {
+            this.remote = remote;
+            this.startedAt = startedAt;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Time (System.nanoTime) at which the earliest connect attempt in flight is abandoned, or 0 if not connecting */
+    long connectDeadline = 0;
+
+    /** The candidate addresses of an outbound connection, and the index of the next one to try */
+    InetSocketAddress[] candidates;
+    int nextCandidate = 0;
+    /** The connect attempts in flight by their keys, until one of them connects and becomes key */
+    final LinkedHashMap<SelectionKey, Attempt> attempts = new LinkedHashMap<SelectionKey, Attempt>();
+    /** Time (System.nanoTime) at which the connect to the next candidate is started, or 0 */
+    long nextAttemptAt = 0;
+
+    /** Time (System.nanoTime) at which we re-check the ring buffer space after the core reported it full, or 0 if reading normally */
+    long rxRetryAt = 0;
+    /** Time (System.nanoTime) at which the ring buffer was reported full, or 0 when not stalled */
+    long stallStart = 0;
+
+    /** Set when the remote peer has closed the connection, and we are waiting for the core to consume the data in the ring buffer */
+    boolean draining = false;
+    long drainCheckAt = 0;
+    long drainDeadline = 0;
+
+    /** Time (System.nanoTime) at which queued outbound data is to be written, when waiting for more data to coalesce with it, or 0 */
+    long flushAt = 0;
+
+    /** Time (System.nanoTime) at which queued outbound data is abandoned after stop(), or 0 if not closing */
+    long closeDeadline = 0;
+
+    /** Set by the selector thread when the connection has been torn down */
+    boolean finished = false;
+
+    /** Outbound data which could not be written to the socket right away */
+    private final WriteQueue writeQueue;
+    private final TcpOptions options;
+
+    private volatile boolean running = true;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    SelectorConnection(SelectorTransport transport, int id, boolean isServer, TcpOptions options, SocketProfile profile, TcpStats parentStats) {
+        this.transport = transport;
+        this.profile = new SocketProfile(profile);
+        this.id = id;
+        this.isServer = isServer;
+        this.stats = new TcpStats(parentStats);
+        this.options = options;
+        this.writeQueue = new WriteQueue(options, stats);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Send data to the peer. This never blocks: the data is queued, and the selector thread writes everything queued meanwhile with one
+     * gathering write, after the coalescing window if one is set. If the write queue is over its budget, the connection is aborted, and
+     * its close reported by the selector thread.
+     *
+     * Note that this is called by the core with the WishOsJni monitor held.
+     */
+    @Override
+    public void sendMessage(byte data[]) {
+        if (!running) {
+            Log.d(TAG, "Will not send data, because the connection is no longer running");
+            return;
+        }
+
+        boolean needFlush;
+        boolean overflow;
+        synchronized (writeQueue) {
+            int before = writeQueue.getQueuedBytes();
+            overflow = !writeQueue.offer(ByteBuffer.wrap(data));
+            /* The selector thread is told when the queue becomes non-empty, and again if the data reaches the coalescing size */
+            int maxBytes = options.getCoalesceMaxBytes();
+            needFlush = !overflow && (before == 0 || (before < maxBytes && writeQueue.getQueuedBytes() >= maxBytes));
+        }
+
+        if (overflow) {
+            if (running) {
+                Log.d(TAG, "Write queue full (" + writeQueue.getQueuedBytes() + " bytes), closing connection " + id);
+                /* Only abort here, as the core holds its lock; the selector thread reports the close to the listener, once */
+                abort();
+            }
+            return;
+        } else if (needFlush && established) {
+            transport.requestWrite(this);
+        }
+        checkSlowConsumer();
+    }
+
+    @Override
+    public boolean checkSlowConsumer() {
+        return SlowConsumers.check(this, writeQueue, transport.getListener(), options);
+    }
+
+    /**
+     * Write as much of the queued outbound data as the socket will take. Called by the selector thread.
+     *
+     * @return true, if all queued data was written
+     * @throws IOException if writing fails
+     */
+    boolean flushOutbound() throws IOException {
+        return writeQueue.writeTo(channel);
+    }
+
+    /** Returns the time (System.nanoTime) at which the queued data should be written */
+    long getFlushTime() {
+        return writeQueue.getFlushTime();
+    }
+
+    boolean hasOutbound() {
+        return !writeQueue.isEmpty();
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        return writeQueue.getQueuedBytes();
+    }
+
+    /** Stop the connection. Data already queued is still written, see SelectorTransport.requestClose() */
+    @Override
+    public void stop() {
+        if (running) {
+            running = false;
+            writeQueue.close(false);
+            transport.requestClose(this);
+        }
+    }
+
+    /** Called by the selector thread once the channel has been closed and the listener informed */
+    void markClosed() {
+        running = false;
+        writeQueue.close(true);
+        closed.countDown();
+    }
+
+    @Override
+    public void rxBufferChanged() {
+        transport.requestRxResume(this);
+    }
+
+    @Override
+    public TcpStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public boolean isServer() {
+        return isServer;
+    }
+
+    @Override
+    public SocketProfile getSocketSettings() {
+        return socketSettings;
+    }
+
+    @Override
+    public void waitForStop() {
+        try {
+            closed.await();
+        } catch (InterruptedException ie) {
+            Log.d(TAG, "InterruptedException while waiting for connection to close");
+        }
+    }
+
+    @Override
+    public boolean waitForStop(long timeoutMillis) {
+        try {
+            return closed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Log.d(TAG, "InterruptedException while waiting for connection to close");
+            return closed.getCount() == 0;
+        }
+    }
+
+    @Override
+    public void abort() {
+        running = false;
+        writeQueue.close(true);
+        transport.requestAbort(this);
+    }
+}
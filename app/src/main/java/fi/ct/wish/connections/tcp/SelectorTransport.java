@@ -0,0 +1,681 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import fi.ct.wish.connections.InetAddresses;
+
+/**
+ * A transport engine which drives all the connections of one Tcp instance from a single thread, using a java.nio Selector and non-blocking
+ * SocketChannels. This is the alternative to running one CommunicationThread per connection, see Tcp.MODE_SELECTOR.
+ *
+ * The TcpListener callbacks are the same as with CommunicationThread, and they are all called from the selector thread.
+ * Note that sendMessage() is called by the core while it holds the WishOsJni monitor, and the selector thread takes the same monitor for the
+ * listener callbacks. For that reason, nothing here may block waiting for the selector thread: everything that must happen on the
+ * selector thread is handed over as a task, followed by Selector.wakeup().
+ */
+public class SelectorTransport implements Runnable {
+    private final String TAG = "SelectorTransport";
+
+    private final int RING_FULL_RETRY = 1000;       /* Time to wait before asking the core again for ring buffer space, if the listener does not signal it, in milliseconds */
+    private final int RX_SIGNAL_TIMEOUT = 5*1000;   /* Safety timeout when waiting for the listener to signal a ring buffer change, in milliseconds */
+    private final int DRAIN_CHECK_INTERVAL = 100;   /* Interval of checking for an empty ring buffer after remote close, if the listener does not signal it, in milliseconds */
+    private final int DRAIN_TIMEOUT = 10*1000;      /* Time after which unconsumed data is abandoned on remote close, in milliseconds */
+    private final int ATTEMPT_DELAY = ConnectRace.ATTEMPT_DELAY; /* Time to wait for a connect before starting one to the next candidate address, in milliseconds */
+    private final int FLUSH_TIMEOUT = 5*1000;       /* Time to wait for queued data to be written when a connection is stopped, in milliseconds */
+    private final int READ_BUFFER_SIZE = 32*1024;   /* Matches WISH_PORT_RX_RB_SZ in wish_port_config.h, more can never be accepted at once */
+
+    private final TcpListener listener;
+    private final Connections connections;
+    private final TcpOptions options;
+    private final TcpStats stats;
+
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+
+    /** Work handed over to the selector thread. Guarded by itself. */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    /** Set when the selector thread has exited, after this tasks are run by the caller instead */
+    private boolean exited = false;
+
+    /** The connections currently registered with the selector. Only accessed by the selector thread. */
+    private final HashSet<SelectorConnection> active = new HashSet<SelectorConnection>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /** If non-null, data is read into this direct buffer and delivered with DirectTcpListener.dataReceivedDirect() */
+    private volatile ByteBuffer directReadBuffer = null;
+
+    public SelectorTransport(TcpListener listener, Connections connections, TcpOptions options, TcpStats stats) {
+        this.listener = listener;
+        this.connections = connections;
+        this.options = options;
+        this.stats = stats;
+    }
+
+    TcpListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Enable or disable direct ingress. Only possible if the listener is a DirectTcpListener.
+     *
+     * @return true, if direct ingress is now enabled
+     */
+    boolean setDirectIngress(boolean enable) {
+        if (enable && listener instanceof DirectTcpListener) {
+            if (directReadBuffer == null) {
+                directReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            }
+            return true;
+        }
+        directReadBuffer = null;
+        return false;
+    }
+
+    /**
+     * Open the selector and start the selector thread.
+     *
+     * @return true, if the transport was started
+     */
+    public synchronized boolean start() {
+        if (running) {
+            return true;
+        }
+        try {
+            selector = Selector.open();
+        } catch (IOException ioe) {
+            Log.d(TAG, "Could not open selector: " + ioe);
+            return false;
+        }
+        running = true;
+        selectorThread = new Thread(this, "SelectorTransport");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return true;
+    }
+
+    /**
+     * Stop the transport. All connections are closed (and the listener informed) by the selector thread before it exits.
+     */
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Open an outbound connection. The connect is non-blocking, the result is reported through the listener.
+     */
+    public void connect(byte[] address, int port, int id, SocketProfile profile) {
+        connect(new byte[][] { address }, port, id, profile);
+    }
+
+    /**
+     * Open an outbound connection to the first of several candidate addresses to answer. The connects are started ATTEMPT_DELAY apart, or
+     * right away when the earlier ones have failed, and the first one to connect is kept, like ConnectRace does in thread mode.
+     */
+    public void connect(byte[][] addresses, int port, int id, SocketProfile profile) {
+        final SelectorConnection conn = new SelectorConnection(this, id, false, options, profile, stats);
+        connections.setConnection(conn, id);
+
+        final InetSocketAddress[] remotes = new InetSocketAddress[Math.min(addresses.length, ConnectRace.MAX_ATTEMPTS)];
+        try {
+            for (int i = 0; i < remotes.length; i++) {
+                remotes[i] = new InetSocketAddress(InetAddresses.toInetAddress(addresses[i]), port);
+            }
+        } catch (UnknownHostException uhe) {
+            Log.d(TAG, "Unknown host exception when converting address");
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish(conn);
+                }
+            });
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                openChannel(conn, remotes);
+            }
+        });
+    }
+
+    /**
+     * Take over a connection accepted by TcpServer.
+     */
+    public void accept(final SocketChannel channel, int id, SocketProfile profile) {
+        final SelectorConnection conn = new SelectorConnection(this, id, true, options, profile, stats);
+        conn.channel = channel;
+        connections.setConnection(conn, id);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                registerAccepted(conn);
+            }
+        });
+    }
+
+    /** Called when data has been queued: the connection is written to right away, or when its coalescing window has passed */
+    void requestWrite(final SelectorConnection conn) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (conn.key == null || !conn.key.isValid()) {
+                    return;
+                }
+                long flushAt = conn.getFlushTime();
+                if (flushAt - System.nanoTime() <= 0) {
+                    conn.flushAt = 0;
+                    conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    conn.flushAt = flushAt;
+                }
+            }
+        });
+    }
+
+    /** Called when the listener signals a ring buffer change: a stalled read or drain check is made due right away */
+    void requestRxResume(final SelectorConnection conn) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                if (conn.rxRetryAt != 0) {
+                    conn.rxRetryAt = now;
+                }
+                if (conn.draining) {
+                    conn.drainCheckAt = now;
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the connection once its queued outbound data has been written, or FLUSH_TIMEOUT has passed. Nothing more is read meanwhile.
+     */
+    void requestClose(final SelectorConnection conn) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running && conn.established && conn.hasOutbound() && conn.key != null && conn.key.isValid()) {
+                    conn.closeDeadline = System.nanoTime() + FLUSH_TIMEOUT * 1000000L;
+                    conn.flushAt = 0;
+                    conn.draining = false;
+                    conn.rxRetryAt = 0;
+                    conn.key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    finish(conn);
+                }
+            }
+        });
+    }
+
+    /** Close the connection right away, without writing what is still queued */
+    void requestAbort(final SelectorConnection conn) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                finish(conn);
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        synchronized (tasks) {
+            if (!exited) {
+                tasks.add(task);
+                selector.wakeup();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private void openChannel(SelectorConnection conn, InetSocketAddress[] remotes) {
+        if (!running || !conn.isRunning()) {
+            finish(conn);
+            return;
+        }
+        conn.candidates = remotes;
+        active.add(conn);
+        if (!startAttempt(conn)) {
+            finish(conn);
+        }
+    }
+
+    /**
+     * Start a connect to the next candidate address of the connection.
+     *
+     * @return false, if there are no candidates left
+     */
+    private boolean startAttempt(SelectorConnection conn) {
+        conn.nextAttemptAt = 0;
+        while (conn.nextCandidate < conn.candidates.length) {
+            InetSocketAddress remote = conn.candidates[conn.nextCandidate++];
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                /* The buffer sizes must be set before connecting, for the TCP window to be scaled to them */
+                conn.profile.applyTo(channel.socket());
+                long now = System.nanoTime();
+                long deadline = now + conn.profile.getConnectTimeoutMillis(remote) * 1000000L;
+                boolean connected = channel.connect(remote);
+                SelectionKey key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, conn);
+                conn.attempts.put(key, new SelectorConnection.Attempt(remote, now, deadline));
+                if (connected) {
+                    attemptConnected(conn, key);
+                    return true;
+                }
+                /* Each attempt times out by itself, after the time derived from the round trip times to its destination */
+                if (conn.connectDeadline == 0 || deadline - conn.connectDeadline < 0) {
+                    conn.connectDeadline = deadline;
+                }
+                if (conn.nextCandidate < conn.candidates.length) {
+                    conn.nextAttemptAt = now + ATTEMPT_DELAY * 1000000L;
+                }
+                return true;
+            } catch (IOException ioe) {
+                Log.d(TAG, "IOexception when connecting socket to " + remote + "; msg: " + ioe.getMessage());
+                if (channel != null) {
+                    closeChannel(channel);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** One of the connect attempts succeeded: keep it as the channel of the connection, and abandon the others */
+    private void attemptConnected(SelectorConnection conn, SelectionKey key) {
+        SelectorConnection.Attempt attempt = conn.attempts.get(key);
+        conn.profile.recordConnected(attempt.remote, System.nanoTime() - attempt.startedAt);
+        for (SelectionKey other : conn.attempts.keySet()) {
+            if (other != key) {
+                other.cancel();
+                closeChannel((SocketChannel) other.channel());
+            }
+        }
+        conn.attempts.clear();
+        conn.nextAttemptAt = 0;
+        conn.channel = (SocketChannel) key.channel();
+        conn.key = key;
+        connectionEstablished(conn);
+    }
+
+    /**
+     * Abandon the connect attempts of the connection which have timed out, and go on to the next candidate right away.
+     *
+     * @return false, if the connection failed as there are no candidates left either
+     */
+    private boolean expireAttempts(SelectorConnection conn, long now) {
+        long earliest = 0;
+        boolean expired = false;
+        Iterator<Map.Entry<SelectionKey, SelectorConnection.Attempt>> it = conn.attempts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SelectionKey, SelectorConnection.Attempt> entry = it.next();
+            SelectorConnection.Attempt attempt = entry.getValue();
+            if (now - attempt.deadline >= 0) {
+                Log.d(TAG, "Socket timeout when connecting to " + attempt.remote + ", id " + conn.getId());
+                conn.profile.recordConnectTimeout(attempt.remote);
+                entry.getKey().cancel();
+                closeChannel((SocketChannel) entry.getKey().channel());
+                it.remove();
+                expired = true;
+            } else if (earliest == 0 || attempt.deadline - earliest < 0) {
+                earliest = attempt.deadline;
+            }
+        }
+        conn.connectDeadline = earliest;
+        if (expired && !startAttempt(conn) && conn.attempts.isEmpty()) {
+            finish(conn);
+            return false;
+        }
+        return true;
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            Log.d(TAG, "IOException while closing socket");
+        }
+    }
+
+    private void registerAccepted(SelectorConnection conn) {
+        if (!running || !conn.isRunning()) {
+            finish(conn);
+            return;
+        }
+        try {
+            conn.channel.configureBlocking(false);
+            conn.key = conn.channel.register(selector, 0, conn);
+            active.add(conn);
+            connectionEstablished(conn);
+        } catch (IOException ioe) {
+            Log.d(TAG, "IOException when registering accepted socket: " + ioe);
+            finish(conn);
+        }
+    }
+
+    private void connectionEstablished(SelectorConnection conn) {
+        conn.connectDeadline = 0;
+        try {
+            conn.profile.applyTo(conn.channel.socket());
+            conn.socketSettings = SocketProfile.readFrom(conn.channel.socket(), conn.profile.getConnectTimeoutMillis());
+        } catch (IOException ioe) {
+            Log.d(TAG, "While setting socket options: " + ioe.getMessage());
+        }
+        conn.established = true;
+        listener.connectionEstablished(conn.getId(), conn.isServer);
+        if (conn.key.isValid()) {
+            conn.key.interestOps(SelectionKey.OP_READ | (conn.hasOutbound() ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                long timeout = nextTimeout();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+            } catch (IOException ioe) {
+                Log.d(TAG, "IOException in select: " + ioe);
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                SelectorConnection conn = (SelectorConnection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    handleConnect(conn, key);
+                    continue;
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handleWrite(conn);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    handleRead(conn);
+                }
+            }
+
+            handleTimers();
+        }
+
+        /* Shutting down: tear down everything that is left */
+        synchronized (tasks) {
+            exited = true;
+        }
+        runTasks();
+        for (SelectorConnection conn : new ArrayList<SelectorConnection>(active)) {
+            finish(conn);
+        }
+        try {
+            selector.close();
+        } catch (IOException ioe) {
+            Log.d(TAG, "IOException while closing selector");
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void handleConnect(SelectorConnection conn, SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (channel.finishConnect()) {
+                attemptConnected(conn, key);
+            }
+        } catch (IOException ioe) {
+            Log.d(TAG, "IOexception when connecting socket; msg: " + ioe.getMessage());
+            key.cancel();
+            closeChannel(channel);
+            conn.attempts.remove(key);
+            /* Go on to the next candidate right away. The connection fails when there are no attempts left */
+            if (!startAttempt(conn) && conn.attempts.isEmpty()) {
+                finish(conn);
+            }
+        }
+    }
+
+    private void handleWrite(SelectorConnection conn) {
+        try {
+            if (conn.flushOutbound()) {
+                if (conn.closeDeadline != 0) {
+                    finish(conn);
+                    return;
+                }
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ioe) {
+            Log.d(TAG, "While writing data: " + ioe);
+            /* finish() reports the close to the listener */
+            finish(conn);
+        }
+    }
+
+    private void handleRead(SelectorConnection conn) {
+        int id = conn.getId();
+
+        if (conn.checkSlowConsumer()) {
+            /* The peer does not read what we send, so we do not read what it sends until it catches up, which is checked on the retry */
+            conn.rxRetryAt = System.nanoTime() + RING_FULL_RETRY * 1000000L;
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+
+        /* Here we query over JNI how much space is available in the WishCore ring buffer of this connection */
+        int rbSpace = listener.getMaxInputDataLength(id);
+        if (rbSpace < 0) {
+            Log.d(TAG, "JNI says rbSpace < 0, closing connection " + id);
+            finish(conn);
+            return;
+        } else if (rbSpace == 0) {
+            /* Stop reading until the listener signals space, or we retry. The data stays in the socket meanwhile */
+            long now = System.nanoTime();
+            if (conn.stallStart == 0) {
+                conn.stallStart = now;
+            }
+            conn.rxRetryAt = now + (listener.signalsRxBufferChanges() ? RX_SIGNAL_TIMEOUT : RING_FULL_RETRY) * 1000000L;
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+
+        if (conn.stallStart != 0) {
+            conn.getStats().recordRxStall(System.nanoTime() - conn.stallStart);
+            conn.stallStart = 0;
+        }
+
+        ByteBuffer directBuffer = directReadBuffer;
+        ByteBuffer buffer = directBuffer != null ? directBuffer : readBuffer;
+        buffer.clear();
+        buffer.limit(Math.min(rbSpace, buffer.capacity()));
+        int numBytesRead;
+        try {
+            numBytesRead = conn.channel.read(buffer);
+        } catch (IOException ioe) {
+            Log.d(TAG, "IOException while reading: " + ioe.getMessage());
+            finish(conn);
+            return;
+        }
+
+        if (numBytesRead > 0 && conn.isRunning()) {
+            /* The read buffer is shared by all connections, but the listener consumes the data before returning */
+            conn.getStats().recordRead(numBytesRead);
+            if (directBuffer != null) {
+                ((DirectTcpListener) listener).dataReceivedDirect(directBuffer, numBytesRead, id);
+            } else {
+                listener.dataReceived(readBuffer.array(), readBuffer.arrayOffset(), numBytesRead, id);
+            }
+        } else if (numBytesRead < 0 && conn.isRunning()) {
+            /* Connection closed by remote peer. Because we might have unconsumed data in the the connection's ringbuffer, we must allow Wish core
+             * to consume it first before we can tear down the connection */
+            Log.d(TAG, "Connection closed by remote peer, id " + id);
+            conn.key.interestOps(0);
+            conn.draining = true;
+            conn.drainCheckAt = System.nanoTime();
+            conn.drainDeadline = conn.drainCheckAt + DRAIN_TIMEOUT * 1000000L;
+        }
+    }
+
+    /** Handle connect timeouts, ring buffer retries, drain checks and close timeouts of all the connections whose time has come */
+    private void handleTimers() {
+        long now = System.nanoTime();
+        for (SelectorConnection conn : new ArrayList<SelectorConnection>(active)) {
+            if (conn.connectDeadline != 0 && now - conn.connectDeadline >= 0 && !expireAttempts(conn, now)) {
+                continue;
+            }
+            if (conn.nextAttemptAt != 0 && now - conn.nextAttemptAt >= 0) {
+                startAttempt(conn);
+            }
+            if (conn.closeDeadline != 0) {
+                if (now - conn.closeDeadline >= 0) {
+                    Log.d(TAG, "Abandoning " + conn.getQueuedBytes() + " unsent bytes of id " + conn.getId());
+                    finish(conn);
+                }
+                continue;
+            }
+            if (conn.flushAt != 0 && now - conn.flushAt >= 0) {
+                conn.flushAt = 0;
+                if (conn.key.isValid()) {
+                    conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+            if (conn.rxRetryAt != 0 && now - conn.rxRetryAt >= 0) {
+                conn.rxRetryAt = 0;
+                if (conn.key.isValid()) {
+                    conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+            if (conn.draining && now - conn.drainCheckAt >= 0) {
+                if (listener.isAllInputDataConsumed(conn.getId())) {
+                    finish(conn);
+                } else if (now - conn.drainDeadline >= 0) {
+                    Log.d(TAG, "Abandoning unconsumed data for id " + conn.getId());
+                    finish(conn);
+                } else if (listener.signalsRxBufferChanges()) {
+                    conn.drainCheckAt = conn.drainDeadline;
+                } else {
+                    conn.drainCheckAt = Math.min(now + DRAIN_CHECK_INTERVAL * 1000000L, conn.drainDeadline);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute how long the selector may sleep until the next timer is due.
+     *
+     * @return the timeout in milliseconds, 0 for no timeout, or -1 if a timer is already due
+     */
+    private long nextTimeout() {
+        long now = System.nanoTime();
+        long earliest = Long.MAX_VALUE;
+        for (SelectorConnection conn : active) {
+            if (conn.connectDeadline != 0) {
+                earliest = Math.min(earliest, conn.connectDeadline - now);
+            }
+            if (conn.nextAttemptAt != 0) {
+                earliest = Math.min(earliest, conn.nextAttemptAt - now);
+            }
+            if (conn.rxRetryAt != 0) {
+                earliest = Math.min(earliest, conn.rxRetryAt - now);
+            }
+            if (conn.flushAt != 0) {
+                earliest = Math.min(earliest, conn.flushAt - now);
+            }
+            if (conn.draining) {
+                earliest = Math.min(earliest, conn.drainCheckAt - now);
+            }
+            if (conn.closeDeadline != 0) {
+                earliest = Math.min(earliest, conn.closeDeadline - now);
+            }
+        }
+        if (earliest == Long.MAX_VALUE) {
+            return 0;
+        }
+        long millis = (earliest + 999999L) / 1000000L;
+        return millis <= 0 ? -1 : millis;
+    }
+
+    /**
+     * Close the channel of the connection, and inform the listener in the same way as CommunicationThread does. Called on the selector thread.
+     */
+    private void finish(SelectorConnection conn) {
+        if (conn.finished) {
+            return;
+        }
+        conn.finished = true;
+        active.remove(conn);
+
+        for (SelectionKey attempt : conn.attempts.keySet()) {
+            attempt.cancel();
+            closeChannel((SocketChannel) attempt.channel());
+        }
+        conn.attempts.clear();
+        conn.nextAttemptAt = 0;
+
+        if (conn.key != null) {
+            conn.key.cancel();
+        }
+        if (conn.channel != null) {
+            try {
+                conn.channel.close();
+            } catch (IOException ioe) {
+                Log.d(TAG, "IOException while closing socket");
+            }
+        }
+        conn.draining = false;
+        conn.markClosed();
+
+        if (conn.isServer) {
+            listener.onServerClose(conn.getId());
+        } else if (!conn.established) {
+            listener.onConnectionError(conn.getId());
+        } else {
+            listener.onClose(conn.getId());
+        }
+        connections.removeConnection(conn.getId(), conn);
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stops a set of connections within a deadline. All the connections are told to stop at once, and given the first half of the deadline
+ * to close gracefully, sending what they still have queued. The ones still open then are aborted: their sockets are closed, which
+ * unblocks any read or write. The waits overlap, as every connection is already closing while the others are waited for, so the whole
+ * shutdown takes at most the deadline however many connections there are. Connections which had not stopped by the deadline are reported.
+ */
+public class ShutdownCoordinator {
+    private final String TAG = "ShutdownCoordinator";
+
+    /** Default deadline of the whole shutdown, in milliseconds */
+    public static final int DEFAULT_DEADLINE = 3*1000;
+
+    private final long deadlineMillis;
+    private final ArrayList<TcpConnection> connections = new ArrayList<TcpConnection>();
+
+    /* Results of shutdown() */
+    private final ArrayList<TcpConnection> aborted = new ArrayList<TcpConnection>();
+    private final ArrayList<TcpConnection> stragglers = new ArrayList<TcpConnection>();
+    private long elapsedMillis = 0;
+
+    public ShutdownCoordinator() {
+        this(DEFAULT_DEADLINE);
+    }
+
+    /**
+     * @param deadlineMillis the time the whole shutdown may take, in milliseconds
+     */
+    public ShutdownCoordinator(long deadlineMillis) {
+        if (deadlineMillis <= 0) {
+            throw new IllegalArgumentException("Deadline must be positive: " + deadlineMillis);
+        }
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /** Add the connections currently registered in a Connections registry */
+    public synchronized void add(Connections registry) {
+        connections.addAll(registry.getCommunicationsThreads());
+    }
+
+    /**
+     * Stop the connections, and wait until they have stopped or the deadline has passed.
+     *
+     * @return the connections which had not stopped by the deadline
+     */
+    public synchronized List<TcpConnection> shutdown() {
+        long start = System.currentTimeMillis();
+        long graceEnd = start + deadlineMillis / 2;
+        long deadline = start + deadlineMillis;
+
+        for (TcpConnection connection : connections) {
+            connection.stop();
+        }
+
+        ArrayList<TcpConnection> open = new ArrayList<TcpConnection>();
+        for (TcpConnection connection : connections) {
+            if (!connection.waitForStop(graceEnd - System.currentTimeMillis())) {
+                open.add(connection);
+            }
+        }
+
+        for (TcpConnection connection : open) {
+            Log.d(TAG, "Connection " + connection.getId() + " did not close in time, aborting it");
+            connection.abort();
+            aborted.add(connection);
+        }
+        for (TcpConnection connection : open) {
+            if (!connection.waitForStop(deadline - System.currentTimeMillis())) {
+                Log.d(TAG, "Connection " + connection.getId() + " did not stop by the deadline");
+                stragglers.add(connection);
+            }
+        }
+
+        elapsedMillis = System.currentTimeMillis() - start;
+        return new ArrayList<TcpConnection>(stragglers);
+    }
+
+    /** Returns the connections which had to be aborted, after shutdown() */
+    public synchronized List<TcpConnection> getAborted() {
+        return new ArrayList<TcpConnection>(aborted);
+    }
+
+    /** Returns the connections which had not stopped by the deadline, after shutdown() */
+    public synchronized List<TcpConnection> getStragglers() {
+        return new ArrayList<TcpConnection>(stragglers);
+    }
+
+    /** Returns the time shutdown() took, in milliseconds */
+    public synchronized long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder ids = new StringBuilder();
+        for (TcpConnection connection : stragglers) {
+            ids.append(ids.length() == 0 ? "" : ", ").append(connection.getId());
+        }
+        return "stopped " + (connections.size() - stragglers.size()) + " of " + connections.size() + " connections in " + elapsedMillis
+                + " ms, aborted: " + aborted.size() + ", stragglers: [" + ids + "]";
+    }
+}
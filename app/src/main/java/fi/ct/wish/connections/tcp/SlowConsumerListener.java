@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+/**
+ * A TcpListener which is told when the peer of a connection does not keep up with the data sent to it, and when it has caught up again.
+ * See TcpOptions.setSlowConsumerPolicy(); with SLOW_CONSUMER_CLOSE the connection is then closed, and reported with onClose() or
+ * onServerClose() as any other close.
+ */
+public interface SlowConsumerListener extends TcpListener {
+    /** The peer of a connection was found to be a slow consumer.
+     * @param id the connection id
+     * @param queuedBytes the number of bytes waiting to be written
+     * @param stallMillis the time the queued data has waited without any of it being written, in milliseconds */
+    public void onSlowConsumer(int id, int queuedBytes, long stallMillis);
+
+    /** The peer of a connection reported with onSlowConsumer() has caught up */
+    public void onSlowConsumerCaughtUp(int id);
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import android.util.Log;
+
+/**
+ * Applies the slow consumer policy of TcpOptions to a connection, for both transport engines. A connection is checked when the core
+ * sends on it, when it is about to read, and periodically by the IdleMonitor, so that a peer is found out also when the core has stopped
+ * sending to it. The check only looks at the write queue of the connection, so it costs nothing to the other connections.
+ */
+final class SlowConsumers {
+    private static final String TAG = "SlowConsumers";
+
+    private SlowConsumers() {
+    }
+
+    /**
+     * Check a connection, and apply the policy if its peer has just been found to be a slow consumer.
+     *
+     * @return true, if the connection should not be read from now: its peer is being throttled, or the connection was closed
+     */
+    static boolean check(TcpConnection connection, WriteQueue writeQueue, TcpListener listener, TcpOptions options) {
+        int state = writeQueue.checkSlowConsumer();
+        int id = connection.getId();
+        int policy = options.getSlowConsumerPolicy();
+
+        if (state == WriteQueue.BECAME_SLOW) {
+            int queuedBytes = writeQueue.getQueuedBytes();
+            long stallMillis = writeQueue.getStallMillis();
+            connection.getStats().recordSlowConsumer();
+            Log.d(TAG, "Slow consumer on connection " + id + ": " + queuedBytes + " bytes queued, nothing written for " + stallMillis + " ms");
+            if (listener instanceof SlowConsumerListener) {
+                ((SlowConsumerListener) listener).onSlowConsumer(id, queuedBytes, stallMillis);
+            }
+            if (policy == TcpOptions.SLOW_CONSUMER_CLOSE) {
+                /* The queued data would not get through anyway. This may be called from sendMessage(), with the core holding its lock, so
+                 * the connection is only aborted here; the thread of the connection reports the close to the listener, once */
+                connection.abort();
+                return true;
+            }
+        } else if (state == WriteQueue.CAUGHT_UP) {
+            Log.d(TAG, "Connection " + id + " has caught up");
+            if (listener instanceof SlowConsumerListener) {
+                ((SlowConsumerListener) listener).onSlowConsumerCaughtUp(id);
+            }
+            return false;
+        }
+        return state != WriteQueue.NOT_SLOW && policy == TcpOptions.SLOW_CONSUMER_THROTTLE;
+    }
+}
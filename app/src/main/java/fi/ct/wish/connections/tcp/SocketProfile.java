@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket settings for one kind of connection: buffer sizes, keepalive, linger, connect timeout and Nagle's algorithm. A Tcp has one profile
+ * for direct connections and one for relay sessions, and the relay control connection has the profile of its own Tcp, so that they can be
+ * tuned separately. A connection takes a copy of its profile when it is opened, so changes apply to connections opened afterwards.
+ *
+ * The defaults leave the buffer sizes to the system, which on Android and Linux also means the buffers are tuned automatically; setting
+ * a size turns that off for the socket. The settings actually applied to a connection are read back from its socket, see
+ * Tcp#getSocketSettings(int).
+ *
+ * @see Tcp#getSocketProfile()
+ * @see Tcp#getRelaySessionProfile()
+ */
+public class SocketProfile {
+    /** Default timeout of connect(), in milliseconds */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10*1000;
+
+    /** Buffer size value meaning that the system default is used */
+    public static final int SYSTEM_DEFAULT = 0;
+
+    /** Linger value meaning that SO_LINGER is off, and close() returns right away */
+    public static final int LINGER_OFF = -1;
+
+    private volatile int receiveBufferSize = SYSTEM_DEFAULT;
+    private volatile int sendBufferSize = SYSTEM_DEFAULT;
+    private volatile boolean keepAlive = false;
+    private volatile int lingerSeconds = LINGER_OFF;
+    private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT;
+    private volatile boolean tcpNoDelay = true;
+    private volatile ConnectRtt connectRtt = null;
+
+    public SocketProfile() {
+    }
+
+    /** Create a copy of a profile */
+    public SocketProfile(SocketProfile profile) {
+        receiveBufferSize = profile.receiveBufferSize;
+        sendBufferSize = profile.sendBufferSize;
+        keepAlive = profile.keepAlive;
+        lingerSeconds = profile.lingerSeconds;
+        connectTimeoutMillis = profile.connectTimeoutMillis;
+        tcpNoDelay = profile.tcpNoDelay;
+        connectRtt = profile.connectRtt;
+    }
+
+    /** Returns the size of the socket receive buffer (SO_RCVBUF), or SYSTEM_DEFAULT */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Set the size of the socket receive buffer (SO_RCVBUF). This bounds the TCP window, so on fast links with a long round trip time it
+     * limits the throughput. It is set before connecting, so that window scaling can be negotiated for it.
+     *
+     * @param bytes the buffer size, or SYSTEM_DEFAULT
+     */
+    public void setReceiveBufferSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Receive buffer size must not be negative: " + bytes);
+        }
+        receiveBufferSize = bytes;
+    }
+
+    /** Returns the size of the socket send buffer (SO_SNDBUF), or SYSTEM_DEFAULT */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Set the size of the socket send buffer (SO_SNDBUF).
+     *
+     * @param bytes the buffer size, or SYSTEM_DEFAULT
+     */
+    public void setSendBufferSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Send buffer size must not be negative: " + bytes);
+        }
+        sendBufferSize = bytes;
+    }
+
+    /** Returns true, if TCP keepalive (SO_KEEPALIVE) is enabled */
+    public boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Enable or disable TCP keepalive (SO_KEEPALIVE). The keepalive interval is set by the system, and is long, so this mainly clears out
+     * connections whose peer has disappeared for good, and keeps NAT mappings of idle connections alive on some networks.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /** Returns the SO_LINGER timeout in seconds, or LINGER_OFF */
+    public int getLingerSeconds() {
+        return lingerSeconds;
+    }
+
+    /**
+     * Set the SO_LINGER timeout. With 0 the connection is reset on close, and any unsent data is discarded. Note that the write queue of the
+     * connection is flushed before the socket is closed either way.
+     *
+     * @param seconds the linger timeout, or LINGER_OFF
+     */
+    public void setLingerSeconds(int seconds) {
+        if (seconds < LINGER_OFF) {
+            throw new IllegalArgumentException("Linger must be LINGER_OFF, or 0 or more: " + seconds);
+        }
+        lingerSeconds = seconds;
+    }
+
+    /** Returns the connect timeout, in milliseconds */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Returns the connect timeout for a destination. With a ConnectRtt it is derived from the round trip times measured to the destination,
+     * and the connect timeout of the profile is only used for destinations which have not been connected to yet.
+     *
+     * @param remote the destination
+     * @return the connect timeout, in milliseconds
+     */
+    public int getConnectTimeoutMillis(InetSocketAddress remote) {
+        ConnectRtt rtt = connectRtt;
+        return rtt != null ? rtt.getTimeoutMillis(remote, connectTimeoutMillis) : connectTimeoutMillis;
+    }
+
+    /**
+     * Set the time allowed for a connect to a single address, after which it fails. With a ConnectRtt, this is the timeout of destinations
+     * which have not been connected to yet.
+     *
+     * @param millis the connect timeout, must be positive
+     */
+    public void setConnectTimeoutMillis(int millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Connect timeout must be positive: " + millis);
+        }
+        connectTimeoutMillis = millis;
+    }
+
+    /** Returns the connect round trip times the connect timeouts are derived from, or null */
+    public ConnectRtt getConnectRtt() {
+        return connectRtt;
+    }
+
+    /**
+     * Set where the connect round trip times are recorded, and the connect timeouts derived from. Connections opened with the profile
+     * record the time their connect took, or that it timed out.
+     *
+     * @param connectRtt the round trip times, or null for the fixed connect timeout of the profile
+     */
+    public void setConnectRtt(ConnectRtt connectRtt) {
+        this.connectRtt = connectRtt;
+    }
+
+    /** Record a connect to a destination which succeeded, if the profile has a ConnectRtt */
+    void recordConnected(InetSocketAddress remote, long nanos) {
+        ConnectRtt rtt = connectRtt;
+        if (rtt != null) {
+            rtt.recordConnected(remote, nanos);
+        }
+    }
+
+    /** Record a connect to a destination which timed out, if the profile has a ConnectRtt */
+    void recordConnectTimeout(InetSocketAddress remote) {
+        ConnectRtt rtt = connectRtt;
+        if (rtt != null) {
+            rtt.recordTimeout(remote);
+        }
+    }
+
+    /** Returns true, if Nagle's algorithm is disabled (TCP_NODELAY) */
+    public boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Disable or enable Nagle's algorithm (TCP_NODELAY). It is disabled by default, as Wish messages are small and latency sensitive, and
+     * the write queue already coalesces them, see TcpOptions.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Apply the profile to a socket. This may be done both before and after the socket has connected.
+     *
+     * @throws SocketException if an option could not be set
+     */
+    public void applyTo(Socket socket) throws SocketException {
+        if (receiveBufferSize != SYSTEM_DEFAULT) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        if (sendBufferSize != SYSTEM_DEFAULT) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        socket.setKeepAlive(keepAlive);
+        if (lingerSeconds != LINGER_OFF) {
+            socket.setSoLinger(true, lingerSeconds);
+        }
+        socket.setTcpNoDelay(tcpNoDelay);
+    }
+
+    /**
+     * Read the settings in effect on a socket. The buffer sizes are what the system actually uses, which may differ from what was asked.
+     *
+     * @param socket a connected socket
+     * @param connectTimeoutMillis the connect timeout which was used for the socket
+     * @return a new profile with the settings of the socket
+     * @throws SocketException if an option could not be read
+     */
+    public static SocketProfile readFrom(Socket socket, int connectTimeoutMillis) throws SocketException {
+        SocketProfile settings = new SocketProfile();
+        settings.receiveBufferSize = socket.getReceiveBufferSize();
+        settings.sendBufferSize = socket.getSendBufferSize();
+        settings.keepAlive = socket.getKeepAlive();
+        settings.lingerSeconds = socket.getSoLinger();
+        settings.connectTimeoutMillis = connectTimeoutMillis;
+        settings.tcpNoDelay = socket.getTcpNoDelay();
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        return "receive buffer " + (receiveBufferSize == SYSTEM_DEFAULT ? "default" : receiveBufferSize + " bytes")
+                + ", send buffer " + (sendBufferSize == SYSTEM_DEFAULT ? "default" : sendBufferSize + " bytes")
+                + ", keepalive " + keepAlive
+                + ", linger " + (lingerSeconds == LINGER_OFF ? "off" : lingerSeconds + " s")
+                + ", connect timeout " + connectTimeoutMillis + " ms"
+                + (connectRtt != null ? " (adaptive)" : "")
+                + ", nodelay " + tcpNoDelay;
+    }
+}
@@ -23,18 +23,112 @@ public class Tcp {
 
     TcpServer tcpServer;
     TcpClient tcpClient;
+    SelectorTransport selectorTransport;
     public Connections connections;
 
+    /** Transport engine: one CommunicationThread per connection */
+    public static final int MODE_THREAD_PER_CONNECTION = 0;
+    /** Transport engine: all connections are driven by one SelectorTransport thread */
+    public static final int MODE_SELECTOR = 1;
+
+    private int mode;
+
+    private TcpOptions options = new TcpOptions();
+    private SocketProfile socketProfile = new SocketProfile();
+    private SocketProfile relaySessionProfile = new SocketProfile();
+    private TcpStats stats = new TcpStats();
+    private DialScheduler dialScheduler = new DialScheduler();
+    private ConnectRtt connectRtt = new ConnectRtt();
+    private IdleMonitor idleMonitor;
+
     public static final int TCP_CONNECTED = 0;  //defined in wish/wish_io.h enum tcp_event
     public static final int TCP_DISCONNECTED = 1;  //defined in wish/wish_io.h enum tcp_event
     public static final int TCP_CLIENT_CONNECTED = 2;  //defined in wish/wish_io.h enum tcp_event
     public static final int TCP_CLIENT_DISCONNECTED = 3;  //defined in wish/wish_io.h enum tcp_event
 
     public Tcp(TcpListener listener) {
+        this(listener, MODE_THREAD_PER_CONNECTION);
+    }
+
+    /**
+     * @param listener the listener which gets the callbacks of all connections
+     * @param mode the transport engine, MODE_THREAD_PER_CONNECTION or MODE_SELECTOR
+     */
+    public Tcp(TcpListener listener, int mode) {
         this._listener = listener;
-        connections = new Connections();
-        tcpServer = new TcpServer(listener, connections);
-        tcpClient = new TcpClient(listener, connections);
+        /* Direct connections and relay sessions derive their connect timeouts from the same round trip times */
+        socketProfile.setConnectRtt(connectRtt);
+        relaySessionProfile.setConnectRtt(connectRtt);
+        idleMonitor = new IdleMonitor(options);
+        connections = new Connections(idleMonitor);
+
+        if (mode == MODE_SELECTOR) {
+            selectorTransport = new SelectorTransport(listener, connections, options, stats);
+            if (!selectorTransport.start()) {
+                Log.d(TAG, "Could not start selector transport, falling back to thread per connection");
+                selectorTransport = null;
+                mode = MODE_THREAD_PER_CONNECTION;
+            }
+        }
+        this.mode = mode;
+
+        tcpServer = new TcpServer(listener, connections, selectorTransport, options, socketProfile, stats);
+        tcpClient = new TcpClient(listener, connections, options, stats, dialScheduler);
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Set the listener which is told about idle connections and dead peers, see TcpOptions.setIdleTimeoutMillis() and
+     * TcpOptions.setDeadPeerTimeoutMillis(). Dead peers are closed also without a listener.
+     */
+    public void setIdleListener(IdleListener listener) {
+        idleMonitor.setListener(listener);
+    }
+
+    /** Returns the server which accepts the inbound connections, see TcpOptions.setMaxInboundConnections() */
+    public TcpServer getServer() {
+        return tcpServer;
+    }
+
+    /** Returns the scheduler which runs the outbound connects in MODE_THREAD_PER_CONNECTION */
+    public DialScheduler getDialScheduler() {
+        return dialScheduler;
+    }
+
+    /** Returns the settings of the connections of this Tcp */
+    public TcpOptions getOptions() {
+        return options;
+    }
+
+    /** Returns the socket settings of direct connections, both accepted and opened by us. Changes apply to connections opened afterwards. */
+    public SocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    /** Returns the socket settings of connections opened to a relay server for a relay session, see connect(byte[][], int, int, boolean) */
+    public SocketProfile getRelaySessionProfile() {
+        return relaySessionProfile;
+    }
+
+    /** Returns the connect round trip times measured per destination, which the connect timeouts are derived from */
+    public ConnectRtt getConnectRtt() {
+        return connectRtt;
+    }
+
+    /**
+     * Enable direct ingress: received data is read into native memory and handed to the listener with
+     * DirectTcpListener.dataReceivedDirect(), without copying it through the Java heap. This requires MODE_SELECTOR and a DirectTcpListener.
+     *
+     * @return true, if direct ingress is now enabled
+     */
+    public boolean setDirectIngress(boolean enable) {
+        if (selectorTransport == null) {
+            return false;
+        }
+        return selectorTransport.setDirectIngress(enable);
     }
 
     public void listen(int port, WishOsJni jni) {
@@ -43,17 +137,38 @@ public class Tcp {
     }
 
     public void connect(byte[] address, int port, int id) {
-        tcpClient.start(address, port, id);
+        connect(new byte[][] { address }, port, id, false);
+    }
+
+    public void connect(byte[][] addresses, int port, int id) {
+        connect(addresses, port, id, false);
+    }
+
+    /**
+     * Open a connection to the first of several candidate addresses of the same host to answer. The connects are started one after another,
+     * a short delay apart, so that an unreachable address does not hold up the connection for the whole connect timeout.
+     *
+     * @param addresses the candidate addresses, in order of preference
+     * @param viaRelay true, if the connection is a relay session, which gets getRelaySessionProfile() instead of getSocketProfile()
+     */
+    public void connect(byte[][] addresses, int port, int id, boolean viaRelay) {
+        SocketProfile profile = viaRelay ? relaySessionProfile : socketProfile;
+        if (selectorTransport != null) {
+            selectorTransport.connect(addresses, port, id, profile);
+        }
+        else {
+            tcpClient.start(addresses, port, id, profile);
+        }
     }
 
     /**
-     * Close communication thread identified by id
+     * Close connection identified by id
      *
-     * @param id The ID of the CommunicationThread we wish to close
+     * @param id The ID of the connection we wish to close
      * @return true, if the id was valid. False if there were no such thread
      */
     public boolean closeConnection(int id) {
-        CommunicationThread connection = null;
+        TcpConnection connection = null;
         connection = connections.getConnection(id);
         if (connection != null) {
             connection.stop();
@@ -67,10 +182,65 @@ public class Tcp {
 
     public void cleanup() {
         tcpServer.stop();
+        dialScheduler.shutdown();
+        idleMonitor.stop();
+        if (selectorTransport != null) {
+            /* The selector thread closes the remaining connections before exiting, so waitForStop() on them will return */
+            selectorTransport.stop();
+        }
+    }
+
+    /**
+     * Tell the connection that its ring buffer has changed, see TcpListener.signalsRxBufferChanges()
+     *
+     * @param id the connection id
+     */
+    public void rxBufferChanged(int id) {
+        TcpConnection connection = connections.getConnection(id);
+        if (connection != null) {
+            connection.rxBufferChanged();
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written on a connection
+     *
+     * @param id the connection id
+     * @return the number of queued bytes, or -1 if there is no such connection
+     */
+    public int getQueuedBytes(int id) {
+        TcpConnection connection = connections.getConnection(id);
+        if (connection != null) {
+            return connection.getQueuedBytes();
+        }
+        return -1;
+    }
+
+    /** Returns the counters summed over all connections of this Tcp */
+    public TcpStats getStats() {
+        return stats;
+    }
+
+    /** Returns the socket settings in effect on a connection, or null if there is no such connection, or it is not connected yet */
+    public SocketProfile getSocketSettings(int id) {
+        TcpConnection connection = connections.getConnection(id);
+        if (connection != null) {
+            return connection.getSocketSettings();
+        }
+        return null;
+    }
+
+    /** Returns the counters of a connection, or null if there is no such connection */
+    public TcpStats getConnectionStats(int id) {
+        TcpConnection connection = connections.getConnection(id);
+        if (connection != null) {
+            return connection.getStats();
+        }
+        return null;
     }
 
     public void sendMessage(byte[] buffer, int id) {
-        CommunicationThread connection = null;
+        TcpConnection connection = null;
         connection = connections.getConnection(id);
         if (connection != null) {
             connection.sendMessage(buffer);
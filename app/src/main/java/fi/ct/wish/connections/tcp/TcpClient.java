@@ -23,21 +23,32 @@ public class TcpClient {
 
     private TcpListener _listener;
     private Connections _connections;
+    private TcpOptions _options;
+    private TcpStats _stats;
+    private DialScheduler _dialScheduler;
 
 
-    public TcpClient(TcpListener listener, Connections connections) {
+    public TcpClient(TcpListener listener, Connections connections, TcpOptions options, TcpStats stats, DialScheduler dialScheduler) {
         this._listener = listener;
         this._connections = connections;
+        this._options = options;
+        this._stats = stats;
+        this._dialScheduler = dialScheduler;
     }
 
 
 
-    public void start(byte[] address, int port, int id) {
-        CommunicationThread commThread = new CommunicationThread(address, port, _listener, _connections, id, false);
-        Thread thread = new Thread(commThread);
-        thread.setDaemon(true);
-        thread.start();
-        commThread.setActualThread(thread);
+    public void start(byte[] address, int port, int id, SocketProfile profile) {
+        start(new byte[][] { address }, port, id, profile);
+    }
+
+    /**
+     * Connect to the first of the candidate addresses to answer, see ConnectRace
+     */
+    public void start(byte[][] addresses, int port, int id, SocketProfile profile) {
+        CommunicationThread commThread = new CommunicationThread(addresses, port, _listener, _connections, _options, profile, _stats, id, false);
+        /* The scheduler connects the socket on a dialer thread, and starts the thread of the connection when connected */
+        _dialScheduler.dial(commThread, addresses, port);
 
     }
 
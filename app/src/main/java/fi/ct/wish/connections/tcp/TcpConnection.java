@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+/**
+ * A single Wish TCP connection, as seen by Tcp and Connections, independently of the transport engine which drives it.
+ *
+ * @see CommunicationThread the thread-per-connection engine
+ * @see SelectorTransport the single-threaded NIO engine
+ */
+public interface TcpConnection {
+    /** Returns the connection id given by Wish core */
+    public int getId();
+    /** Returns true, if the connection was accepted by our TcpServer, false if we opened it */
+    public boolean isServer();
+    /** Queue data to be sent to the remote peer. This returns right away, the data is written by the transport */
+    public void sendMessage(byte data[]);
+    /** Returns the number of bytes waiting in the write queue of the connection */
+    public int getQueuedBytes();
+    /** Request the connection to be closed. The close callback of the TcpListener is called when the connection has actually been torn down. */
+    public void stop();
+    /** Block until the connection has been torn down after stop() */
+    public void waitForStop();
+    /**
+     * Block until the connection has been torn down after stop(), or the timeout has passed.
+     *
+     * @return true, if the connection has been torn down
+     */
+    public boolean waitForStop(long timeoutMillis);
+    /** Close the connection right away, abandoning any data still queued, and unblocking its threads. Used at shutdown, see ShutdownCoordinator. */
+    public void abort();
+    /**
+     * Check whether the peer keeps up with the data sent to it, and apply TcpOptions.getSlowConsumerPolicy() if it does not.
+     *
+     * @return true, if the connection should not be read from now, as its peer is being throttled or the connection was closed
+     */
+    public boolean checkSlowConsumer();
+    /** Wake up the connection if it is waiting for the ring buffer to get space or become empty */
+    public void rxBufferChanged();
+    /** Returns the counters of this connection */
+    public TcpStats getStats();
+    /** Returns the socket settings in effect on the connection, read back from its socket, or null if it is not connected yet */
+    public SocketProfile getSocketSettings();
+}
@@ -18,7 +18,16 @@ public interface TcpListener {
     public int getMaxInputDataLength(int id);
     /** Returns true, if all the data supplied through dataReceived has been consumed */
     public boolean isAllInputDataConsumed(int id);
-    public void dataReceived(byte[] buffer, int id);
+    /** Returns true, if the listener calls Tcp.rxBufferChanged() when it has freed space in a ring buffer that it reported full through
+     * getMaxInputDataLength(), and when it has emptied a ring buffer that it reported non-empty through isAllInputDataConsumed().
+     * If false, the connection checks again after a fixed delay instead. */
+    public boolean signalsRxBufferChanges();
+    /** Deliver received data. The buffer is reused for the next read, so the listener must consume (or copy) the data before returning.
+     * @param buffer the buffer holding the data
+     * @param offset the offset of the first byte of data in buffer
+     * @param length the number of bytes of data
+     * @param id the connection id */
+    public void dataReceived(byte[] buffer, int offset, int length, int id);
     /** Callback to be called when there is some TCP error during an established connection (in client role) */
     public void onError(int id);
     /** Callback which is called when there is some TCP error during an established connection (in server role) */
@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+/**
+ * Settings of the connections of one Tcp instance. The settings are read by the connections as they need them, so changes take effect also
+ * on connections which already exist, unless otherwise noted.
+ *
+ * @see Tcp#getOptions()
+ */
+public class TcpOptions {
+    /** Default byte budget of the write queue of a connection */
+    public static final int DEFAULT_WRITE_QUEUE_LIMIT = 256*1024;
+
+    /** Default maximum size of a coalesced write */
+    public static final int DEFAULT_COALESCE_MAX_BYTES = 16*1024;
+
+    /** Size of the connection pool of the core, WISH_PORT_CONTEXT_POOL_SZ in wish_port_config.h. Every connection, inbound or outbound, takes one */
+    public static final int CORE_CONNECTION_POOL_SIZE = 50;
+
+    /** Default maximum number of inbound connections: the connection pool, less some room for the connections we open ourselves */
+    public static final int DEFAULT_MAX_INBOUND_CONNECTIONS = CORE_CONNECTION_POOL_SIZE - 10;
+
+    /** Default length of the queue of incoming connections waiting to be accepted */
+    public static final int DEFAULT_LISTEN_BACKLOG = 50;
+
+    /** Default number of queued bytes at which the peer of a connection is taken to be a slow consumer */
+    public static final int DEFAULT_SLOW_CONSUMER_BACKLOG = DEFAULT_WRITE_QUEUE_LIMIT / 2;
+
+    /** Default time queued data may wait without any of it being written, before the peer is taken to be a slow consumer */
+    public static final int DEFAULT_WRITE_STALL_TIMEOUT = 30*1000;
+
+    /** Slow consumer policy: close the connection right away, dropping its queued data. The TcpListener is told of the close as usual */
+    public static final int SLOW_CONSUMER_CLOSE = 0;
+    /** Slow consumer policy: stop reading from the peer until it has caught up, so that the core gets no more requests to answer from it */
+    public static final int SLOW_CONSUMER_THROTTLE = 1;
+    /** Slow consumer policy: only count and log it, and tell the listener if it is a SlowConsumerListener */
+    public static final int SLOW_CONSUMER_REPORT = 2;
+
+    private volatile int writeQueueLimit = DEFAULT_WRITE_QUEUE_LIMIT;
+    private volatile int slowConsumerBacklog = DEFAULT_SLOW_CONSUMER_BACKLOG;
+    private volatile int writeStallTimeoutMillis = DEFAULT_WRITE_STALL_TIMEOUT;
+    private volatile int slowConsumerPolicy = SLOW_CONSUMER_CLOSE;
+    private volatile int coalesceWindowMillis = 0;
+    private volatile int coalesceMaxBytes = DEFAULT_COALESCE_MAX_BYTES;
+    private volatile int maxInboundConnections = DEFAULT_MAX_INBOUND_CONNECTIONS;
+    private volatile int listenBacklog = DEFAULT_LISTEN_BACKLOG;
+    private volatile int idleTimeoutMillis = 0;
+    private volatile int deadPeerTimeoutMillis = 0;
+
+    /** Returns the maximum number of bytes which may be waiting to be written on one connection */
+    public int getWriteQueueLimit() {
+        return writeQueueLimit;
+    }
+
+    /**
+     * Set the maximum number of bytes which may be waiting to be written on one connection. If the core sends more than this while the peer
+     * does not keep up, the connection is closed. A single message is always accepted into an empty queue, whatever its size.
+     *
+     * @param bytes the byte budget, must be positive
+     */
+    public void setWriteQueueLimit(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Write queue limit must be positive: " + bytes);
+        }
+        writeQueueLimit = bytes;
+    }
+
+    /** Returns the number of queued bytes at which the peer of a connection is taken to be a slow consumer */
+    public int getSlowConsumerBacklog() {
+        return slowConsumerBacklog;
+    }
+
+    /**
+     * Set the number of bytes waiting in the write queue of a connection at which its peer is taken to be a slow consumer, and
+     * getSlowConsumerPolicy() is applied. The peer is taken to have caught up when the queue has drained to half of this. This should be
+     * below getWriteQueueLimit(), as data over that limit cannot be queued whatever the policy, and the connection is closed.
+     *
+     * @param bytes the backlog budget, must be positive
+     */
+    public void setSlowConsumerBacklog(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Slow consumer backlog must be positive: " + bytes);
+        }
+        slowConsumerBacklog = bytes;
+    }
+
+    /** Returns the time queued data may wait without any of it being written, in milliseconds, or 0 if write stalls are not checked */
+    public int getWriteStallTimeoutMillis() {
+        return writeStallTimeoutMillis;
+    }
+
+    /**
+     * Set the time queued data may wait without any of it being written to the socket, after which the peer is taken to be a slow
+     * consumer, however little data is queued. This happens when the peer does not read, and the socket send buffer has filled up.
+     *
+     * @param millis the write stall timeout, or 0 to only go by getSlowConsumerBacklog()
+     */
+    public void setWriteStallTimeoutMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Write stall timeout must not be negative: " + millis);
+        }
+        writeStallTimeoutMillis = millis;
+    }
+
+    /** Returns what is done with a slow consumer: SLOW_CONSUMER_CLOSE, SLOW_CONSUMER_THROTTLE or SLOW_CONSUMER_REPORT */
+    public int getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Set what is done with a connection whose peer does not keep up with the data sent to it, see getSlowConsumerBacklog() and
+     * getWriteStallTimeoutMillis(). Whatever the policy, only the slow connection is affected, as sendMessage() never waits for the peer.
+     *
+     * @param policy SLOW_CONSUMER_CLOSE (the default), SLOW_CONSUMER_THROTTLE or SLOW_CONSUMER_REPORT
+     */
+    public void setSlowConsumerPolicy(int policy) {
+        if (policy != SLOW_CONSUMER_CLOSE && policy != SLOW_CONSUMER_THROTTLE && policy != SLOW_CONSUMER_REPORT) {
+            throw new IllegalArgumentException("Unknown slow consumer policy: " + policy);
+        }
+        slowConsumerPolicy = policy;
+    }
+
+    /** Returns the time queued data may wait for more data to be written together with it, in milliseconds */
+    public int getCoalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
+    /**
+     * Set the time queued data may wait for more data, so that the messages are written to the socket together. The wait ends early when
+     * getCoalesceMaxBytes() bytes are queued. With 0 (the default) data is written right away, and only the messages which were queued
+     * while the previous write was going on are written together.
+     *
+     * @param millis the coalescing window, 0 or more
+     */
+    public void setCoalesceWindowMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Coalesce window must not be negative: " + millis);
+        }
+        coalesceWindowMillis = millis;
+    }
+
+    /** Returns the maximum number of bytes written to the socket at once */
+    public int getCoalesceMaxBytes() {
+        return coalesceMaxBytes;
+    }
+
+    /**
+     * Set the maximum number of bytes written to the socket at once, when several messages are written together. A larger single message
+     * is still written as it is.
+     *
+     * @param bytes the size threshold, must be positive
+     */
+    public void setCoalesceMaxBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Coalesce size must be positive: " + bytes);
+        }
+        coalesceMaxBytes = bytes;
+    }
+
+    /** Returns the maximum number of inbound connections open at the same time */
+    public int getMaxInboundConnections() {
+        return maxInboundConnections;
+    }
+
+    /**
+     * Set the maximum number of inbound connections open at the same time. Connections beyond this are refused by TcpServer right away,
+     * without asking the core for a connection, so that inbound connections cannot use up the connection pool of the core. The limit is
+     * capped by CORE_CONNECTION_POOL_SIZE.
+     *
+     * @param connections the limit, must be positive
+     */
+    public void setMaxInboundConnections(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Inbound connection limit must be positive: " + connections);
+        }
+        maxInboundConnections = Math.min(connections, CORE_CONNECTION_POOL_SIZE);
+    }
+
+    /** Returns the length of the queue of incoming connections waiting to be accepted */
+    public int getListenBacklog() {
+        return listenBacklog;
+    }
+
+    /**
+     * Set the length of the queue of incoming connections waiting to be accepted. This takes effect when the server socket is bound, that
+     * is, it must be set before Tcp.listen().
+     *
+     * @param connections the backlog, must be positive
+     */
+    public void setListenBacklog(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Listen backlog must be positive: " + connections);
+        }
+        listenBacklog = connections;
+    }
+
+    /** Returns the time without traffic after which a connection is reported idle, in milliseconds, or 0 if idle connections are not reported */
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Set the time without traffic in either direction after which a connection is reported to the IdleListener, see Tcp.setIdleListener().
+     * The connection is left open. It is reported again only after it has had traffic and gone idle again.
+     *
+     * @param millis the idle timeout, or 0 (the default) to not report idle connections
+     */
+    public void setIdleTimeoutMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative: " + millis);
+        }
+        idleTimeoutMillis = millis;
+    }
+
+    /** Returns the time without received data after which a connection is closed, in milliseconds, or 0 if connections are not closed for it */
+    public int getDeadPeerTimeoutMillis() {
+        return deadPeerTimeoutMillis;
+    }
+
+    /**
+     * Set the time without any data received from the peer after which the peer is taken to be dead: the IdleListener is told, and the
+     * connection is closed. This should be well over the interval at which the peer is expected to send something, such as the ping of
+     * the core. The timeouts are checked with a resolution of IdleMonitor.TICK, about half a second.
+     *
+     * @param millis the dead peer timeout, or 0 (the default) to not close silent connections
+     */
+    public void setDeadPeerTimeoutMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Dead peer timeout must not be negative: " + millis);
+        }
+        deadPeerTimeoutMillis = millis;
+    }
+}
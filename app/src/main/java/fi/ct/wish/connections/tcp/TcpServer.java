@@ -17,6 +17,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fi.ct.wish.os.WishOsJni;
 
@@ -24,19 +26,45 @@ public class TcpServer implements Runnable {
 
     private final String TAG = "TcpServer";
 
+    private final int ACCEPT_BACKOFF_MIN = 100;     /* Time to wait after a failure to bind or accept, doubled on each failure in a row, in milliseconds */
+    private final int ACCEPT_BACKOFF_MAX = 10*1000;
+    private final int REBIND_AFTER_FAILURES = 3;    /* Accept failures in a row after which the server socket is closed and bound again */
+    private final int CORE_FULL_HOLDOFF = 1000;     /* Time to refuse connections without asking, after the core refused one, in milliseconds */
+
     private TcpListener _listener;
     private Connections _connections;
 
     private int port;
 
-    private ServerSocket serverSocket = null;
-    private boolean running = true;
+    private volatile ServerSocket serverSocket = null;
+    private volatile boolean running = true;
     private WishOsJni _jni;
 
+    /** If non-null, accepted connections are handed over to this transport instead of running them in CommunicationThreads */
+    private SelectorTransport _selectorTransport;
+
+
+    private TcpOptions _options;
+    private TcpStats _stats;
+    /** The socket settings of accepted connections */
+    private SocketProfile _profile;
+
+    /** Time (System.nanoTime) until which connections are refused without asking the core, after it refused one */
+    private long coreFullUntil = System.nanoTime();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong refusedAtLimit = new AtomicLong();
+    private final AtomicLong refusedCoreFull = new AtomicLong();
+    private final AtomicLong acceptFailures = new AtomicLong();
 
-    public TcpServer(TcpListener listener, Connections connections) {
+
+    public TcpServer(TcpListener listener, Connections connections, SelectorTransport selectorTransport, TcpOptions options, SocketProfile profile, TcpStats stats) {
         this._listener = listener;
         this._connections = connections;
+        this._selectorTransport = selectorTransport;
+        this._options = options;
+        this._profile = profile;
+        this._stats = stats;
     }
 
     public void start(int port, WishOsJni jni) {
@@ -48,55 +76,207 @@ public class TcpServer implements Runnable {
     }
 
     public void run() {
-
-        Socket socket = null;
         if (!running) {
             Log.d(TAG, "Server Stopped.");
             return;
         }
 
-        try {
-            serverSocket = new ServerSocket();
-            serverSocket.setReuseAddress(true);
-            serverSocket.bind(new InetSocketAddress(port));
-        }
-        catch (IOException ioe) {
-            Log.d(TAG, "Error creating server socket: " + ioe);
-            _listener.onListenError();
-        }
+        long backoff = 0;
+        int failures = 0;
         while (running) {
+            ServerSocket server = serverSocket;
+            if (server == null) {
+                server = openServerSocket();
+                if (server == null) {
+                    _listener.onListenError();
+                    backoff = backOff(backoff);
+                    continue;
+                }
+            }
+
+            Socket socket;
             try {
-                socket = serverSocket.accept();
-                socket.setTcpNoDelay(true); // Disable TCP Nagle algorithm
+                socket = server.accept();
             } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
                 Log.d(TAG, "Error accepting: " + e);
+                acceptFailures.incrementAndGet();
                 _listener.onListenError();
+                if (++failures >= REBIND_AFTER_FAILURES) {
+                    /* The socket itself may be broken, for instance after the interface went away; bind a new one */
+                    Log.d(TAG, failures + " accept failures in a row, binding the server socket again");
+                    closeServerSocket(server);
+                    failures = 0;
+                }
+                /* The same error is likely to repeat right away, so don't spin on it */
+                backoff = backOff(backoff);
                 continue;
             }
-            /* Call WishOsJni.acceptServerConnection(), which will return the connection_id */
-            int id = _jni.acceptServerConnection();
-            if (id < 0) {
-                Log.d(TAG, "Could not accept the connection for Wish communications");
+            backoff = 0;
+            failures = 0;
+            admit(socket);
+        }
+    }
+
+    /**
+     * Create and bind the server socket.
+     *
+     * @return the server socket, or null if it could not be bound
+     */
+    private ServerSocket openServerSocket() {
+        ServerSocket server = null;
+        try {
+            if (_selectorTransport != null) {
+                /* The accepted sockets must have a SocketChannel, which is only the case if the server socket has one */
+                server = ServerSocketChannel.open().socket();
+            }
+            else {
+                server = new ServerSocket();
+            }
+            server.setReuseAddress(true);
+            if (_profile.getReceiveBufferSize() != SocketProfile.SYSTEM_DEFAULT) {
+                /* Accepted sockets inherit this, and it must be set before the connection is established to take full effect */
+                server.setReceiveBufferSize(_profile.getReceiveBufferSize());
+            }
+            server.bind(new InetSocketAddress(port), _options.getListenBacklog());
+        }
+        catch (IOException ioe) {
+            Log.d(TAG, "Error creating server socket: " + ioe);
+            if (server != null) {
                 try {
-                    socket.close();
-                }
-                catch (Exception e){
+                    server.close();
+                } catch (IOException e) {
                     Log.d(TAG, "Error closing socket: " + e);
                 }
             }
-            else {
-                CommunicationThread commThread = new CommunicationThread(socket, _listener, _connections, id, true);
-                Thread thread = new Thread(commThread);
-                thread.setDaemon(true);
-                thread.start();
-                commThread.setActualThread(thread);
+            return null;
+        }
+        synchronized (this) {
+            if (!running) {
+                /* stop() was called meanwhile */
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error closing socket: " + e);
+                }
+                return null;
             }
+            serverSocket = server;
+        }
+        return server;
+    }
+
+    /** Close the server socket, unless stop() has already, so that the next round of run() binds a new one */
+    private synchronized void closeServerSocket(ServerSocket server) {
+        if (serverSocket != server) {
+            return;
         }
+        try {
+            server.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Error closing socket: " + e);
+        }
+        serverSocket = null;
+    }
+
+    /** Sleep after a failure, for twice as long as after the previous one, within ACCEPT_BACKOFF_MIN and ACCEPT_BACKOFF_MAX */
+    private long backOff(long previous) {
+        long backoff = Math.min(Math.max(previous * 2, ACCEPT_BACKOFF_MIN), ACCEPT_BACKOFF_MAX);
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+            Log.d(TAG, "Interrupted while backing off");
+        }
+        return backoff;
+    }
+
+    /**
+     * Hand an accepted socket over to the core, or refuse it. A connection is refused before the core is asked, which would take the
+     * WishOsJni lock, if there are already getMaxInboundConnections() inbound connections, if the connection pool of the core is in use,
+     * or if the core refused a connection less than CORE_FULL_HOLDOFF ago.
+     */
+    private void admit(Socket socket) {
+        if (_connections.getInboundCount() >= _options.getMaxInboundConnections()) {
+            Log.d(TAG, "Refusing connection, " + _connections.getInboundCount() + " inbound connections already");
+            refusedAtLimit.incrementAndGet();
+            refuse(socket);
+            return;
+        }
+        if (_connections.getLiveCount() >= TcpOptions.CORE_CONNECTION_POOL_SIZE || System.nanoTime() - coreFullUntil < 0) {
+            Log.d(TAG, "Refusing connection, the core has no free connections");
+            refusedCoreFull.incrementAndGet();
+            refuse(socket);
+            return;
+        }
+
+        /* Call WishOsJni.acceptServerConnection(), which will return the connection_id */
+        int id = _jni.acceptServerConnection();
+        if (id < 0) {
+            Log.d(TAG, "Could not accept the connection for Wish communications");
+            coreFullUntil = System.nanoTime() + CORE_FULL_HOLDOFF * 1000000L;
+            refusedCoreFull.incrementAndGet();
+            refuse(socket);
+            return;
+        }
+
+        accepted.incrementAndGet();
+        if (_selectorTransport != null) {
+            _selectorTransport.accept(socket.getChannel(), id, _profile);
+        }
+        else {
+            CommunicationThread commThread = new CommunicationThread(socket, _listener, _connections, _options, _profile, _stats, id, true);
+            Thread thread = new Thread(commThread);
+            thread.setDaemon(true);
+            thread.start();
+            commThread.setActualThread(thread);
+        }
+    }
 
+    /** Close a refused connection with a reset, so that the peer learns right away and no time is spent in the closing handshake */
+    private void refuse(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (IOException e) {
+            Log.d(TAG, "Error setting linger: " + e);
+        }
+        try {
+            socket.close();
+        }
+        catch (Exception e){
+            Log.d(TAG, "Error closing socket: " + e);
+        }
+    }
 
+    /** Returns the number of connections accepted and handed over to the core */
+    public long getAcceptedCount() {
+        return accepted.get();
     }
 
-    public void stop() {
+    /** Returns the number of connections refused because of getMaxInboundConnections() */
+    public long getRefusedAtLimitCount() {
+        return refusedAtLimit.get();
+    }
+
+    /** Returns the number of connections refused because the core had no free connections */
+    public long getRefusedCoreFullCount() {
+        return refusedCoreFull.get();
+    }
+
+    /** Returns the number of times accept() failed */
+    public long getAcceptFailureCount() {
+        return acceptFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "accepted: " + getAcceptedCount() + ", refused at limit: " + getRefusedAtLimitCount() + ", refused, core full: "
+                + getRefusedCoreFullCount() + ", accept failures: " + getAcceptFailureCount();
+    }
+
+    public synchronized void stop() {
+        running = false;
         try {
             if (serverSocket != null) {
                 serverSocket.close();
@@ -105,6 +285,5 @@ public class TcpServer implements Runnable {
             Log.d(TAG, "Error closeing socket: " + e);
         }
         serverSocket = null;
-        running = false;
     }
 }
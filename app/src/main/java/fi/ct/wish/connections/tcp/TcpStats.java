@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport counters. Every connection has its own instance, and it adds everything it records also to the instance of its Tcp, which so
+ * holds the totals of all connections.
+ *
+ * @see Tcp#getStats()
+ * @see Tcp#getConnectionStats(int)
+ */
+public class TcpStats {
+    private final TcpStats parent;
+
+    /* Number of times reading was stopped because the ring buffer of the core was full, and the time spent stopped */
+    private final AtomicLong rxStalls = new AtomicLong();
+    private final AtomicLong rxStallNanos = new AtomicLong();
+    private final AtomicLong rxStallMaxNanos = new AtomicLong();
+
+    /* Highest number of bytes seen waiting in a write queue, and number of times data was refused because the write queue was over its budget */
+    private final AtomicLong writeQueueMaxBytes = new AtomicLong();
+    private final AtomicLong writeQueueOverflows = new AtomicLong();
+
+    /* Number of times the peer of a connection was found to be a slow consumer, see TcpOptions.getSlowConsumerPolicy() */
+    private final AtomicLong slowConsumers = new AtomicLong();
+
+    /* Number of writes to the socket, and number of messages sent with them. Every message beyond one per write is a write (and most
+     * likely a TCP segment) saved by coalescing */
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong messagesWritten = new AtomicLong();
+
+    /* Number of bytes read, and the times (System.nanoTime) of the latest read and write, see IdleMonitor */
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long lastReadAt;
+    private volatile long lastWriteAt;
+
+    /* Number of times a connection was reported idle, and number of connections closed because the peer was silent for too long */
+    private final AtomicLong idleEvents = new AtomicLong();
+    private final AtomicLong deadPeers = new AtomicLong();
+
+    public TcpStats() {
+        this(null);
+    }
+
+    TcpStats(TcpStats parent) {
+        this.parent = parent;
+        lastReadAt = lastWriteAt = System.nanoTime();
+    }
+
+    /** Record that reading was stopped for the given time because the ring buffer was full */
+    void recordRxStall(long nanos) {
+        /* The peer was not silent, we just did not read. Count the end of the stall as a read, so it is not taken for a dead peer */
+        lastReadAt = System.nanoTime();
+        rxStalls.incrementAndGet();
+        rxStallNanos.addAndGet(nanos);
+        updateMax(rxStallMaxNanos, nanos);
+        if (parent != null) {
+            parent.recordRxStall(nanos);
+        }
+    }
+
+    /** Record the number of bytes in the write queue, after data was added to it */
+    void recordWriteQueueBytes(long bytes) {
+        updateMax(writeQueueMaxBytes, bytes);
+        if (parent != null) {
+            parent.recordWriteQueueBytes(bytes);
+        }
+    }
+
+    /** Record that data was refused because the write queue was over its budget */
+    void recordWriteQueueOverflow() {
+        writeQueueOverflows.incrementAndGet();
+        if (parent != null) {
+            parent.recordWriteQueueOverflow();
+        }
+    }
+
+    /** Record that the peer was found to be a slow consumer */
+    void recordSlowConsumer() {
+        slowConsumers.incrementAndGet();
+        if (parent != null) {
+            parent.recordSlowConsumer();
+        }
+    }
+
+    /** Record a write to the socket, which completed the given number of messages */
+    void recordWrite(int messages) {
+        lastWriteAt = System.nanoTime();
+        writes.incrementAndGet();
+        messagesWritten.addAndGet(messages);
+        if (parent != null) {
+            parent.recordWrite(messages);
+        }
+    }
+
+    /** Record data read from the socket */
+    void recordRead(int bytes) {
+        lastReadAt = System.nanoTime();
+        bytesRead.addAndGet(bytes);
+        if (parent != null) {
+            parent.recordRead(bytes);
+        }
+    }
+
+    /** Record that the connection was reported idle */
+    void recordIdle() {
+        idleEvents.incrementAndGet();
+        if (parent != null) {
+            parent.recordIdle();
+        }
+    }
+
+    /** Record that the connection was closed because nothing was received from the peer for too long */
+    void recordDeadPeer() {
+        deadPeers.incrementAndGet();
+        if (parent != null) {
+            parent.recordDeadPeer();
+        }
+    }
+
+    long getLastReadNanos() {
+        return lastReadAt;
+    }
+
+    long getLastWriteNanos() {
+        return lastWriteAt;
+    }
+
+    public long getRxStallCount() {
+        return rxStalls.get();
+    }
+
+    public long getRxStallMillis() {
+        return rxStallNanos.get() / 1000000L;
+    }
+
+    public long getMaxRxStallMillis() {
+        return rxStallMaxNanos.get() / 1000000L;
+    }
+
+    public long getMaxWriteQueueBytes() {
+        return writeQueueMaxBytes.get();
+    }
+
+    public long getWriteQueueOverflowCount() {
+        return writeQueueOverflows.get();
+    }
+
+    public long getSlowConsumerCount() {
+        return slowConsumers.get();
+    }
+
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    public long getMessagesWritten() {
+        return messagesWritten.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getIdleCount() {
+        return idleEvents.get();
+    }
+
+    public long getDeadPeerCount() {
+        return deadPeers.get();
+    }
+
+    /** Returns the number of writes saved by coalescing messages */
+    public long getWritesSaved() {
+        return Math.max(0, getMessagesWritten() - getWriteCount());
+    }
+
+    static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+            if (value <= current) {
+                return;
+            }
+        } while (!max.compareAndSet(current, value));
+    }
+
+    @Override
+    public String toString() {
+        return "rx stalls: " + getRxStallCount() + " (" + getRxStallMillis() + " ms, max " + getMaxRxStallMillis() + " ms)"
+                + ", write queue max " + getMaxWriteQueueBytes() + " bytes, overflows: " + getWriteQueueOverflowCount()
+                + ", slow consumers: " + getSlowConsumerCount()
+                + ", writes: " + getWriteCount() + " for " + getMessagesWritten() + " messages (" + getWritesSaved() + " saved)"
+                + ", bytes read: " + getBytesRead() + ", idle: " + getIdleCount() + ", dead peers: " + getDeadPeerCount();
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.LinkedList;
+
+/**
+ * The outbound data of one connection, waiting to be written to the socket by the transport, so that sendMessage() can return without
+ * waiting for the peer. The queue has a byte budget (TcpOptions.getWriteQueueLimit()), and data which would take it over the budget is
+ * refused.
+ *
+ * The transport takes the queued messages out in batches, so that several small messages are written to the socket together, see
+ * TcpOptions.setCoalesceWindowMillis().
+ *
+ * All methods synchronize on the queue, so a caller may also synchronize on it to make several calls atomic.
+ */
+class WriteQueue {
+    /** Maximum number of messages written at once */
+    static final int MAX_BATCH = 64;
+
+    /* Results of checkSlowConsumer() */
+    static final int NOT_SLOW = 0;
+    static final int SLOW = 1;
+    static final int BECAME_SLOW = 2;
+    static final int CAUGHT_UP = 3;
+
+    private final TcpOptions options;
+    private final TcpStats stats;
+
+    private final LinkedList<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+    /** Number of bytes in the queue, not yet written to the socket */
+    private int queuedBytes = 0;
+    /** Time (System.nanoTime) at which the queue last became non-empty */
+    private long firstQueuedAt = 0;
+    /** Time (System.nanoTime) at which data was last written to the socket, or the queue became non-empty */
+    private long lastProgressAt = 0;
+    /** Set when the peer is found to be a slow consumer, until the queue has drained to half of the slow consumer backlog */
+    private boolean slow = false;
+    /** Set by close(), after which nothing is accepted and waiters return */
+    private boolean closed = false;
+
+    /** Scratch array for the gathering write in writeTo() */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_BATCH];
+
+    WriteQueue(TcpOptions options, TcpStats stats) {
+        this.options = options;
+        this.stats = stats;
+    }
+
+    /**
+     * Add data to the end of the queue. Data is always accepted into an empty queue, otherwise only if the queue stays within its budget.
+     *
+     * @return true, if the data was queued. False if it would exceed the budget or the queue is closed
+     */
+    synchronized boolean offer(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (closed) {
+            return false;
+        }
+        if (queuedBytes > 0 && queuedBytes + length > options.getWriteQueueLimit()) {
+            stats.recordWriteQueueOverflow();
+            return false;
+        }
+        if (length == 0) {
+            return true;
+        }
+        boolean wasEmpty = buffers.isEmpty();
+        if (wasEmpty) {
+            firstQueuedAt = lastProgressAt = System.nanoTime();
+        }
+        buffers.add(buffer);
+        queuedBytes += length;
+        stats.recordWriteQueueBytes(queuedBytes);
+        if (wasEmpty || queuedBytes >= options.getCoalesceMaxBytes()) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    synchronized boolean isEmpty() {
+        return buffers.isEmpty();
+    }
+
+    synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Returns the time (System.nanoTime) at which the queued data should be written, when coalescing: when the coalescing window has passed
+     * since the oldest data was queued, or right away if enough data is queued or the queue is closed.
+     */
+    synchronized long getFlushTime() {
+        int window = options.getCoalesceWindowMillis();
+        if (window == 0 || closed || queuedBytes >= options.getCoalesceMaxBytes()) {
+            return System.nanoTime();
+        }
+        return firstQueuedAt + window * 1000000L;
+    }
+
+    /**
+     * Write as much of the queue to a non-blocking channel as it will take. The messages are handed to the channel in batches of up to
+     * TcpOptions.getCoalesceMaxBytes() bytes, each with one gathering write.
+     *
+     * @return true, if the queue is now empty
+     * @throws IOException if writing fails
+     */
+    synchronized boolean writeTo(GatheringByteChannel channel) throws IOException {
+        while (!buffers.isEmpty()) {
+            int count = collect(gather);
+            long written = count == 1 ? channel.write(gather[0]) : channel.write(gather, 0, count);
+            queuedBytes -= written;
+
+            int completed = 0;
+            while (completed < count && !gather[completed].hasRemaining()) {
+                buffers.removeFirst();
+                completed++;
+            }
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+            if (written > 0) {
+                lastProgressAt = System.nanoTime();
+                stats.recordWrite(completed);
+            }
+            if (completed < count) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until there is data in the queue and the coalescing window has passed (see getFlushTime()), and put the messages at the head of
+     * the queue into batch. The messages are not removed: the caller writes them, and then calls remove(), so that the data is counted in
+     * the queue while it is being written. The caller must not move the position of the buffers.
+     *
+     * @param batch the array to fill, at most MAX_BATCH messages are used
+     * @return the number of messages in batch, at least one, or 0 if the queue was closed and all data has been taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized int awaitBatch(ByteBuffer[] batch) throws InterruptedException {
+        while (true) {
+            if (buffers.isEmpty()) {
+                if (closed) {
+                    return 0;
+                }
+                wait();
+                continue;
+            }
+            long delay = getFlushTime() - System.nanoTime();
+            if (delay <= 0) {
+                return collect(batch);
+            }
+            wait(delay / 1000000L, (int) (delay % 1000000L));
+        }
+    }
+
+    /** Remove the given number of messages from the head of the queue, after they have been written */
+    synchronized void remove(int count) {
+        for (int i = 0; i < count && !buffers.isEmpty(); i++) {
+            queuedBytes -= buffers.removeFirst().remaining();
+        }
+        lastProgressAt = System.nanoTime();
+    }
+
+    /** Returns the time the queued data has waited without any of it being written, in milliseconds, or 0 if the queue is empty */
+    synchronized long getStallMillis() {
+        return buffers.isEmpty() ? 0 : (System.nanoTime() - lastProgressAt) / 1000000L;
+    }
+
+    /**
+     * Check whether the peer keeps up with the data queued for it. It is a slow consumer when TcpOptions.getSlowConsumerBacklog() bytes
+     * are queued, or nothing has been written for TcpOptions.getWriteStallTimeoutMillis(), and it has caught up when the queue has drained
+     * to half of the backlog and is being written again. A closed queue is not checked.
+     *
+     * @return NOT_SLOW or SLOW, or BECAME_SLOW or CAUGHT_UP if that changed with this check
+     */
+    synchronized int checkSlowConsumer() {
+        if (closed) {
+            return NOT_SLOW;
+        }
+        int backlog = options.getSlowConsumerBacklog();
+        long stallTimeout = options.getWriteStallTimeoutMillis() * 1000000L;
+        boolean stalled = stallTimeout > 0 && !buffers.isEmpty() && System.nanoTime() - lastProgressAt >= stallTimeout;
+        if (!slow) {
+            if (stalled || queuedBytes >= backlog) {
+                slow = true;
+                return BECAME_SLOW;
+            }
+            return NOT_SLOW;
+        }
+        if (!stalled && queuedBytes <= backlog / 2) {
+            slow = false;
+            return CAUGHT_UP;
+        }
+        return SLOW;
+    }
+
+    /**
+     * Stop accepting data. The data already in the queue is still handed out by awaitBatch() and writeTo(), unless discard is set.
+     *
+     * @param discard if true, the data in the queue is dropped
+     */
+    synchronized void close(boolean discard) {
+        closed = true;
+        if (discard) {
+            buffers.clear();
+            queuedBytes = 0;
+        }
+        notifyAll();
+    }
+
+    /** Put the messages at the head of the queue into batch, up to the coalescing size, but at least one. Returns the number of messages */
+    private int collect(ByteBuffer[] batch) {
+        int maxBytes = options.getCoalesceMaxBytes();
+        int limit = Math.min(batch.length, MAX_BATCH);
+        int count = 0;
+        int bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (count == limit || (count > 0 && bytes + buffer.remaining() > maxBytes)) {
+                break;
+            }
+            batch[count++] = buffer;
+            bytes += buffer.remaining();
+        }
+        return count;
+    }
+}
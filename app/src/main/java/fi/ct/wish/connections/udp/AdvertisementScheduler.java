@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.udp;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the local discovery advertisements of the core are actually sent. The core asks for its advertisements at a fixed pace, one
+ * per identity, and they are passed to the BroadcastSender only when due:
+ *
+ * - An advertisement not sent before goes out right away. After that it is due again after the minimum interval, and the interval doubles
+ *   with every send up to the maximum interval, as long as the peers stay the same. Advertisements asked for before they are due are
+ *   suppressed.
+ * - A burst, see burst(), resets the intervals, and sends all the current advertisements BURST_COUNT times, BURST_SPACING apart, without
+ *   waiting for the core. This is done when joining a network and when an app registers, so that peers find us quickly.
+ * - A peer not seen before, see onPeerSeen(), resets the intervals, so that it learns of us at the next advertisement of the core.
+ * - No more than the maximum rate of advertisements are sent per second, over all identities and bursts.
+ *
+ * The maximum interval should stay well below the time after which peers forget an advertisement.
+ */
+public class AdvertisementScheduler {
+    private final String TAG = "AdvertisementScheduler";
+
+    /** Default interval after the first send of an advertisement, in milliseconds */
+    public static final int DEFAULT_MIN_INTERVAL = 2*1000;
+    /** Default longest interval between the sends of an advertisement, in milliseconds */
+    public static final int DEFAULT_MAX_INTERVAL = 30*1000;
+    /** Default cap of advertisements sent per second */
+    public static final int DEFAULT_MAX_RATE = 10;
+
+    private final int BURST_COUNT = 3;              /* Sends of every advertisement in a burst */
+    private final int BURST_SPACING = 1000;         /* Time between the sends of a burst, in milliseconds. Interfaces may take a moment to come up */
+    private final int MAX_ADVERTISEMENTS = 16;      /* Advertisements remembered, the core has one per identity */
+    private final int MAX_PEERS = 64;               /* Peers remembered */
+    private final int EXPIRY_FACTOR = 4;            /* Advertisements and peers are forgotten when not seen for this many maximum intervals */
+
+    /** An advertisement, and when it is due */
+    private static final class Advertisement {
+        final byte[] msg;
+        long offeredAt;
+        long sentAt;
+        long intervalNanos;
+
+        Advertisement(byte[] msg) {
+            this.msg = msg;
+        }
+    }
+
+    private final BroadcastSender sender;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private volatile int minIntervalMillis = DEFAULT_MIN_INTERVAL;
+    private volatile int maxIntervalMillis = DEFAULT_MAX_INTERVAL;
+    private volatile int maxRate = DEFAULT_MAX_RATE;
+
+    /* By content, least recently asked for first. Guarded by this. */
+    private final LinkedHashMap<ByteBuffer, Advertisement> advertisements = new LinkedHashMap<ByteBuffer, Advertisement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Advertisement> eldest) {
+            return size() > MAX_ADVERTISEMENTS;
+        }
+    };
+    /* The times (System.nanoTime) the peers were last seen, by address. Guarded by this. */
+    private final LinkedHashMap<ByteBuffer, Long> peers = new LinkedHashMap<ByteBuffer, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+
+    /* The token bucket of the rate cap. Guarded by this. */
+    private double tokens = DEFAULT_MAX_RATE;
+    private long tokensAt = System.nanoTime();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong bursts = new AtomicLong();
+    private final AtomicLong newPeers = new AtomicLong();
+
+    public AdvertisementScheduler(BroadcastSender sender) {
+        this.sender = sender;
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AdvertisementScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Send an advertisement of the core, if it is due.
+     *
+     * @param msg the advertisement
+     * @return true, if it was sent
+     */
+    public synchronized boolean advertise(byte[] msg) {
+        long now = System.nanoTime();
+        ByteBuffer key = ByteBuffer.wrap(msg);
+        Advertisement ad = advertisements.get(key);
+        if (ad == null) {
+            ad = new Advertisement(msg);
+            advertisements.put(key, ad);
+        } else if (now - ad.sentAt < ad.intervalNanos) {
+            ad.offeredAt = now;
+            suppressed.incrementAndGet();
+            return false;
+        }
+        ad.offeredAt = now;
+        if (!send(ad, now)) {
+            return false;
+        }
+        long min = minIntervalMillis * 1000000L;
+        long max = Math.max(min, maxIntervalMillis * 1000000L);
+        ad.intervalNanos = ad.intervalNanos == 0 ? min : Math.min(ad.intervalNanos * 2, max);
+        return true;
+    }
+
+    /** Send all the current advertisements a few times right away, and start their intervals over. Call this on joining a network. */
+    public void burst() {
+        synchronized (this) {
+            resetIntervals();
+        }
+        bursts.incrementAndGet();
+        try {
+            for (int i = 0; i < BURST_COUNT; i++) {
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendAll();
+                    }
+                }, i * BURST_SPACING, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException ree) {
+            Log.d(TAG, "Burst after shutdown");
+        }
+    }
+
+    /**
+     * Called for every local discovery datagram received. A peer not seen within EXPIRY_FACTOR maximum intervals starts the intervals
+     * over, so that it gets our advertisements soon.
+     *
+     * @param address the address of the peer, which is not modified afterwards
+     */
+    public synchronized void onPeerSeen(byte[] address) {
+        long now = System.nanoTime();
+        Long seenAt = peers.put(ByteBuffer.wrap(address), now);
+        if (seenAt == null || now - seenAt >= expiryNanos()) {
+            newPeers.incrementAndGet();
+            resetIntervals();
+        }
+    }
+
+    /** Stop the bursts. Advertisements are no longer sent after this */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private synchronized void sendAll() {
+        long now = System.nanoTime();
+        expire(now);
+        for (Advertisement ad : advertisements.values()) {
+            send(ad, now);
+        }
+    }
+
+    /** Send an advertisement, unless the rate cap is reached */
+    private boolean send(Advertisement ad, long now) {
+        int rate = maxRate;
+        tokens = Math.min(rate, tokens + (now - tokensAt) / 1e9 * rate);
+        tokensAt = now;
+        if (tokens < 1) {
+            rateLimited.incrementAndGet();
+            return false;
+        }
+        tokens--;
+        ad.sentAt = now;
+        sender.send(ad.msg);
+        sent.incrementAndGet();
+        return true;
+    }
+
+    private void resetIntervals() {
+        for (Advertisement ad : advertisements.values()) {
+            ad.intervalNanos = 0;
+        }
+    }
+
+    /** Forget the advertisements the core no longer asks for, and the peers no longer seen */
+    private void expire(long now) {
+        long expiry = expiryNanos();
+        for (Iterator<Advertisement> i = advertisements.values().iterator(); i.hasNext(); ) {
+            if (now - i.next().offeredAt >= expiry) {
+                i.remove();
+            }
+        }
+        for (Iterator<Long> i = peers.values().iterator(); i.hasNext(); ) {
+            if (now - i.next() >= expiry) {
+                i.remove();
+            }
+        }
+    }
+
+    private long expiryNanos() {
+        return EXPIRY_FACTOR * (long) maxIntervalMillis * 1000000L;
+    }
+
+    /** Returns the interval after the first send of an advertisement, in milliseconds */
+    public int getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    /** Set the interval after the first send of an advertisement. It doubles with every send, up to the maximum interval */
+    public void setMinIntervalMillis(int millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Minimum interval must be positive: " + millis);
+        }
+        minIntervalMillis = millis;
+    }
+
+    /** Returns the longest interval between the sends of an advertisement, in milliseconds */
+    public int getMaxIntervalMillis() {
+        return maxIntervalMillis;
+    }
+
+    /** Set the longest interval between the sends of an advertisement, when the peers stay the same */
+    public void setMaxIntervalMillis(int millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Maximum interval must be positive: " + millis);
+        }
+        maxIntervalMillis = millis;
+    }
+
+    /** Returns the cap of advertisements sent per second */
+    public int getMaxRate() {
+        return maxRate;
+    }
+
+    /** Set the cap of advertisements sent per second, over all identities and bursts */
+    public void setMaxRate(int perSecond) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("Maximum rate must be positive: " + perSecond);
+        }
+        maxRate = perSecond;
+    }
+
+    /** Returns the number of advertisements sent */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /** Returns the number of advertisements of the core which were not sent, as they were not due yet */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /** Returns the number of advertisements which were not sent, as the rate cap was reached */
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    /** Returns the number of bursts */
+    public long getBurstCount() {
+        return bursts.get();
+    }
+
+    /** Returns the number of times a peer not seen before showed up */
+    public long getNewPeerCount() {
+        return newPeers.get();
+    }
+
+    /** Returns the current interval of every advertisement, in milliseconds */
+    public synchronized ArrayList<Long> getIntervalsMillis() {
+        ArrayList<Long> list = new ArrayList<Long>(advertisements.size());
+        for (Advertisement ad : advertisements.values()) {
+            list.add(ad.intervalNanos / 1000000L);
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + getSentCount() + ", suppressed " + getSuppressedCount() + ", rate limited " + getRateLimitedCount() + ", bursts "
+                + getBurstCount() + ", new peers " + getNewPeerCount() + ", intervals " + getIntervalsMillis() + " ms";
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.udp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Inet4Address;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the local discovery advertisements of the core, on a thread of its own, so that the core is not held up by it.
+ *
+ * An advertisement is sent to the broadcast address of every interface which is up and not a loopback, and on interfaces which only have
+ * IPv6, to the link-local all-nodes multicast address. The interfaces and their addresses are kept in a table, which is only read again
+ * when the connectivity changes, see refresh(), and all the datagrams are sent from one socket, which is kept open. The send latency,
+ * from send() until the datagrams are out, and the number of datagrams sent per interface are kept for diagnostics.
+ *
+ * If a multicast group is set, see setMulticastGroup(), the advertisements are sent to the group on every IPv4 interface instead of to
+ * its broadcast address, so that only the hosts which have joined the group are woken up.
+ */
+public class BroadcastSender {
+    private final String TAG = "BroadcastSender";
+
+    private final int PORT = 9090;              /* The local discovery port, see UdpServer */
+    private final int MAX_QUEUED = 64;          /* Advertisements waiting to be sent, beyond this they are dropped */
+
+    /** The IPv6 link-local all-nodes multicast address, ff02::1. IPv6 has no broadcast, this reaches the same hosts */
+    private static final byte[] IPV6_ALL_NODES = { (byte) 0xff, 0x02, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x01 };
+
+    /** The counters of one interface */
+    public static final class InterfaceStats {
+        private final String name;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private InterfaceStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the number of datagrams sent on the interface */
+        public long getSentCount() {
+            return sent.get();
+        }
+
+        /** Returns the number of datagrams which could not be sent on the interface */
+        public long getFailedCount() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": sent " + getSentCount() + ", failed " + getFailedCount();
+        }
+    }
+
+    /** A destination of the advertisements: a broadcast or multicast address, and the interface it is on */
+    private static final class Target {
+        final InetAddress address;
+        final InterfaceStats stats;
+        /** The interface an IPv4 multicast is sent on, null for broadcasts and for IPv6, whose address has the scope */
+        final NetworkInterface networkInterface;
+
+        Target(InetAddress address, InterfaceStats stats, NetworkInterface networkInterface) {
+            this.address = address;
+            this.stats = stats;
+            this.networkInterface = networkInterface;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /* Only used on the sender thread */
+    private MulticastSocket socket = null;
+    private List<Target> targets = null;
+
+    /** Set by refresh(), the table of targets is read again before the next send */
+    private volatile boolean stale = true;
+
+    private volatile InetAddress multicastGroup = null;
+
+    /* The counters of all the interfaces seen so far, by name. Guarded by itself. */
+    private final LinkedHashMap<String, InterfaceStats> interfaceStats = new LinkedHashMap<String, InterfaceStats>();
+
+    private final AtomicLong advertisements = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public BroadcastSender() {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BroadcastSender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Send an advertisement on all interfaces. This returns right away, the datagrams are sent by the sender thread. */
+    public void send(final byte[] msg) {
+        final long queuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendNow(msg);
+                    recordLatency(System.nanoTime() - queuedAt);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Read the interfaces and their addresses again before the next send. Call this when the network connectivity has changed. */
+    public void refresh() {
+        stale = true;
+    }
+
+    /**
+     * Send the advertisements to a multicast group instead of the broadcast addresses. Peers only receive them if they have joined the
+     * group, see DiscoveryEngine.setMulticastGroup(), so this is for networks where all the peers do.
+     *
+     * @param group an IPv4 multicast address, or null to broadcast
+     */
+    public void setMulticastGroup(InetAddress group) {
+        if (group != null && !(group instanceof Inet4Address && group.isMulticastAddress())) {
+            throw new IllegalArgumentException("Not an IPv4 multicast address: " + group);
+        }
+        multicastGroup = group;
+        stale = true;
+    }
+
+    public InetAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /** Stop the sender thread, and close the socket. Advertisements still waiting are dropped */
+    public void shutdown() {
+        executor.getQueue().clear();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeSocket();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            Log.d(TAG, "Already shut down");
+        }
+        executor.shutdown();
+    }
+
+    private void recordLatency(long nanos) {
+        advertisements.incrementAndGet();
+        latencyNanos.addAndGet(nanos);
+        long current;
+        do {
+            current = maxLatencyNanos.get();
+            if (nanos <= current) {
+                return;
+            }
+        } while (!maxLatencyNanos.compareAndSet(current, nanos));
+    }
+
+    private void sendNow(byte[] msg) {
+        if (stale || targets == null) {
+            stale = false;
+            targets = readTargets();
+            refreshes.incrementAndGet();
+        }
+        if (socket == null) {
+            try {
+                socket = new MulticastSocket();
+                socket.setBroadcast(true);
+            } catch (IOException ioe) {
+                Log.d(TAG, "Could not open socket: " + ioe);
+                closeSocket();
+                return;
+            }
+        }
+
+        for (Target target : targets) {
+            try {
+                if (target.networkInterface != null) {
+                    socket.setNetworkInterface(target.networkInterface);
+                }
+                socket.send(new DatagramPacket(msg, msg.length, target.address, PORT));
+                target.stats.sent.incrementAndGet();
+            } catch (IOException ioe) {
+                Log.d(TAG, "Exception while sending to " + target.address + " on " + target.stats.getName() + ": " + ioe);
+                target.stats.failed.incrementAndGet();
+                /* The interface may have gone away: look at the interfaces again next time */
+                stale = true;
+            }
+        }
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    /** Read the broadcast and multicast destinations of all the interfaces which are up */
+    private List<Target> readTargets() {
+        InetAddress group = multicastGroup;
+        ArrayList<Target> list = new ArrayList<Target>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            if (interfaces == null) {
+                Log.d(TAG, "NetworkInterface.getNetworkInterfaces() returns null");
+                return list;
+            }
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (networkInterface.isLoopback() || !networkInterface.isUp()) {
+                    /* No broadcasting to loopback interfaces or interfaces which are down */
+                    continue;
+                }
+                InterfaceStats stats = statsOf(networkInterface.getName());
+
+                boolean hasBroadcast = false;
+                boolean hasIpv6 = false;
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    if (interfaceAddress.getAddress() instanceof Inet6Address) {
+                        hasIpv6 = true;
+                    }
+                    InetAddress broadcast = interfaceAddress.getBroadcast();
+                    if (broadcast != null) {
+                        if (group != null && networkInterface.supportsMulticast()) {
+                            /* One datagram to the group per interface, even if it has several IPv4 addresses */
+                            if (!hasBroadcast) {
+                                list.add(new Target(group, stats, networkInterface));
+                            }
+                        } else {
+                            list.add(new Target(broadcast, stats, null));
+                        }
+                        hasBroadcast = true;
+                    }
+                }
+
+                if (!hasBroadcast && hasIpv6 && networkInterface.supportsMulticast()) {
+                    /* An IPv6-only interface: send to all nodes on the link instead. This is not done on interfaces which also have
+                     * IPv4, so that peers there do not see us twice */
+                    list.add(new Target(Inet6Address.getByAddress(null, IPV6_ALL_NODES, networkInterface), stats, null));
+                }
+            }
+        } catch (IOException ioe) {
+            Log.d(TAG, "While reading the network interfaces: " + ioe);
+        }
+        return list;
+    }
+
+    private InterfaceStats statsOf(String name) {
+        synchronized (interfaceStats) {
+            InterfaceStats stats = interfaceStats.get(name);
+            if (stats == null) {
+                stats = new InterfaceStats(name);
+                interfaceStats.put(name, stats);
+            }
+            return stats;
+        }
+    }
+
+    /** Returns the counters of all the interfaces advertised on so far */
+    public List<InterfaceStats> getInterfaceStats() {
+        synchronized (interfaceStats) {
+            return new ArrayList<InterfaceStats>(interfaceStats.values());
+        }
+    }
+
+    /** Returns the number of advertisements sent */
+    public long getAdvertisementCount() {
+        return advertisements.get();
+    }
+
+    /** Returns the number of advertisements dropped, as too many were waiting to be sent */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Returns the number of times the table of interfaces was read */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /** Returns the average time from send() until the advertisement was sent on all interfaces, in milliseconds */
+    public double getAverageLatencyMillis() {
+        long count = advertisements.get();
+        return count == 0 ? 0 : latencyNanos.get() / 1000000.0 / count;
+    }
+
+    /** Returns the longest time from send() until the advertisement was sent on all interfaces, in milliseconds */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1000000.0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("advertisements: %d, dropped: %d, refreshes: %d, latency avg %.2f ms, max %.2f ms",
+                getAdvertisementCount(), getDroppedCount(), getRefreshCount(), getAverageLatencyMillis(), getMaxLatencyMillis()));
+        for (InterfaceStats stats : getInterfaceStats()) {
+            sb.append("; ").append(stats);
+        }
+        return sb.toString();
+    }
+}
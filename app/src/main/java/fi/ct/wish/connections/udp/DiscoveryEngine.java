@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.udp;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives local discovery datagrams with a non-blocking DatagramChannel on a thread of its own. This is the alternative to UdpServer,
+ * see Udp.MODE_CHANNEL, and hands the datagrams to the same DiscoveryIngress.
+ *
+ * On every wakeup, all the datagrams waiting in the socket are received, up to MAX_BATCH, into one buffer which is reused. If the channel
+ * fails, it is closed and bound again after a back-off, and it is also bound again on request, see rebind(), for instance when the
+ * connectivity has changed. Optionally the channel joins a multicast group on every interface, so that peers can advertise to the group
+ * instead of broadcasting to every host on the network. Broadcasts are received either way.
+ *
+ * Every start() begins a new Receiver, with a thread, selector and channel of its own, so that a thread still on its way out after stop()
+ * never shares them with the next one.
+ */
+public class DiscoveryEngine {
+    private final String TAG = "DiscoveryEngine";
+
+    private final int PORT = 9090;                  /* The local discovery port */
+    private final int MAX_DATAGRAM = 512;           /* Larger datagrams are truncated, as by UdpServer */
+    private final int MAX_BATCH = 32;               /* Datagrams received per wakeup, before the rebind and stop requests are looked at */
+    private final int MIN_BACKOFF = 100;            /* First wait before binding again after a failure, in milliseconds */
+    private final int MAX_BACKOFF = 30*1000;        /* Longest wait before binding again, in milliseconds */
+    private final int STOP_TIMEOUT = 1000;          /* Time start() waits for the thread of the previous Receiver to exit, in milliseconds */
+
+    private final DiscoveryIngress ingress;
+
+    private volatile InetAddress multicastGroup = null;
+
+    /* The current receiver, null when stopped. Guarded by this */
+    private Receiver receiver;
+    /* The receiver stopped last, whose thread may not have exited yet. Guarded by this */
+    private Receiver stopped;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong wakeups = new AtomicLong();
+    private final AtomicLong binds = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public DiscoveryEngine(DiscoveryIngress ingress) {
+        this.ingress = ingress;
+    }
+
+    /**
+     * Join a multicast group, in addition to receiving broadcasts. This takes effect when the channel is next bound, see rebind().
+     * Joining needs API level 24, on older systems only broadcasts are received.
+     *
+     * @param group an IPv4 multicast address, or null to not join a group
+     */
+    public void setMulticastGroup(InetAddress group) {
+        if (group != null && !(group instanceof Inet4Address && group.isMulticastAddress())) {
+            throw new IllegalArgumentException("Not an IPv4 multicast address: " + group);
+        }
+        multicastGroup = group;
+    }
+
+    public InetAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /** Start receiving, on a thread of its own */
+    public synchronized boolean start() {
+        if (receiver != null) {
+            return true;
+        }
+        if (stopped != null) {
+            /* Let the previous receiver close its channel first, so that datagrams are not received twice */
+            stopped.join(STOP_TIMEOUT);
+            stopped = null;
+        }
+        Selector selector;
+        try {
+            selector = Selector.open();
+        } catch (IOException ioe) {
+            Log.d(TAG, "Could not open selector: " + ioe);
+            return false;
+        }
+        receiver = new Receiver(selector);
+        receiver.thread.start();
+        return true;
+    }
+
+    /** Stop receiving, and close the channel */
+    public synchronized void stop() {
+        if (receiver != null) {
+            receiver.stop();
+            stopped = receiver;
+            receiver = null;
+        }
+    }
+
+    /** Bind the channel again, for instance when the network connectivity has changed */
+    public synchronized void rebind() {
+        if (receiver != null) {
+            receiver.rebind();
+        }
+    }
+
+    /** One generation of receiving, from start() to stop(). Only stop() and rebind() are called from other threads */
+    private final class Receiver implements Runnable {
+        final Thread thread;
+        private final Selector selector;
+        private final byte[] datagram = new byte[MAX_DATAGRAM];
+        private final ByteBuffer buffer = ByteBuffer.wrap(datagram);
+        private DatagramChannel channel;
+        private volatile boolean running = true;
+        private volatile boolean rebindRequested = false;
+
+        Receiver(Selector selector) {
+            this.selector = selector;
+            thread = new Thread(this, "DiscoveryEngine");
+            thread.setDaemon(true);
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        void rebind() {
+            rebindRequested = true;
+            selector.wakeup();
+        }
+
+        void join(long millis) {
+            try {
+                thread.join(millis);
+            } catch (InterruptedException ie) {
+                Log.d(TAG, "Interrupted while waiting for the previous receiver");
+            }
+        }
+
+        public void run() {
+            int backoff = 0;
+            while (running) {
+                if (channel == null || rebindRequested) {
+                    rebindRequested = false;
+                    closeChannel();
+                    if (!openChannel()) {
+                        backoff = backOff(backoff);
+                        continue;
+                    }
+                }
+                try {
+                    selector.select();
+                    wakeups.incrementAndGet();
+                    selector.selectedKeys().clear();
+                    receiveBatch();
+                    backoff = 0;
+                } catch (IOException ioe) {
+                    if (!running) {
+                        break;
+                    }
+                    Log.d(TAG, "Error receiving, binding again: " + ioe);
+                    failures.incrementAndGet();
+                    closeChannel();
+                    backoff = backOff(backoff);
+                }
+            }
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                Log.d(TAG, "IOException while closing selector");
+            }
+        }
+
+        /** Receive the datagrams waiting in the channel, up to MAX_BATCH. The buffer wraps datagram, so there is nothing to copy */
+        private void receiveBatch() throws IOException {
+            for (int i = 0; i < MAX_BATCH && running && !rebindRequested; i++) {
+                buffer.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+                if (from == null) {
+                    return;
+                }
+                received.incrementAndGet();
+                ingress.offer(from.getAddress(), from.getPort(), datagram, buffer.position());
+            }
+        }
+
+        private boolean openChannel() {
+            DatagramChannel ch = null;
+            try {
+                ch = DatagramChannel.open();
+                ch.socket().setReuseAddress(true);
+                ch.socket().setBroadcast(true);
+                ch.socket().bind(new InetSocketAddress(PORT));
+                ch.configureBlocking(false);
+                joinGroup(ch);
+                ch.register(selector, SelectionKey.OP_READ);
+                channel = ch;
+                binds.incrementAndGet();
+                return true;
+            } catch (IOException ioe) {
+                Log.d(TAG, "Could not bind discovery channel: " + ioe);
+                failures.incrementAndGet();
+                if (ch != null) {
+                    try {
+                        ch.close();
+                    } catch (IOException e) {
+                        Log.d(TAG, "IOException while closing channel");
+                    }
+                }
+                return false;
+            }
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    /* Also cancels the key, and leaves the multicast group */
+                    channel.close();
+                } catch (IOException ioe) {
+                    Log.d(TAG, "IOException while closing channel");
+                }
+                channel = null;
+            }
+        }
+
+        /** Wait before binding again after a failure, doubling the wait each time. Returns the new back-off */
+        private int backOff(int backoff) {
+            backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+            try {
+                /* The selector has no channel now, so this only returns early on wakeup(), from stop() or rebind() */
+                selector.select(backoff);
+                selector.selectedKeys().clear();
+            } catch (IOException ioe) {
+                Log.d(TAG, "IOException while waiting: " + ioe);
+            }
+            return backoff;
+        }
+    }
+
+    /** Join the multicast group on every interface which is up and can multicast */
+    private void joinGroup(DatagramChannel ch) {
+        InetAddress group = multicastGroup;
+        if (group == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            Log.d(TAG, "Multicast discovery needs API level 24, receiving broadcasts only");
+            return;
+        }
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (networkInterface.isLoopback() || !networkInterface.isUp() || !networkInterface.supportsMulticast()) {
+                    continue;
+                }
+                try {
+                    ch.join(group, networkInterface);
+                } catch (IOException ioe) {
+                    Log.d(TAG, "Could not join " + group + " on " + networkInterface.getName() + ": " + ioe);
+                }
+            }
+        } catch (IOException ioe) {
+            Log.d(TAG, "While reading the network interfaces: " + ioe);
+        }
+    }
+
+    /** Returns the number of datagrams received */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /** Returns the number of wakeups of the receiving thread. Datagrams per wakeup is a measure of batching */
+    public long getWakeupCount() {
+        return wakeups.get();
+    }
+
+    /** Returns the number of times the channel was bound */
+    public long getBindCount() {
+        return binds.get();
+    }
+
+    /** Returns the number of times binding or receiving failed */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "received " + getReceivedCount() + " in " + getWakeupCount() + " wakeups, binds " + getBindCount() + ", failures "
+                + getFailureCount() + (multicastGroup != null ? ", group " + multicastGroup.getHostAddress() : "");
+    }
+}
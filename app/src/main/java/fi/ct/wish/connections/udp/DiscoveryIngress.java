@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.udp;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.ct.wish.connections.InetAddresses;
+
+/**
+ * Filters the received local discovery datagrams before they are handed to the UdpListener, and so to the core, whose lock every datagram
+ * would otherwise take. Datagrams from our own addresses, that is our own advertisements coming back, are dropped. So are datagrams
+ * identical to one received from the same address within the dedupe TTL: an advertisement often arrives several times at once, over
+ * several interfaces, and the core learns nothing from the copies. A peer advertises each of its identities separately, so the recent
+ * datagrams are remembered by address and payload.
+ *
+ * The TTL should be well below the advertisement interval of the core, so that every periodic advertisement still gets through and keeps
+ * the peer fresh in the core.
+ */
+public class DiscoveryIngress {
+    private final String TAG = "DiscoveryIngress";
+
+    /** Default time within which an identical datagram from the same address is dropped, in milliseconds */
+    public static final int DEFAULT_DEDUPE_TTL = 2*1000;
+
+    private final int MAX_ENTRIES = 64;                     /* Number of recent datagrams remembered for deduplication */
+    private final int LOCAL_ADDRESS_REFRESH = 30*1000;      /* Time after which our own addresses are read again, in milliseconds */
+
+    /** A datagram from an address. The payload is the first length bytes of data. */
+    private static final class Datagram {
+        InetAddress address;
+        byte[] data;
+        int length;
+        int hash;
+
+        void set(InetAddress address, byte[] data, int length) {
+            this.address = address;
+            this.data = data;
+            this.length = length;
+            int h = address.hashCode();
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + data[i];
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Datagram)) {
+                return false;
+            }
+            Datagram d = (Datagram) o;
+            if (d.hash != hash || d.length != length || !d.address.equals(address)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (d.data[i] != data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final UdpListener listener;
+    private volatile int dedupeTtlMillis = DEFAULT_DEDUPE_TTL;
+
+    /* The times (System.nanoTime) the recent datagrams were received, least recently received first. Guarded by this. */
+    private final LinkedHashMap<Datagram, Long> seen = new LinkedHashMap<Datagram, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Datagram, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    /** Used to look datagrams up in seen without copying them. Guarded by this. */
+    private final Datagram probe = new Datagram();
+
+    /* Our own addresses, replaced as a whole when they are read again */
+    private volatile HashSet<InetAddress> localAddresses = new HashSet<InetAddress>();
+    private volatile long localAddressesReadAt = 0;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong droppedOwn = new AtomicLong();
+    private final AtomicLong droppedDuplicates = new AtomicLong();
+
+    public DiscoveryIngress(UdpListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Hand a received datagram to the listener, unless it is filtered out. The listener must consume the data before returning, as the
+     * buffer is reused for the next datagram.
+     *
+     * @param address the address the datagram came from
+     * @param port the port the datagram came from
+     * @param data the buffer holding the datagram
+     * @param length the length of the datagram
+     * @return true, if the datagram was handed to the listener
+     */
+    public boolean offer(InetAddress address, int port, byte[] data, int length) {
+        received.incrementAndGet();
+        long now = System.nanoTime();
+
+        if (now - localAddressesReadAt >= LOCAL_ADDRESS_REFRESH * 1000000L || localAddressesReadAt == 0) {
+            refreshLocalAddresses();
+        }
+        if (localAddresses.contains(address)) {
+            droppedOwn.incrementAndGet();
+            return false;
+        }
+
+        long ttl = dedupeTtlMillis * 1000000L;
+        if (ttl > 0) {
+            synchronized (this) {
+                probe.set(address, data, length);
+                Long previous = seen.get(probe);
+                if (previous != null && now - previous < ttl) {
+                    droppedDuplicates.incrementAndGet();
+                    return false;
+                }
+                if (previous == null) {
+                    Datagram datagram = new Datagram();
+                    datagram.set(address, Arrays.copyOf(data, length), length);
+                    seen.put(datagram, now);
+                } else {
+                    seen.put(probe, now); /* Only the value is replaced, the key in the map is kept */
+                }
+            }
+        }
+
+        delivered.incrementAndGet();
+        /* A link-local IPv6 address keeps its scope */
+        listener.onLocalDiscoveryData(InetAddresses.toBytes(address), port, data, length);
+        return true;
+    }
+
+    /**
+     * Read our own addresses again. This is done every LOCAL_ADDRESS_REFRESH anyway, but should be called when the network connectivity
+     * changes, so that our advertisements on a new network are recognised right away.
+     */
+    public void refreshLocalAddresses() {
+        HashSet<InetAddress> addresses = new HashSet<InetAddress>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                for (Enumeration<InetAddress> e = interfaces.nextElement().getInetAddresses(); e.hasMoreElements(); ) {
+                    addresses.add(e.nextElement());
+                }
+            }
+        } catch (SocketException se) {
+            Log.d(TAG, "While getting local IP addresses: " + se);
+        }
+        localAddresses = addresses;
+        localAddressesReadAt = System.nanoTime();
+    }
+
+    /** Returns the time within which an identical datagram from the same address is dropped, in milliseconds */
+    public int getDedupeTtlMillis() {
+        return dedupeTtlMillis;
+    }
+
+    /**
+     * Set the time within which an identical datagram from the same address is dropped.
+     *
+     * @param millis the TTL, or 0 to hand every datagram to the core
+     */
+    public void setDedupeTtlMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Dedupe TTL must not be negative: " + millis);
+        }
+        dedupeTtlMillis = millis;
+    }
+
+    /** Returns the number of datagrams received */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /** Returns the number of datagrams handed to the listener */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /** Returns the number of datagrams dropped because they came from one of our own addresses */
+    public long getDroppedOwnCount() {
+        return droppedOwn.get();
+    }
+
+    /** Returns the number of datagrams dropped as repeats */
+    public long getDroppedDuplicateCount() {
+        return droppedDuplicates.get();
+    }
+
+    @Override
+    public String toString() {
+        return "received " + getReceivedCount() + ", delivered " + getDeliveredCount() + ", dropped own " + getDroppedOwnCount()
+                + ", dropped duplicates " + getDroppedDuplicateCount();
+    }
+}
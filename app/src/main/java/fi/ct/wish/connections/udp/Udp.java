@@ -11,11 +11,11 @@
  */
 package fi.ct.wish.connections.udp;
 
-import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.widget.TextView;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.DoubleBuffer;
@@ -28,19 +28,83 @@ public class Udp {
 
     private final String TAG = "Udp";
 
+    /** Discovery engine: a UdpServer, blocking on the AsyncTask pool */
+    public static final int MODE_ASYNC_TASK = 0;
+    /** Discovery engine: a DiscoveryEngine, with a non-blocking channel on a thread of its own */
+    public static final int MODE_CHANNEL = 1;
+
+    private int mode;
+
     UdpServer udpServer = null;
-    UdpClient udpClient = null;
+    DiscoveryEngine discoveryEngine = null;
+    DiscoveryIngress ingress;
+    BroadcastSender broadcastSender = new BroadcastSender();
+    AdvertisementScheduler advertisementScheduler = new AdvertisementScheduler(broadcastSender);
 
 
     public Udp(UdpListener listener) {
-        udpServer = new UdpServer(listener);
+        this(listener, MODE_ASYNC_TASK);
+    }
+
+    /**
+     * @param listener the listener which gets the local discovery datagrams
+     * @param mode the discovery engine, MODE_ASYNC_TASK or MODE_CHANNEL
+     */
+    public Udp(final UdpListener listener, int mode) {
+        this.mode = mode;
+        /* The peers seen are told to the scheduler, so that it does not back off while new peers show up */
+        ingress = new DiscoveryIngress(new UdpListener() {
+            @Override
+            public void onLocalDiscoveryData(byte[] address, int port, byte[] message, int length) {
+                advertisementScheduler.onPeerSeen(address);
+                listener.onLocalDiscoveryData(address, port, message, length);
+            }
+        });
+        if (mode == MODE_CHANNEL) {
+            discoveryEngine = new DiscoveryEngine(ingress);
+        } else {
+            udpServer = new UdpServer(ingress);
+        }
+    }
 
+    public int getMode() {
+        return mode;
     }
 
+    /** Returns the filter the received local discovery datagrams go through */
+    public DiscoveryIngress getDiscoveryIngress() {
+        return ingress;
+    }
 
+    /** Returns the discovery engine in MODE_CHANNEL, otherwise null */
+    public DiscoveryEngine getDiscoveryEngine() {
+        return discoveryEngine;
+    }
+
+    /**
+     * Advertise to, and in MODE_CHANNEL receive from, a multicast group instead of broadcasting. All the peers on the network must do
+     * the same, so this is off by default.
+     *
+     * @param group an IPv4 multicast address, or null to broadcast
+     */
+    public void setMulticastGroup(InetAddress group) {
+        broadcastSender.setMulticastGroup(group);
+        if (discoveryEngine != null) {
+            discoveryEngine.setMulticastGroup(group);
+            discoveryEngine.rebind();
+        }
+    }
 
     public void udpServer(boolean activate) {
         //Log.d(TAG, "in udpServer state: " + activate + udpServer);
+        if (discoveryEngine != null) {
+            if (activate) {
+                discoveryEngine.start();
+            } else {
+                discoveryEngine.stop();
+            }
+            return;
+        }
         if (activate == true) {
             Log.d(TAG, "execute");
             udpServer.execute();
@@ -50,29 +114,53 @@ public class Udp {
 
     }
 
+    /** Send a local discovery advertisement. This returns right away, the advertisement is sent by the BroadcastSender */
     public void sendBroadcastMessage(byte[] msg) {
-        //Log.d(TAG, "in sendBroadcastMessage");
-        if (udpClient != null) {
-            if (!udpClient.isCancelled()) {
-                udpClient.cancel(true);
-            }
-        }
+        broadcastSender.send(msg);
+    }
 
-        udpClient = new UdpClient();
-        /* See on execute() vs. executeOnExecutor() on http://stackoverflow.com/questions/4068984/running-multiple-asynctasks-at-the-same-time-not-possible */
-        udpClient.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, msg);
+    /** Send a local discovery advertisement of the core, if it is due, see AdvertisementScheduler */
+    public void advertise(byte[] msg) {
+        advertisementScheduler.advertise(msg);
+    }
+
+    /** Returns the scheduler of the local discovery advertisements */
+    public AdvertisementScheduler getAdvertisementScheduler() {
+        return advertisementScheduler;
+    }
 
+    /** Send a burst of advertisements, so that peers find us quickly. Call this when an app registers. */
+    public void burstAdvertisements() {
+        advertisementScheduler.burst();
+    }
+
+    /** Returns the sender of the local discovery advertisements */
+    public BroadcastSender getBroadcastSender() {
+        return broadcastSender;
+    }
+
+    /**
+     * Called when the network connectivity has changed: the interfaces and our own addresses are read again when next needed, and in
+     * MODE_CHANNEL the channel is bound again, so that it is on the new interfaces. The advertisements are sent in a burst, for the
+     * peers on the new network.
+     */
+    public void onConnectivityChanged() {
+        broadcastSender.refresh();
+        ingress.refreshLocalAddresses();
+        if (discoveryEngine != null) {
+            discoveryEngine.rebind();
+        }
+        advertisementScheduler.burst();
     }
 
     public void cleanup() {
 
         //Log.d(TAG, "cleanup");
 
-        if (udpClient != null) {
-            if (!udpClient.isCancelled()) {
-                //Log.d(TAG, "cancel client");
-                udpClient.cancel(true);
-            }
+        advertisementScheduler.shutdown();
+        broadcastSender.shutdown();
+        if (discoveryEngine != null) {
+            discoveryEngine.stop();
         }
         if (udpServer != null) {
             udpServer.stop();
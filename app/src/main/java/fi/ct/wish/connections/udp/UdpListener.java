@@ -12,6 +12,11 @@
 package fi.ct.wish.connections.udp;
 
 public interface UdpListener {
-    public void onLocalDiscoveryData(byte[] address, int port, byte[] message);
+    /** Deliver a local discovery datagram. The buffer is reused for the next datagram, so the listener must consume it before returning.
+     * @param address the address of the sender, as given by InetAddresses.toBytes()
+     * @param port the port of the sender
+     * @param message a buffer holding the datagram, starting at index 0
+     * @param length the length of the datagram */
+    public void onLocalDiscoveryData(byte[] address, int port, byte[] message, int length);
 
 }
@@ -36,10 +36,15 @@ public class UdpServer extends AsyncTask<Integer, DatagramPacket, String> {
     private int msgSize = 512;
     private int port = 9090;
 
-    private UdpListener _listener;
+    private DiscoveryIngress ingress;
 
-    public UdpServer(UdpListener listener) {
-        this._listener = listener;
+    public UdpServer(DiscoveryIngress ingress) {
+        this.ingress = ingress;
+    }
+
+    /** Returns the filter the received datagrams go through */
+    public DiscoveryIngress getIngress() {
+        return ingress;
     }
 
     @Override
@@ -66,10 +71,13 @@ public class UdpServer extends AsyncTask<Integer, DatagramPacket, String> {
             }
             socket.bind(new InetSocketAddress(port));
             while (!isCancelled()) {
+                /* receive() shrinks the length of the packet to that of the datagram, so it must be reset for each datagram */
+                packet.setLength(msg.length);
                 socket.receive(packet);
 
                 //Log.d(TAG, "Wld got data from address " + packet.getAddress() + " port: " + packet.getPort());
-                _listener.onLocalDiscoveryData(packet.getAddress().getAddress(), packet.getPort(), packet.getData());
+                /* The address may be IPv6, as the socket is bound to the wildcard address. The buffer is reused for the next datagram */
+                ingress.offer(packet.getAddress(), packet.getPort(), msg, packet.getLength());
             }
         } catch (Exception e) {
             return "End";
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.os;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fi.ct.wish.connections.InetAddresses;
+
+/**
+ * Wish core stores the IP address of a peer as 4 bytes (wish_ip_addr_t), so IPv6 peers found by local discovery are handed to the core as
+ * IPv4 tokens from 240.0.0.0/8, a reserved range which never appears as a real peer address. When the core then opens a connection to a
+ * token, it is mapped back to the IPv6 address.
+ *
+ * The map holds the MAX_TOKENS most recently seen IPv6 addresses.
+ */
+class AddressTokens {
+    private final int MAX_TOKENS = 1024;
+    private final int TOKEN_PREFIX = 240;
+
+    /** IPv6 address (as a String of its bytes) to token, in order of last use */
+    private final LinkedHashMap<String, Integer> tokens = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            if (size() > MAX_TOKENS) {
+                addresses.remove(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    /** Token to IPv6 address */
+    private final HashMap<Integer, byte[]> addresses = new HashMap<Integer, byte[]>();
+    private int nextToken = 1;
+
+    /**
+     * Returns the address to hand to the core: an IPv4 address as it is, or the token of an IPv6 address.
+     */
+    synchronized byte[] toCore(byte[] address) {
+        if (InetAddresses.isIpv4(address)) {
+            return address;
+        }
+        String key = Arrays.toString(address);
+        Integer token = tokens.get(key);
+        if (token == null) {
+            while (addresses.containsKey(nextToken) || nextToken == 0) {
+                nextToken = (nextToken + 1) & 0xffffff;
+            }
+            token = nextToken;
+            nextToken = (nextToken + 1) & 0xffffff;
+            tokens.put(key, token);
+            addresses.put(token, address.clone());
+        }
+        return new byte[] { (byte) TOKEN_PREFIX, (byte) (token >> 16), (byte) (token >> 8), (byte) (int) token };
+    }
+
+    /**
+     * Returns the real address of an address given by the core: the IPv6 address of a token, or else the address as it is.
+     */
+    synchronized byte[] fromCore(byte[] address) {
+        if (address.length != InetAddresses.IPV4_LENGTH || (address[0] & 0xff) != TOKEN_PREFIX) {
+            return address;
+        }
+        int token = ((address[1] & 0xff) << 16) | ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+        byte[] ipv6 = addresses.get(token);
+        return ipv6 != null ? ipv6 : address;
+    }
+}
@@ -11,7 +11,11 @@
  */
 package fi.ct.wish.os;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.util.Log;
 
@@ -19,18 +23,25 @@ import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
-import java.util.Iterator;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import fi.ct.wish.Wish;
 import fi.ct.wish.bridge.WishCoreBridge;
-import fi.ct.wish.connections.tcp.CommunicationThread;
+import fi.ct.wish.connections.InetAddresses;
+import fi.ct.wish.connections.dns.DnsListener;
+import fi.ct.wish.connections.dns.DnsResolver;
+import fi.ct.wish.connections.tcp.ConnectRtt;
+import fi.ct.wish.connections.tcp.DirectTcpListener;
+import fi.ct.wish.connections.tcp.IdleListener;
+import fi.ct.wish.connections.tcp.ShutdownCoordinator;
+import fi.ct.wish.connections.tcp.SocketProfile;
 import fi.ct.wish.connections.tcp.Tcp;
 import fi.ct.wish.connections.tcp.TcpListener;
+import fi.ct.wish.connections.tcp.TcpStats;
 import fi.ct.wish.connections.udp.Udp;
 import fi.ct.wish.connections.udp.UdpListener;
 
@@ -65,8 +76,17 @@ public class WishOsJni {
     public synchronized native boolean isRingbufferEmpty(int id);
 
     /** Feed data into the ring buffer
-     * @param id the connection id */
-    public synchronized native void feedData(int id, byte buffer[], int buffer_len);
+     * @param id the connection id
+     * @param buffer the buffer holding the data
+     * @param offset the offset of the data in buffer
+     * @param buffer_len the number of bytes to feed */
+    public synchronized native void feedData(int id, byte buffer[], int offset, int buffer_len);
+
+    /** Feed data into the ring buffer from native memory. Only the buffer reference crosses JNI; the core reads the data directly from the buffer.
+     * @param id the connection id
+     * @param buffer a direct buffer holding the data, starting at position 0
+     * @param buffer_len the number of bytes to feed */
+    public synchronized native void feedDataDirect(int id, ByteBuffer buffer, int buffer_len);
 
     /** Signal an event which has occurred on a normal Wish connections */
     public synchronized native void signalEvent(int id, int ev);
@@ -77,8 +97,8 @@ public class WishOsJni {
     /** This method yeilds to Wish so that Wish can process events related to Wish connections (such as new data arrived) */
     public synchronized native void processConnections();
 
-    /** Feed Wish local discovery (wld) data to Wish core */
-    public synchronized native void feedLocalDiscoveryData(byte inetAddrAsBytes[], int port, byte data[]);
+    /** Feed Wish local discovery (wld) data to Wish core. Only the first length bytes of data are the datagram */
+    public synchronized native void feedLocalDiscoveryData(byte inetAddrAsBytes[], int port, byte data[], int length);
 
     /** Method for signaling to Wish core that an incoming Wish connection has been accepted on the TCP server port
      * @return the connection id given by Wish core for this connection, if id < 0 then Core did not accept the connection (some error) */
@@ -90,22 +110,45 @@ public class WishOsJni {
     public synchronized native void relayControlSignalEvent(int id, int sig);
 
     /** Feed incoming TCP data related to connection identified by id */
-    public synchronized native void relayControlFeed(int id, byte data[]);
+    public synchronized native void relayControlFeed(int id, byte data[], int offset, int length);
+
+    /** Get the number of free bytes in the receive ring buffer of the relay client of a relay control connection, or -1 if there is no such relay client */
+    public synchronized native int relayControlGetRxBufferFree(int id);
+
+    /** Returns true, if the relay client has consumed all the data fed to it, or if there is no such relay client */
+    public synchronized native boolean relayControlIsRxBufferEmpty(int id);
 
     /**
      * Signal that DNS resolving completed
      *
      * @param resolveId The id of the resolver that now completed
-     * @param inetAddrAsBytes The result is in network byte order: the highest order byte of the address is in getAddress()[0]
+     * @param inetAddrAsBytes The candidate addresses, see encodeCandidates(), or null if resolving failed. The porting layer hands them back
+     *                        to connectCandidates() or relayControlConnectCandidates()
      */
     public synchronized native void dnsResolvingCompleted(int resolveId, byte inetAddrAsBytes[], int inetAddrLength);
 
     private final String TAG = "WishOsJni";
 
+    /** Time without anything received after which a Wish connection is closed, in milliseconds. The core pings its peers much more often */
+    private final int DEAD_PEER_TIMEOUT = 120*1000;
+
+    /** Time allowed for closing all the connections in cleanup(), in milliseconds */
+    private final int SHUTDOWN_DEADLINE = 3*1000;
+
     private Udp udp;
     private Tcp tcp;
     /** This is the TCP controller for relay control TCP connection */
     private Tcp relayControlTcp;
+    /** Maps the IPv6 addresses of peers to the IPv4 tokens known by the core */
+    private AddressTokens addressTokens = new AddressTokens();
+    /** Resolves the host names of peers and relay servers, see startDnsResolving() */
+    private DnsResolver dnsResolver = new DnsResolver();
+
+    /** The transport engine used for Wish connections and the relay control connection, see setTcpTransportMode() */
+    private static volatile int tcpTransportMode = Tcp.MODE_THREAD_PER_CONNECTION;
+
+    /** The engine receiving local discovery datagrams, Udp.MODE_ASYNC_TASK or Udp.MODE_CHANNEL */
+    private static final int UDP_DISCOVERY_MODE = Udp.MODE_CHANNEL;
 
     private WishFile file;
 
@@ -118,6 +161,25 @@ public class WishOsJni {
     private WifiManager.WifiLock wifiLock;
     */
 
+    /**
+     * Select the transport engine of the Wish connections and the relay control connection. With Tcp.MODE_SELECTOR, received data is also
+     * fed to the core straight from direct buffers, see Tcp.setDirectIngress(). This takes effect when the Wish service is next created,
+     * so call it before starting the service.
+     *
+     * @param mode Tcp.MODE_THREAD_PER_CONNECTION (the default) or Tcp.MODE_SELECTOR
+     */
+    public static void setTcpTransportMode(int mode) {
+        if (mode != Tcp.MODE_THREAD_PER_CONNECTION && mode != Tcp.MODE_SELECTOR) {
+            throw new IllegalArgumentException("Unknown transport mode: " + mode);
+        }
+        tcpTransportMode = mode;
+    }
+
+    /** Returns the transport engine used for the Wish connections, Tcp.MODE_THREAD_PER_CONNECTION or Tcp.MODE_SELECTOR */
+    public static int getTcpTransportMode() {
+        return tcpTransportMode;
+    }
+
     public WishOsJni(Wish wish, WishCoreBridge wishCoreBridge) {
 
         Log.d(TAG, "starting WishOSJni");
@@ -134,9 +196,16 @@ public class WishOsJni {
         /* Obtaining a Wifi "wake lock" does not seem to improve UDP broadcast reception reliability.
          * However, it might be required to allow receiving UDP packets when the unit is in powersave mode. To be investigated. */
 
-        udp = new Udp(udpListener);
-        tcp = new Tcp(tcpListener);
-        relayControlTcp = new Tcp(relayControlTcpListener);
+        udp = new Udp(udpListener, UDP_DISCOVERY_MODE);
+        int transportMode = tcpTransportMode;
+        tcp = new Tcp(tcpListener, transportMode);
+        if (transportMode == Tcp.MODE_SELECTOR) {
+            /* tcpListener takes received data straight from the direct buffers of the selector engine */
+            tcp.setDirectIngress(true);
+        }
+        tcp.getOptions().setDeadPeerTimeoutMillis(DEAD_PEER_TIMEOUT);
+        tcp.setIdleListener(idleListener);
+        relayControlTcp = new Tcp(relayControlTcpListener, transportMode);
 
         file = new WishFile(context);
 
@@ -148,6 +217,7 @@ public class WishOsJni {
 
         listen(corePort);
         udp.udpServer(true);
+        context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     /**
@@ -219,9 +289,51 @@ public class WishOsJni {
      * @param ipAddr
      * @param port
      * @param id     needs a connection id
+     * @param viaRelay true, if the connection is to a relay server for a relay session
      */
-    public void connect(byte ipAddr[], int port, int id) {
-        tcp.connect(ipAddr, port, id);
+    public void connect(byte ipAddr[], int port, int id, boolean viaRelay) {
+        tcp.connect(new byte[][] { addressTokens.fromCore(ipAddr) }, port, id, viaRelay);
+    }
+
+    /**
+     * Connect to remote host, which has several candidate addresses. This is called by the Android wish porting layer after DNS resolving,
+     * and the transport connects to the first candidate to answer.
+     *
+     * @param candidates the addresses, as encoded by encodeCandidates()
+     * @param port
+     * @param id     needs a connection id
+     * @param viaRelay true, if the connection is to a relay server for a relay session
+     */
+    public void connectCandidates(byte candidates[], int port, int id, boolean viaRelay) {
+        tcp.connect(decodeCandidates(candidates), port, id, viaRelay);
+    }
+
+    /**
+     * Encode resolved addresses into one byte array, which is passed through the porting layer: for each address, its length in one byte,
+     * followed by the address in network byte order.
+     */
+    private static byte[] encodeCandidates(ArrayList<byte[]> addresses) {
+        int length = 0;
+        for (byte[] address : addresses) {
+            length += 1 + address.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] address : addresses) {
+            buffer.put((byte) address.length);
+            buffer.put(address);
+        }
+        return buffer.array();
+    }
+
+    private static byte[][] decodeCandidates(byte[] candidates) {
+        ArrayList<byte[]> addresses = new ArrayList<byte[]>();
+        ByteBuffer buffer = ByteBuffer.wrap(candidates);
+        while (buffer.remaining() > 0) {
+            byte[] address = new byte[buffer.get() & 0xff];
+            buffer.get(address);
+            addresses.add(address);
+        }
+        return addresses.toArray(new byte[addresses.size()][]);
     }
 
 
@@ -253,7 +365,7 @@ public class WishOsJni {
 
 
     /**
-     * Send data over tcp connection.
+     * Send data over tcp connection. The data is queued and written by the transport, so this returns without waiting for the peer.
      *
      * @param buffer
      * @param id     connection id
@@ -267,23 +379,109 @@ public class WishOsJni {
     }
 
     /**
-     * Send broadcast message.
+     * Send broadcast message. The core asks for its advertisements at a fixed pace, they are only sent when due, see
+     * AdvertisementScheduler.
      *
      * @param msg
      */
     public void startBroadcastAutodiscovery(final byte[] msg) {
-        udp.sendBroadcastMessage(msg);
+        udp.advertise(msg);
+    }
+
+    /** Called when an app has registered to the core: the advertisements are sent in a burst, so that peers find the app quickly */
+    public void onAppRegistered() {
+        udp.burstAdvertisements();
+    }
+
+    /**
+     * This function is called by the Android wish porting layer, after the core has consumed data from the ring buffer of a connection whose reader
+     * was earlier told that the ring buffer is full (getRxBufferFree() returned 0) or not empty (isRingbufferEmpty() returned false).
+     * Note that this is called with the WishOsJni monitor held.
+     *
+     * @param id the connection id
+     * @param rxFree the number of free bytes in the ring buffer, or -1 if the connection no longer exists
+     * @param empty true, if the ring buffer is empty
+     */
+    public void rxBufferEvent(int id, int rxFree, boolean empty) {
+        tcp.rxBufferChanged(id);
+    }
+
+    /**
+     * Same as rxBufferEvent(), for the relay control connection, whose reader was told that the ring buffer of the relay client is full
+     * (relayControlGetRxBufferFree() returned 0) or not empty (relayControlIsRxBufferEmpty() returned false).
+     *
+     * @param id the relay control connection id
+     * @param rxFree the number of free bytes in the ring buffer, or -1 if the relay client no longer exists
+     * @param empty true, if the ring buffer is empty
+     */
+    public void relayControlRxBufferEvent(int id, int rxFree, boolean empty) {
+        relayControlTcp.rxBufferChanged(id);
+    }
+
+    /**
+     * Returns the transport counters of the Wish connections
+     */
+    public TcpStats getTcpStats() {
+        return tcp.getStats();
+    }
+
+    /** Returns the socket settings of direct Wish connections. Changes apply to connections opened afterwards. */
+    public SocketProfile getSocketProfile() {
+        return tcp.getSocketProfile();
+    }
+
+    /** Returns the socket settings of the connections opened to relay servers for relay sessions */
+    public SocketProfile getRelaySessionProfile() {
+        return tcp.getRelaySessionProfile();
+    }
+
+    /** Returns the socket settings of the relay control connection */
+    public SocketProfile getRelayControlProfile() {
+        return relayControlTcp.getSocketProfile();
     }
 
+    /** Returns the socket settings in effect on a Wish connection, or null if there is no such connection */
+    public SocketProfile getSocketSettings(int id) {
+        return tcp.getSocketSettings(id);
+    }
+
+    /** Returns the socket settings in effect on a relay control connection, or null if there is no such connection */
+    public SocketProfile getRelayControlSocketSettings(int id) {
+        return relayControlTcp.getSocketSettings(id);
+    }
+
+    /** Returns the connect round trip times of Wish connections and relay sessions, per destination */
+    public ConnectRtt getConnectRtt() {
+        return tcp.getConnectRtt();
+    }
+
+    /** Returns the connect round trip times of relay control connections, per relay server */
+    public ConnectRtt getRelayControlConnectRtt() {
+        return relayControlTcp.getConnectRtt();
+    }
+
+    private IdleListener idleListener = new IdleListener() {
+        @Override
+        public void onIdle(int id, long idleMillis) {
+            Log.d(TAG, "Connection " + id + " idle for " + idleMillis + " ms");
+        }
+
+        @Override
+        public void onDeadPeer(int id, long silentMillis) {
+            Log.d(TAG, "Nothing received on connection " + id + " for " + silentMillis + " ms, closing it");
+        }
+    };
+
     private UdpListener udpListener = new UdpListener() {
         @Override
-        public void onLocalDiscoveryData(byte[] address, int port, byte[] message) {
+        public void onLocalDiscoveryData(byte[] address, int port, byte[] message, int length) {
             //Log.d(TAG, "got local discovery data from: " + address);
-            feedLocalDiscoveryData(address, port, message);
+            /* The core only takes IPv4 addresses, an IPv6 peer is given to it as a token, see AddressTokens */
+            feedLocalDiscoveryData(addressTokens.toCore(address), port, message, length);
         }
     };
 
-    private TcpListener tcpListener = new TcpListener() {
+    private DirectTcpListener tcpListener = new DirectTcpListener() {
         @Override
         public void connectionEstablished(int id, boolean isServer) {
             Log.d(TAG, "connection established id: " + id);
@@ -303,9 +501,17 @@ public class WishOsJni {
         public boolean isAllInputDataConsumed(int id) { return isRingbufferEmpty(id); }
 
         @Override
-        public void dataReceived(byte[] buffer, int id) {
+        public boolean signalsRxBufferChanges() { return true; /* See rxBufferEvent() */ }
+
+        @Override
+        public void dataReceived(byte[] buffer, int offset, int length, int id) {
             //Log.d(TAG, "data received id: " + id);
-            feedData(id, buffer, buffer.length);
+            feedData(id, buffer, offset, length);
+        }
+
+        @Override
+        public void dataReceivedDirect(ByteBuffer buffer, int length, int id) {
+            feedDataDirect(id, buffer, length);
         }
 
         @Override
@@ -340,38 +546,69 @@ public class WishOsJni {
 
     private int startDnsResolving(final String hostName, final int resolveId) {
 
-        Thread thread = new Thread() {
-            public void run(){
-
-                try {
-                    InetAddress addresses[] = InetAddress.getAllByName(hostName);
-
-                    boolean ipv4Found = false;
-                    for (InetAddress addr : addresses){
-                        byte ipAddr[] = addr.getAddress();
-                        if (ipAddr.length == 4) {
-                            System.out.println("Resolved " + hostName + " to " + addr.getHostAddress() + ", id" + resolveId);
-                            dnsResolvingCompleted(resolveId, ipAddr, ipAddr.length); //The result is in network byte order: the highest order byte of the address is in getAddress()[0]
-                            ipv4Found = true;
-                            break;
-                        }
-                    }
-
-                    if (!ipv4Found) {
-                        throw new UnknownHostException("Resolving " + hostName + " yielded no IPv4 addresses!");
-                    }
-                } catch (UnknownHostException uhe) {
-                    System.out.println("Error Resolving " + hostName +", id" + resolveId + ": " + uhe.getMessage());
+        /* The result is delivered on a resolver thread, also when it is cached, as the porting layer expects dnsResolvingCompleted() to be
+         * called only after this has returned */
+        dnsResolver.resolve(hostName, new DnsListener() {
+            @Override
+            public void onResolved(String hostName, InetAddress[] addresses) {
+                /* All the addresses, IPv4 and IPv6, are passed on and the transport races connects to them. The address families are
+                 * interleaved (RFC 8305), so that a broken family does not make the others wait behind all of its addresses */
+                ArrayList<byte[]> candidates = interleaveFamilies(addresses);
+                for (InetAddress addr : addresses){
+                    System.out.println("Resolved " + hostName + " to " + addr.getHostAddress() + ", id" + resolveId);
+                }
+
+                if (candidates.isEmpty()) {
+                    System.out.println("Error Resolving " + hostName +", id" + resolveId + ": no addresses");
                     dnsResolvingCompleted(resolveId, null, 0);
+                    return;
                 }
+                byte encoded[] = encodeCandidates(candidates);
+                dnsResolvingCompleted(resolveId, encoded, encoded.length);
+            }
 
+            @Override
+            public void onResolveFailed(String hostName) {
+                System.out.println("Error Resolving " + hostName +", id" + resolveId);
+                dnsResolvingCompleted(resolveId, null, 0);
             }
-        };
+        });
 
-        thread.start();
+        return 0;
+    }
 
+    /**
+     * Order the addresses so that IPv4 and IPv6 alternate, starting with the family of the first address, and otherwise keeping the order
+     * of the system resolver. The addresses are in network byte order: the highest order byte of the address is in element 0.
+     */
+    private static ArrayList<byte[]> interleaveFamilies(InetAddress[] addresses) {
+        ArrayList<byte[]> first = new ArrayList<byte[]>();
+        ArrayList<byte[]> second = new ArrayList<byte[]>();
+        for (InetAddress addr : addresses) {
+            byte ipAddr[] = InetAddresses.toBytes(addr);
+            if (first.isEmpty() || InetAddresses.isIpv4(first.get(0)) == InetAddresses.isIpv4(ipAddr)) {
+                first.add(ipAddr);
+            } else {
+                second.add(ipAddr);
+            }
+        }
+        ArrayList<byte[]> candidates = new ArrayList<byte[]>();
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                candidates.add(first.get(i));
+            }
+            if (i < second.size()) {
+                candidates.add(second.get(i));
+            }
+        }
+        return candidates;
+    }
 
-        return 0;
+    /**
+     * Returns the resolver of host names, for its statistics
+     */
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
     }
 
 
@@ -396,6 +633,18 @@ public class WishOsJni {
         return relay_id;
     }
 
+    /**
+     * Same as relayControlConnect(), but for a relay server host name which resolved to several candidate addresses.
+     *
+     * @param candidates relay server addresses, as encoded by encodeCandidates()
+     * @param port relay server port
+     */
+    public synchronized int relayControlConnectCandidates(byte candidates[], int port) {
+        int relay_id = latestRelayConnectionId++;
+        relayControlTcp.connect(decodeCandidates(candidates), port, relay_id);   /* For connection ID, see comment above */
+        return relay_id;
+    }
+
     /**
      * Gracefully close a Rleay control connection
      *
@@ -430,11 +679,14 @@ public class WishOsJni {
         public final int RELAY_CONTROL_SIG_DISCONNECTED = 1;
         @Override
         public int getMaxInputDataLength(int id) {
-            return 16;  /* RELAY_CLIENT_RX_RB_LEN is defined to be 64 in wish_relay_client.h */
+            return relayControlGetRxBufferFree(id);  /* At most RELAY_CLIENT_RX_RB_LEN, 64 bytes in wish_relay_client.h */
         }
 
         @Override
-        public boolean isAllInputDataConsumed(int id) { return true; /* FIXME */ }
+        public boolean isAllInputDataConsumed(int id) { return relayControlIsRxBufferEmpty(id); }
+
+        @Override
+        public boolean signalsRxBufferChanges() { return true; /* See relayControlRxBufferEvent() */ }
 
         @Override
         public void connectionEstablished(int id, boolean isServer) {
@@ -443,9 +695,9 @@ public class WishOsJni {
         }
 
         @Override
-        public void dataReceived(byte[] buffer, int id) {
+        public void dataReceived(byte[] buffer, int offset, int length, int id) {
             //Log.d(TAG, "Relay data received");
-            relayControlFeed(id, buffer);
+            relayControlFeed(id, buffer, offset, length);
         }
 
         @Override
@@ -486,49 +738,38 @@ public class WishOsJni {
     public void cleanup() {
         Log.d(TAG, "in cleanup");
         _timer.cancel();
+        context.unregisterReceiver(connectivityReceiver);
         udp.cleanup();
         tcp.cleanup();
         relayControlTcp.cleanup();
-        ArrayList<CommunicationThread> removeList = new ArrayList<>();
-
-        Iterator<CommunicationThread> iter = tcp.connections.getCommunicationsThreads().iterator();
-        try {
-            while (iter.hasNext()) {
-                CommunicationThread cthread = iter.next();
-                //tcp.connections.removeConnection(cthread.getId()); /* Don't call removeConnection here, it will cause ConcurrentModificationException because iterator becomes stale. Instead, add to remove list and remove after loop */
-                removeList.add(cthread);
-                cthread.stop();
-                cthread.waitForThreadToStop();
-            }
-            tcp.connections.getCommunicationsThreads().removeAll(removeList);
-        } catch (ConcurrentModificationException cme) {
-            Log.d(TAG, "in cleanup:" + cme.getMessage());
-        }
-
-
-        iter = relayControlTcp.connections.getCommunicationsThreads().iterator();
-        try {
-            while (iter.hasNext()) {
-                CommunicationThread cthread = iter.next();
-                //tcp.connections.removeConnection(cthread.getId()); /* Don't call removeConnection here, it will cause ConcurrentModificationException because iterator becomes stale. Instead, add to remove list and remove after loop */
-                removeList.add(cthread);
-                cthread.stop();
-                cthread.waitForThreadToStop();
-            }
-            relayControlTcp.connections.getCommunicationsThreads().removeAll(removeList);
-        } catch (ConcurrentModificationException cme) {
-            Log.d(TAG, "in cleanup:" + cme.getMessage());
-        }
+        dnsResolver.shutdown();
+        /* Stop all the connections at once, and wait for them together, within SHUTDOWN_DEADLINE */
+        ShutdownCoordinator shutdown = new ShutdownCoordinator(SHUTDOWN_DEADLINE);
+        shutdown.add(tcp.connections);
+        shutdown.add(relayControlTcp.connections);
+        shutdown.shutdown();
+        Log.d(TAG, "Shutdown: " + shutdown);
+        Log.d(TAG, "Connections after cleanup: " + tcp.connections + ", relay control " + relayControlTcp.connections);
 
         unRegister();
     }
 
 
     /**
-     * This function will return the IP address in the Wifi network - Note that this is useful only for "local discovery" purposes
+     * This function will return the IP address in the Wifi network - Note that this is useful only for "local discovery" purposes.
+     * The address is read from WifiManager once, and again after the connectivity has changed.
      * @return The IP address (formatted as a string) of the Wifi interface
      */
     public String getWifiIP() {
+        String ip = wifiIP;
+        if (ip == null) {
+            ip = readWifiIP();
+            wifiIP = ip;
+        }
+        return ip;
+    }
+
+    private String readWifiIP() {
         WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         int ipAddress = wifiManager.getConnectionInfo().getIpAddress();
 
@@ -550,6 +791,20 @@ public class WishOsJni {
         return ipAddressString;
     }
 
+    /** The address returned by getWifiIP(), or null when it has to be read again */
+    private volatile String wifiIP = null;
+
+    /** Tells the transports about network changes: cached interface tables, addresses and host names are read again when next needed */
+    private BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Connectivity changed");
+            wifiIP = null;
+            udp.onConnectivityChanged();
+            dnsResolver.flush();
+        }
+    };
+
     private Timer _timer;
 
     private void startOneSecondTimeBase() {
@@ -160,6 +160,134 @@ static int seed_random_init() {
 }
 
 
+/* Connections whose reader has been told that the ring buffer is full (by getRxBufferFree) or not yet empty (by isRingbufferEmpty).
+ * Once the core has consumed enough data, the reader is woken with an upcall to WishOsJni.rxBufferEvent(), see notify_rx_waiters() */
+struct rx_waiter {
+    wish_connection_id_t connection_id;
+    /* If true, the waiter is woken only when the ring buffer is empty, else as soon as there is some free space */
+    bool wait_empty;
+};
+
+static struct rx_waiter rx_waiters[WISH_PORT_CONTEXT_POOL_SZ];
+static int rx_waiters_count = 0;
+
+static void add_rx_waiter(wish_connection_id_t connection_id, bool wait_empty) {
+    int i;
+    for (i = 0; i < rx_waiters_count; i++) {
+        if (rx_waiters[i].connection_id == connection_id) {
+            rx_waiters[i].wait_empty = wait_empty;
+            return;
+        }
+    }
+    if (rx_waiters_count < WISH_PORT_CONTEXT_POOL_SZ) {
+        rx_waiters[rx_waiters_count].connection_id = connection_id;
+        rx_waiters[rx_waiters_count].wait_empty = wait_empty;
+        rx_waiters_count++;
+    }
+}
+
+/* Wake the readers whose ring buffer condition is now fulfilled. Connections which no longer exist are woken too, so that their reader
+ * notices it. This is called with the WishOsJni monitor held, after the core has processed its events. */
+static void notify_rx_waiters(void) {
+    if (rx_waiters_count == 0 || wishOsJniInstance == NULL) {
+        return;
+    }
+
+    bool did_attach = false;
+    JNIEnv * my_env = NULL;
+    if (getJNIEnv(javaVM, &my_env, &did_attach)) {
+        android_wish_printf("Method invocation failure, could not get JNI env");
+        return;
+    }
+
+    jclass serviceClass = (*my_env)->GetObjectClass(my_env, wishOsJniInstance);
+    jmethodID rxBufferEventMethodId = (*my_env)->GetMethodID(my_env, serviceClass, "rxBufferEvent", "(IIZ)V");
+    (*my_env)->DeleteLocalRef(my_env, serviceClass);
+    if (rxBufferEventMethodId == NULL) {
+        android_wish_printf("Method rxBufferEvent cannot be found");
+        return;
+    }
+
+    int i = 0;
+    while (i < rx_waiters_count) {
+        struct rx_waiter waiter = rx_waiters[i];
+        wish_connection_t *ctx = wish_core_lookup_ctx_by_connection_id(core, waiter.connection_id);
+        int rx_free = -1;
+        bool empty = true;
+        if (ctx != NULL) {
+            rx_free = wish_core_get_rx_buffer_free(core, ctx);
+            empty = (rx_free == WISH_PORT_RX_RB_SZ);
+        }
+
+        if (ctx == NULL || (waiter.wait_empty ? empty : rx_free > 0)) {
+            /* Remove the waiter before the upcall, by moving the last waiter in its place */
+            rx_waiters[i] = rx_waiters[--rx_waiters_count];
+            (*my_env)->CallVoidMethod(my_env, wishOsJniInstance, rxBufferEventMethodId, waiter.connection_id, rx_free, empty);
+        }
+        else {
+            i++;
+        }
+    }
+
+    if (did_attach) {
+        detachThread(javaVM);
+    }
+}
+
+static wish_relay_client_t* wish_relay_client_get_by_id(int id);
+
+/* The reader of the relay control connection, if it has been told that the relay client's ring buffer is full (by
+ * relayControlGetRxBufferFree) or not yet empty (by relayControlIsRxBufferEmpty). There is at most one relay control connection at a time. */
+static bool relay_rx_waiting = false;
+static struct rx_waiter relay_rx_waiter;
+
+static void add_relay_rx_waiter(int id, bool wait_empty) {
+    relay_rx_waiting = true;
+    relay_rx_waiter.connection_id = id;
+    relay_rx_waiter.wait_empty = wait_empty;
+}
+
+/* Same as notify_rx_waiters(), for the relay control connection. The reader is woken with an upcall to
+ * WishOsJni.relayControlRxBufferEvent() */
+static void notify_relay_rx_waiter(void) {
+    if (!relay_rx_waiting || wishOsJniInstance == NULL) {
+        return;
+    }
+
+    int rx_free = -1;
+    bool empty = true;
+    wish_relay_client_t* relay = wish_relay_client_get_by_id(relay_rx_waiter.connection_id);
+    if (relay != NULL) {
+        rx_free = ring_buffer_space(&(relay->rx_ringbuf));
+        empty = (rx_free == RELAY_CLIENT_RX_RB_LEN);
+        if (relay_rx_waiter.wait_empty ? !empty : rx_free == 0) {
+            return;
+        }
+    }
+
+    bool did_attach = false;
+    JNIEnv * my_env = NULL;
+    if (getJNIEnv(javaVM, &my_env, &did_attach)) {
+        android_wish_printf("Method invocation failure, could not get JNI env");
+        return;
+    }
+
+    jclass serviceClass = (*my_env)->GetObjectClass(my_env, wishOsJniInstance);
+    jmethodID rxBufferEventMethodId = (*my_env)->GetMethodID(my_env, serviceClass, "relayControlRxBufferEvent", "(IIZ)V");
+    (*my_env)->DeleteLocalRef(my_env, serviceClass);
+    if (rxBufferEventMethodId == NULL) {
+        android_wish_printf("Method relayControlRxBufferEvent cannot be found");
+    }
+    else {
+        relay_rx_waiting = false;
+        (*my_env)->CallVoidMethod(my_env, wishOsJniInstance, rxBufferEventMethodId, relay_rx_waiter.connection_id, rx_free, empty);
+    }
+
+    if (did_attach) {
+        detachThread(javaVM);
+    }
+}
+
 static void process_wish_core() {
     while (1) {
         struct wish_event *ev = wish_get_next_event();
@@ -170,6 +298,8 @@ static void process_wish_core() {
             break;
         }
     }
+    notify_rx_waiters();
+    notify_relay_rx_waiter();
 }
 
 static wish_relay_client_t* wish_relay_client_get_by_id(int id) {
@@ -255,7 +385,12 @@ JNIEXPORT jint JNICALL Java_fi_ct_wish_os_WishOsJni_getRxBufferFree
         return -1;
     }
 
-    return wish_core_get_rx_buffer_free(core, ctx);
+    int rx_free = wish_core_get_rx_buffer_free(core, ctx);
+    if (rx_free == 0) {
+        /* The reader will wait until we tell it that the core has consumed some data */
+        add_rx_waiter(connection_id, false);
+    }
+    return rx_free;
 }
 
 /*
@@ -274,7 +409,12 @@ JNIEXPORT jboolean JNICALL Java_fi_ct_wish_os_WishOsJni_isRingbufferEmpty
     }
 
     /* The ring buffer is empty if the number of free bytes in ring buffer matches the size of the ring buffer */
-    return wish_core_get_rx_buffer_free(core, ctx) == WISH_PORT_RX_RB_SZ;
+    bool empty = wish_core_get_rx_buffer_free(core, ctx) == WISH_PORT_RX_RB_SZ;
+    if (!empty) {
+        /* The reader will wait until we tell it that the ring buffer has been drained */
+        add_rx_waiter(connection_id, true);
+    }
+    return empty;
 }
 
 
@@ -282,10 +422,10 @@ JNIEXPORT jboolean JNICALL Java_fi_ct_wish_os_WishOsJni_isRingbufferEmpty
 /*
  * Class:     fi_ct_wish_os_WishOsJni
  * Method:    feedData
- * Signature: (I[BI)V
+ * Signature: (I[BII)V
  */
 JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedData
-        (JNIEnv *env, jobject jthis, jint connection_id, jbyteArray java_buffer, jint buffer_len) {
+        (JNIEnv *env, jobject jthis, jint connection_id, jbyteArray java_buffer, jint offset, jint buffer_len) {
 
     if (wishOsJniInstance == NULL) {
         return;
@@ -299,35 +439,80 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedData
 
     //__android_log_print(ANDROID_LOG_DEBUG, "my_native", "feeding data to Wish, connection id %i, len = %i", connection_id, buffer_len);
 
-    jbyte *native_buffer = calloc(buffer_len, 1);
-    if (native_buffer == NULL) {
-        __android_log_print(ANDROID_LOG_DEBUG, "my_native", "native buffer allocation fails!");
+    if (offset < 0 || buffer_len < 0 || offset > (*env)->GetArrayLength(env, java_buffer) - buffer_len) {
+        android_wish_printf("feedData: Error! Bad offset %d or length %d for connection id = %d", offset, buffer_len, connection_id);
+        return;
+    }
+
+    /* The Java buffer is reused by the caller, so it can be much larger than the data. Feed straight from the Java array; no JNI calls
+     * are allowed until it is released again. */
+    jbyte *java_bytes = (*env)->GetPrimitiveArrayCritical(env, java_buffer, NULL);
+    if (java_bytes == NULL) {
+        __android_log_print(ANDROID_LOG_DEBUG, "my_native", "feedData: could not access Java buffer!");
         return;
     }
-    (*env)->GetByteArrayRegion(env, java_buffer, 0, buffer_len, native_buffer);
+    wish_core_feed(core, ctx, (unsigned char *) java_bytes + offset, buffer_len);
+    (*env)->ReleasePrimitiveArrayCritical(env, java_buffer, java_bytes, JNI_ABORT);
 
-    wish_core_feed(core, ctx, native_buffer, buffer_len);
     struct wish_event ev = { .event_type = WISH_EVENT_NEW_DATA,
                         .context = ctx };
     wish_message_processor_notify(&ev);
-    free(native_buffer);
     
     process_wish_core();
 }
 
+/*
+ * Feed data which the transport has read straight into the native memory of a direct ByteBuffer. Only the buffer reference and the length
+ * cross JNI; the core copies the data from the buffer into the ring buffer of the connection.
+ *
+ * Class:     fi_ct_wish_os_WishOsJni
+ * Method:    feedDataDirect
+ * Signature: (ILjava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedDataDirect
+        (JNIEnv *env, jobject jthis, jint connection_id, jobject java_byte_buffer, jint buffer_len) {
+
+    if (wishOsJniInstance == NULL) {
+        return;
+    }
+    wish_connection_t *ctx = wish_core_lookup_ctx_by_connection_id(core, connection_id);
+
+    if (ctx == NULL) {
+        android_wish_printf("feedDataDirect: Error! Did not find context with connection id = %d", connection_id);
+        return;
+    }
+
+    uint8_t *data = (*env)->GetDirectBufferAddress(env, java_byte_buffer);
+    if (data == NULL || buffer_len < 0 || buffer_len > (*env)->GetDirectBufferCapacity(env, java_byte_buffer)) {
+        android_wish_printf("feedDataDirect: Error! Not a direct buffer, or bad length %d", buffer_len);
+        return;
+    }
+
+    wish_core_feed(core, ctx, data, buffer_len);
+
+    struct wish_event ev = { .event_type = WISH_EVENT_NEW_DATA,
+                        .context = ctx };
+    wish_message_processor_notify(&ev);
+
+    process_wish_core();
+}
+
+#define LOCAL_DISCOVERY_MAX_LEN 512 /* Must be at least the receive buffer size, UdpServer.msgSize */
+
 /*
  * Class:     fi_ct_wish_os_WishOsJni
  * Method:    feedLocalDiscoveryData
- * Signature: ([BI[B)V
+ * Signature: ([BI[BI)V
  */
 JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedLocalDiscoveryData
-        (JNIEnv *env, jobject jthis, jbyteArray java_ipAddr, jint java_port, jbyteArray java_localDiscoveryData) {
+        (JNIEnv *env, jobject jthis, jbyteArray java_ipAddr, jint java_port, jbyteArray java_localDiscoveryData, jint java_length) {
 
     const int ipv4_addr_len = 4;
     uint8_t ipv4_addr[ipv4_addr_len];
 
     int ip_length = (*env)->GetArrayLength(env, java_ipAddr);
 
+    /* wish_ip_addr_t is IPv4 only. The Java side hands IPv6 peers to us as IPv4 tokens, which it maps back in WishOsJni.connect() */
     if (ip_length != ipv4_addr_len) {
         android_wish_printf("Unexpected IPv4 address length");
         return;
@@ -335,10 +520,14 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedLocalDiscoveryData
 
     (*env)->GetByteArrayRegion(env, java_ipAddr, 0, ipv4_addr_len, ipv4_addr);
 
-    int data_length = (*env)->GetArrayLength(env, java_localDiscoveryData);
-
-    uint8_t *data = (uint8_t *) calloc(data_length, 1);
-    (*env)->GetByteArrayRegion(env, java_localDiscoveryData, 0, data_length, data);
+    /* Only the datagram is copied, not the whole receive buffer it is in. It fits on the stack, see UdpServer */
+    uint8_t data[LOCAL_DISCOVERY_MAX_LEN];
+    int data_length = java_length;
+    if (data_length < 0 || data_length > LOCAL_DISCOVERY_MAX_LEN || data_length > (*env)->GetArrayLength(env, java_localDiscoveryData)) {
+        android_wish_printf("Unexpected local discovery data length %d", data_length);
+        return;
+    }
+    (*env)->GetByteArrayRegion(env, java_localDiscoveryData, 0, data_length, (jbyte *) data);
 
     wish_ip_addr_t ip;
     memcpy(ip.addr, ipv4_addr, ipv4_addr_len);
@@ -347,8 +536,7 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedLocalDiscoveryData
     //android_wish_printf("Local discovery: data len: %d", data_length);
 
     wish_ldiscover_feed(core, &ip, java_port, data, data_length);
-    free(data);
-    
+
     process_wish_core();
 }
 
@@ -480,7 +668,7 @@ int wish_open_connection(wish_core_t* core, wish_connection_t *new_ctx, wish_ip_
     /* For method signature strings, see:
      * http://docs.oracle.com/javase/1.5.0/docs/guide/jni/spec/types.html#wp16432 */
     jclass serviceClass = (*my_env)->GetObjectClass(my_env, wishOsJniInstance);
-    jmethodID connectMethodId = (*my_env)->GetMethodID(my_env, serviceClass, "connect", "([BII)V");
+    jmethodID connectMethodId = (*my_env)->GetMethodID(my_env, serviceClass, "connect", "([BIIZ)V");
     if (connectMethodId == NULL) {
         android_wish_printf("Method cannot be found");
         return 1;
@@ -491,7 +679,7 @@ int wish_open_connection(wish_core_t* core, wish_connection_t *new_ctx, wish_ip_
     (*my_env)->SetByteArrayRegion(my_env, java_ip, 0, ip_addr_len, ip->addr);
 
     enter_WishOsJni_monitor();
-    (*my_env)->CallVoidMethod(my_env, wishOsJniInstance, connectMethodId, java_ip, port, new_ctx->connection_id);
+    (*my_env)->CallVoidMethod(my_env, wishOsJniInstance, connectMethodId, java_ip, port, new_ctx->connection_id, (jboolean) via_relay);
     exit_WishOsJni_monitor();
 
     (*my_env)->DeleteLocalRef(my_env, java_ip);
@@ -1080,9 +1268,9 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlSignalEvent(JNIE
 /*
  * Class:     fi_ct_wish_os_WishOsJni
  * Method:    relayControlFeed
- * Signature: ([B)V
+ * Signature: (I[BII)V
  */
-JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlFeed(JNIEnv *env, jobject jthis, jint id, jbyteArray java_buffer) {
+JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlFeed(JNIEnv *env, jobject jthis, jint id, jbyteArray java_buffer, jint offset, jint buffer_len) {
 
     if (wishOsJniInstance == NULL) {
         return;
@@ -1094,22 +1282,62 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlFeed(JNIEnv *env
         return;
     }
 
-
-    int buffer_len = (*env)->GetArrayLength(env, java_buffer);
-    jbyte *native_buffer = calloc(buffer_len, 1);
-    if (native_buffer == NULL) {
-        __android_log_print(ANDROID_LOG_DEBUG, "relay client", "native buffer allocation fails!");
+    if (offset < 0 || buffer_len < 0 || offset > (*env)->GetArrayLength(env, java_buffer) - buffer_len) {
+        android_wish_printf("relayControlFeed: Bad offset %d or length %d", offset, buffer_len);
         return;
     }
-    (*env)->GetByteArrayRegion(env, java_buffer, 0, buffer_len, native_buffer);
 
-    wish_relay_client_feed(core, relay, native_buffer, buffer_len);
+    jbyte *java_bytes = (*env)->GetPrimitiveArrayCritical(env, java_buffer, NULL);
+    if (java_bytes == NULL) {
+        __android_log_print(ANDROID_LOG_DEBUG, "relay client", "relayControlFeed: could not access Java buffer!");
+        return;
+    }
+    wish_relay_client_feed(core, relay, (unsigned char *) java_bytes + offset, buffer_len);
+    (*env)->ReleasePrimitiveArrayCritical(env, java_buffer, java_bytes, JNI_ABORT);
 
     wish_relay_client_periodic(core, relay);
-    free(native_buffer);
     process_wish_core();
 }
 
+/*
+ * Class:     fi_ct_wish_os_WishOsJni
+ * Method:    relayControlGetRxBufferFree
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlGetRxBufferFree(JNIEnv *env, jobject jthis, jint id) {
+    wish_relay_client_t* relay = wish_relay_client_get_by_id(id);
+    if (relay == NULL) {
+        android_wish_printf("relayControlGetRxBufferFree: relay is NULL");
+        return -1;
+    }
+
+    int rx_free = ring_buffer_space(&(relay->rx_ringbuf));
+    if (rx_free == 0) {
+        /* The reader will wait until we tell it that the relay client has consumed some data */
+        add_relay_rx_waiter(id, false);
+    }
+    return rx_free;
+}
+
+/*
+ * Class:     fi_ct_wish_os_WishOsJni
+ * Method:    relayControlIsRxBufferEmpty
+ * Signature: (I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlIsRxBufferEmpty(JNIEnv *env, jobject jthis, jint id) {
+    wish_relay_client_t* relay = wish_relay_client_get_by_id(id);
+    if (relay == NULL) {
+        /* Let the reader exit, see isRingbufferEmpty */
+        return true;
+    }
+
+    bool empty = ring_buffer_length(&(relay->rx_ringbuf)) == 0;
+    if (!empty) {
+        add_relay_rx_waiter(id, true);
+    }
+    return empty;
+}
+
 int enter_WishOsJni_monitor(void) {
 
     JNIEnv * my_env = NULL;
@@ -1149,9 +1377,52 @@ int exit_WishOsJni_monitor(void) {
     return 0;
 }
 
+/*
+ * Open a connection to the first of the candidate addresses to answer, see WishOsJni.connectCandidates(). This is the same as
+ * wish_open_connection(), except that the Java side gets all the addresses the host name resolved to.
+ */
+static void open_connection_candidates(JNIEnv *env, wish_core_t* core, wish_connection_t *conn, jbyteArray java_candidates) {
+    jclass serviceClass = (*env)->GetObjectClass(env, wishOsJniInstance);
+    jmethodID connectMethodId = (*env)->GetMethodID(env, serviceClass, "connectCandidates", "([BIIZ)V");
+    if (connectMethodId == NULL) {
+        android_wish_printf("Method cannot be found");
+        return;
+    }
+
+    enter_WishOsJni_monitor();
+    (*env)->CallVoidMethod(env, wishOsJniInstance, connectMethodId, java_candidates, conn->remote_port, conn->connection_id, (jboolean) conn->via_relay);
+    exit_WishOsJni_monitor();
+
+    process_wish_core();
+}
+
+/*
+ * Open the relay control connection to the first of the candidate addresses to answer, see WishOsJni.relayControlConnectCandidates().
+ * This is the same as port_relay_client_open(), except that the Java side gets all the addresses the host name resolved to.
+ */
+static void relay_client_open_candidates(JNIEnv *env, wish_core_t* core, wish_relay_client_t *relay, jbyteArray java_candidates) {
+    relay->curr_state = WISH_RELAY_CLIENT_CONNECTING;
+    relay->send = relay_control_send_data;
+
+    jclass serviceClass = (*env)->GetObjectClass(env, wishOsJniInstance);
+    jmethodID connectMethodId = (*env)->GetMethodID(env, serviceClass, "relayControlConnectCandidates", "([BI)I");
+    if (connectMethodId == NULL) {
+        android_wish_printf("Method cannot be found");
+        return;
+    }
+
+    enter_WishOsJni_monitor();
+    relay->sockfd = (*env)->CallIntMethod(env, wishOsJniInstance, connectMethodId, java_candidates, relay->port);
+    exit_WishOsJni_monitor();
+
+    process_wish_core();
+}
+
 /**
  *
- * @param java_ip_bytes The result as a Java byte[] in network byte order: the highest order byte of the address is in element 0
+ * @param java_ip_bytes The candidate addresses the host name resolved to, as encoded by WishOsJni.encodeCandidates(): for each address, its
+ * length in one byte, followed by the address in network byte order. This is handed as such to the Java side, which connects to the
+ * candidates in parallel.
  */
 JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_dnsResolvingCompleted
         (JNIEnv *env, jobject jthis, jint resolve_id, jbyteArray java_ip_bytes, jint java_ip_length) {
@@ -1201,35 +1472,13 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_dnsResolvingCompleted
         return;
     }
     
-    assert(java_ip_length == 4);
-    
-    uint8_t *native_buffer = calloc(java_ip_length, 1);
-    if (native_buffer == NULL) {
-        __android_log_print(ANDROID_LOG_DEBUG, "my_native", "native buffer allocation fails in Java_fi_ct_wish_os_WishOsJni_dnsResolvingCompleted!");
-        return;
-    }
-    
-    (*env)->GetByteArrayRegion(env, java_ip_bytes, 0, java_ip_length, native_buffer);
-    
-    wish_ip_addr_t ip;
-    memset(&ip, 0, sizeof(wish_ip_addr_t));
-  
-    ip.addr[0] = native_buffer[0];
-    ip.addr[1] = native_buffer[1];
-    ip.addr[2] = native_buffer[2];
-    ip.addr[3] = native_buffer[3];
-    
-    
-    
     if (conn != NULL) {
         __android_log_print(ANDROID_LOG_DEBUG, "my_native", "Resolving success for resolver_id %i, conn %p (conn id %i), relay %p", resolve_id, conn, conn->connection_id, relay);
-        wish_open_connection(core, conn, &ip, conn->remote_port, conn->via_relay);
+        open_connection_candidates(env, core, conn, java_ip_bytes);
     }
     else if (relay != NULL) {
         __android_log_print(ANDROID_LOG_DEBUG, "my_native", "Resolving success for resolver_id %i, conn %p, relay %p", resolve_id, conn, relay);
-        port_relay_client_open(core, relay, &ip);
+        relay_client_open_candidates(env, core, relay, java_ip_bytes);
     }
-    
-    free(native_buffer);
 }
 
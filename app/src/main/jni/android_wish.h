@@ -53,10 +53,18 @@ JNIEXPORT jboolean JNICALL Java_fi_ct_wish_os_WishOsJni_isRingbufferEmpty
 /*
  * Class:     fi_ct_wish_os_WishOsJni
  * Method:    feedData
- * Signature: (I[BI)V
+ * Signature: (I[BII)V
  */
 JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedData
-  (JNIEnv *, jobject, jint, jbyteArray, jint);
+  (JNIEnv *, jobject, jint, jbyteArray, jint, jint);
+
+/*
+ * Class:     fi_ct_wish_os_WishOsJni
+ * Method:    feedDataDirect
+ * Signature: (ILjava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedDataDirect
+  (JNIEnv *, jobject, jint, jobject, jint);
 
 /*
  * Class:     fi_ct_wish_os_WishOsJni
@@ -85,10 +93,10 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_processConnections
 /*
  * Class:     fi_ct_wish_os_WishOsJni
  * Method:    feedLocalDiscoveryData
- * Signature: ([BI[B)V
+ * Signature: ([BI[BI)V
  */
 JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_feedLocalDiscoveryData
-  (JNIEnv *, jobject, jbyteArray, jint, jbyteArray);
+  (JNIEnv *, jobject, jbyteArray, jint, jbyteArray, jint);
 
 /*
  * Class:     fi_ct_wish_os_WishOsJni
@@ -109,10 +117,26 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlSignalEvent
 /*
  * Class:     fi_ct_wish_os_WishOsJni
  * Method:    relayControlFeed
- * Signature: (I[B)V
+ * Signature: (I[BII)V
  */
 JNIEXPORT void JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlFeed
-  (JNIEnv *, jobject, jint, jbyteArray);
+  (JNIEnv *, jobject, jint, jbyteArray, jint, jint);
+
+/*
+ * Class:     fi_ct_wish_os_WishOsJni
+ * Method:    relayControlGetRxBufferFree
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlGetRxBufferFree
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     fi_ct_wish_os_WishOsJni
+ * Method:    relayControlIsRxBufferEmpty
+ * Signature: (I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_fi_ct_wish_os_WishOsJni_relayControlIsRxBufferEmpty
+  (JNIEnv *, jobject, jint);
 
 /*
  * Class:     fi_ct_wish_os_WishOsJni
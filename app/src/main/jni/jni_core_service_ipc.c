@@ -108,6 +108,72 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_bridge_WishCoreJni_jni_1receive_1app_1to_
     free(data);
 }
 
+/*
+ * Class:     fi_ct_wish_bridge_WishCoreJni
+ * Method:    jni_receive_app_to_core_batch
+ * Signature: ([B[B[II)V
+ *
+ * Hand a batch of app-to-core messages to the core: the WSIDs and the messages are each given one after another in one array, so that
+ * the whole batch is copied out of Java with one allocation, and the core lock is entered once for the batch.
+ */
+JNIEXPORT void JNICALL Java_fi_ct_wish_bridge_WishCoreJni_jni_1receive_1app_1to_1core_1batch(JNIEnv *env, jobject jthis, jbyteArray java_wsids, jbyteArray java_data, jintArray java_lengths, jint count) {
+    if (core == NULL) {
+        android_wish_printf("================= FAIL: in receive app to core batch, core pointer is NULL.");
+        return;
+    }
+
+    if (count <= 0 || (*env)->GetArrayLength(env, java_lengths) < count) {
+        android_wish_printf("Failing sanity check: bad app to core batch count %i", count);
+        return;
+    }
+    if ((size_t) (*env)->GetArrayLength(env, java_wsids) < (size_t) count * WISH_WSID_LEN) {
+        android_wish_printf("Failing sanity check: wsids of app to core batch are too short");
+        return;
+    }
+
+    jint *lengths = (*env)->GetIntArrayElements(env, java_lengths, NULL);
+    if (lengths == NULL) {
+        android_wish_printf("Out of memory!");
+        return;
+    }
+    size_t data_len = 0;
+    for (int i = 0; i < count; i++) {
+        if (lengths[i] < 0) {
+            android_wish_printf("Failing sanity check: negative length in app to core batch");
+            (*env)->ReleaseIntArrayElements(env, java_lengths, lengths, JNI_ABORT);
+            return;
+        }
+        data_len += lengths[i];
+    }
+    if ((size_t) (*env)->GetArrayLength(env, java_data) < data_len) {
+        android_wish_printf("Failing sanity check: data of app to core batch is too short");
+        (*env)->ReleaseIntArrayElements(env, java_lengths, lengths, JNI_ABORT);
+        return;
+    }
+
+    /* The WSIDs first, then the messages */
+    size_t wsids_len = (size_t) count * WISH_WSID_LEN;
+    uint8_t *batch = (uint8_t *) malloc(wsids_len + data_len);
+    if (batch == NULL) {
+        android_wish_printf("Out of memory!");
+        (*env)->ReleaseIntArrayElements(env, java_lengths, lengths, JNI_ABORT);
+        return;
+    }
+    (*env)->GetByteArrayRegion(env, java_wsids, 0, wsids_len, (jbyte *) batch);
+    (*env)->GetByteArrayRegion(env, java_data, 0, data_len, (jbyte *) (batch + wsids_len));
+
+    enter_WishOsJni_monitor();
+    uint8_t *data = batch + wsids_len;
+    for (int i = 0; i < count; i++) {
+        wish_core_handle_app_to_core(core, batch + i * WISH_WSID_LEN, data, lengths[i]);
+        data += lengths[i];
+    }
+    exit_WishOsJni_monitor();
+
+    (*env)->ReleaseIntArrayElements(env, java_lengths, lengths, JNI_ABORT);
+    free(batch);
+}
+
 void send_core_to_app(wish_core_t* wish_core, const uint8_t *wsid, const uint8_t* data, size_t len) {
     //android_wish_printf("in send_core_to_app");
     /* This will be set to true, if the thread of execution was not a JavaVM thread */
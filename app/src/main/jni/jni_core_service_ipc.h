@@ -34,6 +34,14 @@ JNIEXPORT void JNICALL Java_fi_ct_wish_bridge_WishCoreJni_register_1core_1bridge
 JNIEXPORT void JNICALL Java_fi_ct_wish_bridge_WishCoreJni_jni_1receive_1app_1to_1core
   (JNIEnv *, jobject, jbyteArray, jbyteArray);
 
+/*
+ * Class:     fi_ct_wish_bridge_WishCoreJni
+ * Method:    jni_receive_app_to_core_batch
+ * Signature: ([B[B[II)V
+ */
+JNIEXPORT void JNICALL Java_fi_ct_wish_bridge_WishCoreJni_jni_1receive_1app_1to_1core_1batch
+  (JNIEnv *, jobject, jbyteArray, jbyteArray, jintArray, jint);
+
 /*
  * Class:     fi_ct_wish_bridge_WishCoreJni
  * Method:    remove_service
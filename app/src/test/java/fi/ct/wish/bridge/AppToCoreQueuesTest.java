@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.bridge;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AppToCoreQueuesTest {
+
+    private AppToCoreQueues queues;
+
+    @Before
+    public void setUp() {
+        queues = new AppToCoreQueues();
+    }
+
+    private static byte[] wsid(int app) {
+        byte[] wsid = new byte[WishCoreBridge.WSID_LEN];
+        wsid[0] = (byte) app;
+        return wsid;
+    }
+
+    private static AppToCoreMessage message(int app, int seq, int length) {
+        byte[] data = new byte[length];
+        data[0] = (byte) seq;
+        return new AppToCoreMessage(wsid(app), data);
+    }
+
+    private static int appOf(AppToCoreMessage msg) {
+        return msg.getWsid()[0];
+    }
+
+    @Test
+    public void messagesOfOneAppKeepTheirOrder() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queues.offer(message(1, i, 100)));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, queues.poll().getData()[0]);
+        }
+        assertNull(queues.poll());
+        assertTrue(queues.isEmpty());
+    }
+
+    @Test
+    public void appsTakeTurnsByBytes() throws Exception {
+        queues.setQuantum(1000);
+        for (int i = 0; i < 20; i++) {
+            queues.offer(message(1, i, 500));
+        }
+        for (int i = 0; i < 20; i++) {
+            queues.offer(message(2, i, 250));
+        }
+
+        /* Each turn gets 1000 bytes: two messages of app 1, four of app 2 */
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < 12; i++) {
+            order.add(appOf(queues.poll()));
+        }
+        int[] expected = { 1, 1, 2, 2, 2, 2, 1, 1, 2, 2, 2, 2 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("message " + i, expected[i], (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void largeMessageGetsThroughOverSeveralTurns() throws Exception {
+        queues.setQuantum(1000);
+        queues.offer(message(1, 0, 2500));
+        queues.offer(message(2, 0, 100));
+        queues.offer(message(2, 1, 100));
+
+        /* App 1 needs three turns of deficit, app 2 goes first meanwhile */
+        assertEquals(2, appOf(queues.poll()));
+        assertEquals(2, appOf(queues.poll()));
+        assertEquals(1, appOf(queues.poll()));
+        assertNull(queues.poll());
+    }
+
+    @Test
+    public void peekReturnsWhatPollReturns() throws Exception {
+        queues.setQuantum(100);
+        queues.offer(message(1, 0, 300));
+        queues.offer(message(2, 0, 50));
+        AppToCoreMessage next = queues.peek();
+        assertSame(next, queues.poll());
+    }
+
+    @Test
+    public void pollIfFitsLeavesMessageWhichDoesNotFit() throws Exception {
+        queues.offer(message(1, 0, 500));
+        assertNull(queues.pollIfFits(499, false));
+        assertEquals(1, queues.size());
+        /* The first message of a batch is taken whatever its length */
+        assertNotNull(queues.pollIfFits(0, true));
+        assertTrue(queues.isEmpty());
+    }
+
+    @Test
+    public void dropNewestIsTheDefault() throws Exception {
+        assertEquals(AppToCoreQueues.OVERFLOW_DROP_NEWEST, queues.getOverflowPolicy());
+        queues.setMaxMessages(3);
+        for (int i = 0; i < 5; i++) {
+            queues.offer(message(1, i, 10));
+        }
+        assertEquals(3, queues.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, queues.poll().getData()[0]);
+        }
+        AppToCoreQueues.AppQueueStats stats = queues.getAppStats().get(0);
+        assertEquals(2, stats.getDroppedCount());
+        assertEquals(3, stats.getEnqueuedCount());
+        assertEquals(3, stats.getDeliveredCount());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewest() throws Exception {
+        queues.setOverflowPolicy(AppToCoreQueues.OVERFLOW_DROP_OLDEST);
+        queues.setMaxMessages(3);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queues.offer(message(1, i, 10)));
+        }
+        for (int i = 2; i < 5; i++) {
+            assertEquals(i, queues.poll().getData()[0]);
+        }
+        assertEquals(2, queues.getAppStats().get(0).getDroppedCount());
+    }
+
+    @Test
+    public void byteLimitAppliesPerApp() throws Exception {
+        queues.setMaxBytes(1000);
+        assertTrue(queues.offer(message(1, 0, 600)));
+        assertFalse(queues.offer(message(1, 1, 600)));
+        /* Another app has a queue of its own */
+        assertTrue(queues.offer(message(2, 0, 600)));
+        /* A message larger than the limit gets through an empty queue */
+        assertTrue(queues.offer(message(3, 0, 5000)));
+    }
+
+    @Test
+    public void blockTimesOutAndDrops() throws Exception {
+        queues.setOverflowPolicy(AppToCoreQueues.OVERFLOW_BLOCK);
+        queues.setBlockTimeoutMillis(100);
+        queues.setMaxMessages(1);
+        queues.offer(message(1, 0, 10));
+
+        long start = System.nanoTime();
+        assertFalse(queues.offer(message(1, 1, 10)));
+        assertTrue((System.nanoTime() - start) / 1000000L >= 90);
+        AppToCoreQueues.AppQueueStats stats = queues.getAppStats().get(0);
+        assertEquals(1, stats.getBlockedCount());
+        assertEquals(1, stats.getDroppedCount());
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        queues.setOverflowPolicy(AppToCoreQueues.OVERFLOW_BLOCK);
+        queues.setBlockTimeoutMillis(5000);
+        queues.setMaxMessages(1);
+        queues.offer(message(1, 0, 10));
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                pause(50);
+                queues.poll();
+            }
+        };
+        consumer.start();
+        assertTrue(queues.offer(message(1, 1, 10)));
+        consumer.join();
+        assertEquals(1, queues.poll().getData()[0]);
+    }
+
+    @Test
+    public void removeReleasesBlockedSender() throws Exception {
+        queues.setOverflowPolicy(AppToCoreQueues.OVERFLOW_BLOCK);
+        queues.setBlockTimeoutMillis(5000);
+        queues.setMaxMessages(1);
+        queues.offer(message(1, 0, 10));
+
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                pause(50);
+                queues.remove(wsid(1));
+            }
+        };
+        remover.start();
+        long start = System.nanoTime();
+        assertFalse(queues.offer(message(1, 1, 10)));
+        assertTrue((System.nanoTime() - start) / 1000000L < 4000);
+        remover.join();
+        assertTrue(queues.isEmpty());
+        assertNull(queues.poll());
+    }
+
+    @Test
+    public void removeLeavesOtherApps() throws Exception {
+        queues.offer(message(1, 0, 10));
+        queues.offer(message(2, 0, 10));
+        queues.offer(message(1, 1, 10));
+        queues.remove(wsid(1));
+        assertEquals(1, queues.size());
+        assertEquals(2, appOf(queues.poll()));
+        assertNull(queues.poll());
+    }
+
+    @Test
+    public void rejectsUnknownPolicy() {
+        try {
+            queues.setOverflowPolicy(42);
+            fail("Unknown policy accepted");
+        } catch (IllegalArgumentException e) {
+            /* Expected */
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+    }
+}
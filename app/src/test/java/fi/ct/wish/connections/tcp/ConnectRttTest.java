@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class ConnectRttTest {
+
+    private static final int DEFAULT_TIMEOUT = 5000;
+    private static final long MILLIS = 1000000L;
+
+    private ConnectRtt rtt;
+
+    @Before
+    public void setUp() {
+        rtt = new ConnectRtt();
+    }
+
+    private static InetSocketAddress remote(int host) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (host >> 8), (byte) host }), 37010);
+    }
+
+    @Test
+    public void unknownDestinationGetsDefault() throws Exception {
+        assertEquals(DEFAULT_TIMEOUT, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+        assertNull(rtt.getEstimate(remote(1)));
+    }
+
+    @Test
+    public void firstSampleSetsEstimate() throws Exception {
+        rtt.recordConnected(remote(1), 2000 * MILLIS);
+        ConnectRtt.Estimate e = rtt.getEstimate(remote(1));
+        assertEquals(2000, e.getSrttMillis(), 0.001);
+        assertEquals(1000, e.getRttvarMillis(), 0.001);
+        assertEquals(1, e.getSampleCount());
+        /* SRTT + 4 * RTTVAR */
+        assertEquals(6000, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void samplesAreSmoothed() throws Exception {
+        rtt.recordConnected(remote(1), 2000 * MILLIS);
+        rtt.recordConnected(remote(1), 1000 * MILLIS);
+        ConnectRtt.Estimate e = rtt.getEstimate(remote(1));
+        /* RTTVAR = 3/4 * 1000 + 1/4 * |2000 - 1000|, SRTT = 7/8 * 2000 + 1/8 * 1000 */
+        assertEquals(1000, e.getRttvarMillis(), 0.001);
+        assertEquals(1875, e.getSrttMillis(), 0.001);
+        assertEquals(5875, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void fastDestinationGetsMinimumTimeout() throws Exception {
+        rtt.recordConnected(remote(1), 5 * MILLIS);
+        assertEquals(ConnectRtt.MIN_TIMEOUT, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void timeoutsDoubleUpToMaximum() throws Exception {
+        rtt.recordConnected(remote(1), 2000 * MILLIS);
+        rtt.recordTimeout(remote(1));
+        assertEquals(12000, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+        rtt.recordTimeout(remote(1));
+        assertEquals(24000, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+        for (int i = 0; i < 10; i++) {
+            rtt.recordTimeout(remote(1));
+        }
+        assertEquals(ConnectRtt.MAX_TIMEOUT, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+        assertEquals(12, rtt.getEstimate(remote(1)).getTimeoutCount());
+    }
+
+    @Test
+    public void timeoutWithoutSamplesDoublesDefault() throws Exception {
+        rtt.recordTimeout(remote(1));
+        assertEquals(2 * DEFAULT_TIMEOUT, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+        assertEquals(-1, rtt.getEstimate(remote(1)).getSrttMillis(), 0.001);
+    }
+
+    @Test
+    public void connectResetsBackoff() throws Exception {
+        rtt.recordConnected(remote(1), 2000 * MILLIS);
+        rtt.recordTimeout(remote(1));
+        rtt.recordTimeout(remote(1));
+        rtt.recordConnected(remote(1), 2000 * MILLIS);
+        assertEquals(0, rtt.getEstimate(remote(1)).getBackoff());
+        assertTrue(rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT) < 12000);
+    }
+
+    @Test
+    public void destinationsAreKeptApart() throws Exception {
+        rtt.recordConnected(remote(1), 2000 * MILLIS);
+        rtt.recordTimeout(remote(2));
+        assertEquals(6000, rtt.getTimeoutMillis(remote(1), DEFAULT_TIMEOUT));
+        assertEquals(2 * DEFAULT_TIMEOUT, rtt.getTimeoutMillis(remote(2), DEFAULT_TIMEOUT));
+        assertEquals(1, rtt.getSampleCount());
+        assertEquals(1, rtt.getTimeoutCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedDestinationIsForgotten() throws Exception {
+        for (int i = 0; i < ConnectRtt.MAX_DESTINATIONS; i++) {
+            rtt.recordConnected(remote(i), 100 * MILLIS);
+        }
+        /* Using the first one makes the second the least recently used */
+        rtt.getTimeoutMillis(remote(0), DEFAULT_TIMEOUT);
+        rtt.recordConnected(remote(ConnectRtt.MAX_DESTINATIONS), 100 * MILLIS);
+        assertEquals(ConnectRtt.MAX_DESTINATIONS, rtt.getEstimates().size());
+        assertNotNull(rtt.getEstimate(remote(0)));
+        assertNull(rtt.getEstimate(remote(1)));
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+
+import static org.junit.Assert.*;
+
+public class ConnectionsTest {
+
+    private Connections connections;
+
+    @Before
+    public void setUp() {
+        connections = new Connections();
+    }
+
+    @Test
+    public void insertAndLookUp() {
+        FakeConnection a = new FakeConnection(1, false);
+        FakeConnection b = new FakeConnection(2, true);
+        connections.setConnection(a, 1);
+        connections.setConnection(b, 2);
+        assertSame(a, connections.getConnection(1));
+        assertSame(b, connections.getConnection(2));
+        assertNull(connections.getConnection(3));
+        assertEquals(2, connections.getLiveCount());
+        assertEquals(1, connections.getInboundCount());
+        assertEquals(2, connections.getTotalCount());
+    }
+
+    @Test
+    public void removeDropsTheConnection() {
+        connections.setConnection(new FakeConnection(1, true), 1);
+        connections.setConnection(new FakeConnection(2, false), 2);
+        connections.removeConnection(1);
+        assertNull(connections.getConnection(1));
+        assertNotNull(connections.getConnection(2));
+        assertEquals(1, connections.getLiveCount());
+        assertEquals(0, connections.getInboundCount());
+        /* Removing again changes nothing */
+        connections.removeConnection(1);
+        assertEquals(1, connections.getLiveCount());
+    }
+
+    @Test
+    public void removeOnlyTheGivenConnection() {
+        FakeConnection old = new FakeConnection(1, false);
+        FakeConnection current = new FakeConnection(1, false);
+        connections.setConnection(old, 1);
+        connections.setConnection(current, 1);
+        assertEquals(1, connections.getLiveCount());
+        assertEquals(2, connections.getTotalCount());
+
+        /* A late removal by the replaced connection must not drop the new one */
+        assertFalse(connections.removeConnection(1, old));
+        assertSame(current, connections.getConnection(1));
+        assertTrue(connections.removeConnection(1, current));
+        assertNull(connections.getConnection(1));
+        assertEquals(0, connections.getLiveCount());
+    }
+
+    @Test
+    public void replaceKeepsInboundCount() {
+        connections.setConnection(new FakeConnection(1, true), 1);
+        assertEquals(1, connections.getInboundCount());
+        connections.setConnection(new FakeConnection(1, false), 1);
+        assertEquals(0, connections.getInboundCount());
+        connections.setConnection(new FakeConnection(1, true), 1);
+        assertEquals(1, connections.getInboundCount());
+        assertEquals(1, connections.getLiveCount());
+    }
+
+    @Test
+    public void reinsertOverRemovedEntries() {
+        /* Every round leaves removed entries behind, which lookups must probe past and inserts must reuse or clean up */
+        for (int round = 0; round < 50; round++) {
+            for (int id = 0; id < 20; id++) {
+                connections.setConnection(new FakeConnection(id, false), id);
+            }
+            for (int id = 0; id < 20; id += 2) {
+                connections.removeConnection(id);
+            }
+            for (int id = 0; id < 20; id++) {
+                TcpConnection c = connections.getConnection(id);
+                if (id % 2 == 0) {
+                    assertNull("id " + id, c);
+                } else {
+                    assertEquals("id " + id, id, c.getId());
+                }
+            }
+            assertEquals(10, connections.getLiveCount());
+            for (int id = 1; id < 20; id += 2) {
+                connections.removeConnection(id);
+            }
+            assertEquals(0, connections.getLiveCount());
+        }
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        int count = 1000;
+        for (int id = 0; id < count; id++) {
+            connections.setConnection(new FakeConnection(id * 7919, id % 3 == 0), id * 7919);
+        }
+        assertEquals(count, connections.getLiveCount());
+        assertEquals((count + 2) / 3, connections.getInboundCount());
+        for (int id = 0; id < count; id++) {
+            assertEquals(id * 7919, connections.getConnection(id * 7919).getId());
+        }
+        assertNull(connections.getConnection(1));
+        assertEquals(count, connections.getCommunicationsThreads().size());
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        connections.setConnection(new FakeConnection(1, false), 1);
+        connections.setConnection(new FakeConnection(2, false), 2);
+        Collection<TcpConnection> snapshot = connections.getCommunicationsThreads();
+        connections.removeConnection(1);
+        connections.setConnection(new FakeConnection(3, false), 3);
+        assertEquals(2, snapshot.size());
+        assertEquals(2, connections.getCommunicationsThreads().size());
+    }
+
+    @Test
+    public void negativeIds() {
+        connections.setConnection(new FakeConnection(-1, false), -1);
+        connections.setConnection(new FakeConnection(Integer.MIN_VALUE, false), Integer.MIN_VALUE);
+        assertEquals(-1, connections.getConnection(-1).getId());
+        assertEquals(Integer.MIN_VALUE, connections.getConnection(Integer.MIN_VALUE).getId());
+    }
+}
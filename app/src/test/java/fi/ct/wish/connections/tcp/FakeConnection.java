@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+/** A TcpConnection without a transport, for the tests of the classes which only keep track of connections */
+class FakeConnection implements TcpConnection {
+    /** Counters whose times of the latest read and write are set by the test */
+    static final class FakeStats extends TcpStats {
+        volatile long lastReadNanos = System.nanoTime();
+        volatile long lastWriteNanos = lastReadNanos;
+
+        @Override
+        long getLastReadNanos() {
+            return lastReadNanos;
+        }
+
+        @Override
+        long getLastWriteNanos() {
+            return lastWriteNanos;
+        }
+    }
+
+    private final int id;
+    private final boolean server;
+    final FakeStats stats = new FakeStats();
+    volatile int stops = 0;
+
+    FakeConnection(int id, boolean server) {
+        this.id = id;
+        this.server = server;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public boolean isServer() {
+        return server;
+    }
+
+    @Override
+    public void sendMessage(byte[] data) {
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        return 0;
+    }
+
+    @Override
+    public void stop() {
+        stops++;
+    }
+
+    @Override
+    public void waitForStop() {
+    }
+
+    @Override
+    public boolean waitForStop(long timeoutMillis) {
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        stops++;
+    }
+
+    @Override
+    public boolean checkSlowConsumer() {
+        return false;
+    }
+
+    @Override
+    public void rxBufferChanged() {
+    }
+
+    @Override
+    public TcpStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public SocketProfile getSocketSettings() {
+        return null;
+    }
+}
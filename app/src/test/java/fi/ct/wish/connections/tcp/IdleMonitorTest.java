@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IdleMonitorTest {
+
+    private static final long MILLIS = 1000000L;
+
+    /** Records the callbacks, as "idle <id>" and "dead <id>" */
+    private static final class RecordingListener implements IdleListener {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onIdle(int id, long idleMillis) {
+            events.add("idle " + id);
+        }
+
+        @Override
+        public void onDeadPeer(int id, long silentMillis) {
+            events.add("dead " + id);
+        }
+    }
+
+    /** A clock which only moves when the test turns the wheel */
+    private static final class FakeClock implements IdleMonitor.Clock {
+        long now = 1000 * MILLIS;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private TcpOptions options;
+    private FakeClock clock;
+    private IdleMonitor monitor;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        options = new TcpOptions();
+        clock = new FakeClock();
+        monitor = new IdleMonitor(options, clock, false);
+        listener = new RecordingListener();
+        monitor.setListener(listener);
+    }
+
+    /** Returns a connection which had traffic just now */
+    private FakeConnection connection(int id) {
+        FakeConnection connection = new FakeConnection(id, false);
+        traffic(connection);
+        return connection;
+    }
+
+    private void traffic(FakeConnection connection) {
+        connection.stats.lastReadNanos = clock.now;
+        connection.stats.lastWriteNanos = clock.now;
+    }
+
+    /** Move the clock on and turn the wheel, one tick at a time */
+    private void advanceMillis(long millis) {
+        for (long t = 0; t < millis; t += IdleMonitor.TICK) {
+            clock.now += IdleMonitor.TICK * MILLIS;
+            monitor.advance();
+        }
+    }
+
+    @Test
+    public void idleConnectionIsReportedOnce() {
+        options.setIdleTimeoutMillis(1000);
+        FakeConnection connection = connection(7);
+        monitor.add(connection);
+
+        advanceMillis(500);
+        assertTrue(listener.events.isEmpty());
+        advanceMillis(500);
+        assertEquals(1, listener.events.size());
+        assertEquals("idle 7", listener.events.get(0));
+        assertEquals(1, connection.getStats().getIdleCount());
+        assertEquals(0, connection.stops);
+
+        /* Not reported again until there has been traffic */
+        advanceMillis(20000);
+        assertEquals(1, listener.events.size());
+        traffic(connection);
+        advanceMillis(11000);
+        assertEquals(2, listener.events.size());
+    }
+
+    @Test
+    public void trafficPostponesIdleness() {
+        options.setIdleTimeoutMillis(1000);
+        FakeConnection connection = connection(1);
+        monitor.add(connection);
+
+        for (int i = 0; i < 10; i++) {
+            advanceMillis(500);
+            traffic(connection);
+        }
+        assertTrue(listener.events.isEmpty());
+
+        advanceMillis(1000);
+        assertEquals(1, listener.events.size());
+    }
+
+    @Test
+    public void writesAloneKeepConnectionFromIdleness() {
+        options.setIdleTimeoutMillis(1000);
+        FakeConnection connection = connection(1);
+        monitor.add(connection);
+
+        for (int i = 0; i < 10; i++) {
+            advanceMillis(500);
+            connection.stats.lastWriteNanos = clock.now;
+        }
+        assertTrue(listener.events.isEmpty());
+    }
+
+    @Test
+    public void deadPeerIsReportedAndStopped() {
+        options.setDeadPeerTimeoutMillis(1000);
+        FakeConnection dead = connection(1);
+        FakeConnection alive = connection(2);
+        monitor.add(dead);
+        monitor.add(alive);
+
+        for (int i = 0; i < 6; i++) {
+            advanceMillis(500);
+            alive.stats.lastReadNanos = clock.now;
+            /* Writing to a peer does not show that it is alive */
+            dead.stats.lastWriteNanos = clock.now;
+        }
+        assertEquals(1, listener.events.size());
+        assertEquals("dead 1", listener.events.get(0));
+        assertEquals(1, dead.stops);
+        assertEquals(1, dead.getStats().getDeadPeerCount());
+        assertEquals(0, alive.stops);
+
+        /* A closed connection is no longer checked */
+        advanceMillis(5000);
+        assertEquals(1, dead.stops);
+    }
+
+    @Test
+    public void timeoutBeyondOneTurnOfTheWheel() {
+        /* 128 slots of 500 ms make one turn 64 s; the entry must be skipped on the turns before it is due */
+        options.setIdleTimeoutMillis(100 * 1000);
+        options.setWriteStallTimeoutMillis(0);
+        FakeConnection connection = connection(1);
+        monitor.add(connection);
+
+        advanceMillis(99 * 1000);
+        assertTrue(listener.events.isEmpty());
+        advanceMillis(1000);
+        assertEquals(1, listener.events.size());
+    }
+
+    @Test
+    public void removedConnectionIsNotReported() {
+        options.setIdleTimeoutMillis(1000);
+        options.setDeadPeerTimeoutMillis(1000);
+        FakeConnection connection = connection(1);
+        IdleMonitor.Watch watch = monitor.add(connection);
+        monitor.remove(watch);
+
+        advanceMillis(5000);
+        assertTrue(listener.events.isEmpty());
+        assertEquals(0, connection.stops);
+    }
+
+    @Test
+    public void stoppedMonitorReportsNothing() {
+        options.setIdleTimeoutMillis(1000);
+        monitor.add(connection(1));
+        monitor.stop();
+        monitor.add(connection(2));
+
+        advanceMillis(5000);
+        assertTrue(listener.events.isEmpty());
+    }
+}
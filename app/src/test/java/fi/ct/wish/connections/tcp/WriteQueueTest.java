@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2020, ControlThings Oy Ab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * @license Apache-2.0
+ */
+package fi.ct.wish.connections.tcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.*;
+
+public class WriteQueueTest {
+
+    private TcpOptions options;
+    private TcpStats stats;
+    private WriteQueue queue;
+
+    @Before
+    public void setUp() {
+        options = new TcpOptions();
+        options.setWriteQueueLimit(1000);
+        stats = new TcpStats();
+        queue = new WriteQueue(options, stats);
+    }
+
+    private static ByteBuffer message(int length) {
+        return ByteBuffer.wrap(new byte[length]);
+    }
+
+    /** A channel which takes up to limit bytes per write, and counts the writes */
+    private static final class LimitedChannel implements GatheringByteChannel {
+        int limit;
+        int writes = 0;
+        long written = 0;
+
+        LimitedChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long n = 0;
+            for (int i = offset; i < offset + length && n < limit; i++) {
+                int take = (int) Math.min(srcs[i].remaining(), limit - n);
+                srcs[i].position(srcs[i].position() + take);
+                n += take;
+            }
+            written += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void acceptsWithinBudget() {
+        assertTrue(queue.offer(message(400)));
+        assertTrue(queue.offer(message(600)));
+        assertEquals(1000, queue.getQueuedBytes());
+        assertEquals(0, stats.getWriteQueueOverflowCount());
+    }
+
+    @Test
+    public void refusesOverBudget() {
+        assertTrue(queue.offer(message(600)));
+        assertFalse(queue.offer(message(401)));
+        assertEquals(600, queue.getQueuedBytes());
+        assertEquals(1, stats.getWriteQueueOverflowCount());
+    }
+
+    @Test
+    public void emptyQueueTakesMessageLargerThanBudget() {
+        assertTrue(queue.offer(message(5000)));
+        assertEquals(5000, queue.getQueuedBytes());
+        assertFalse(queue.offer(message(1)));
+    }
+
+    @Test
+    public void removeFreesBudget() {
+        queue.offer(message(600));
+        queue.offer(message(300));
+        assertFalse(queue.offer(message(200)));
+        queue.remove(1);
+        assertEquals(300, queue.getQueuedBytes());
+        assertTrue(queue.offer(message(200)));
+    }
+
+    @Test
+    public void closedQueueRefusesData() {
+        queue.offer(message(100));
+        queue.close(false);
+        assertFalse(queue.offer(message(1)));
+        /* The data already queued is still handed out */
+        assertEquals(100, queue.getQueuedBytes());
+        assertFalse(queue.isEmpty());
+    }
+
+    @Test
+    public void closeCanDiscard() {
+        queue.offer(message(100));
+        queue.close(true);
+        assertEquals(0, queue.getQueuedBytes());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void batchUpToCoalesceSize() throws Exception {
+        options.setCoalesceMaxBytes(1000);
+        options.setWriteQueueLimit(100000);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(message(300));
+        }
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(3, queue.awaitBatch(batch));
+        /* The messages stay queued until written */
+        assertEquals(1500, queue.getQueuedBytes());
+        queue.remove(3);
+        assertEquals(2, queue.awaitBatch(batch));
+    }
+
+    @Test
+    public void batchHasAtLeastOneMessage() throws Exception {
+        options.setCoalesceMaxBytes(1000);
+        options.setWriteQueueLimit(100000);
+        queue.offer(message(2000));
+        queue.offer(message(10));
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(1, queue.awaitBatch(batch));
+        assertEquals(2000, batch[0].remaining());
+    }
+
+    @Test
+    public void batchHasAtMostMaxBatchMessages() throws Exception {
+        for (int i = 0; i < WriteQueue.MAX_BATCH + 10; i++) {
+            queue.offer(message(1));
+        }
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(WriteQueue.MAX_BATCH, queue.awaitBatch(batch));
+    }
+
+    @Test
+    public void windowDelaysTheBatch() throws Exception {
+        options.setCoalesceWindowMillis(100);
+        queue.offer(message(10));
+        long start = System.nanoTime();
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(1, queue.awaitBatch(batch));
+        assertTrue((System.nanoTime() - start) / 1000000L >= 90);
+    }
+
+    @Test
+    public void enoughDataEndsTheWindow() throws Exception {
+        options.setCoalesceWindowMillis(5000);
+        options.setCoalesceMaxBytes(500);
+        queue.offer(message(300));
+        assertTrue(queue.getFlushTime() - System.nanoTime() > 1000000000L);
+        queue.offer(message(300));
+        assertTrue(queue.getFlushTime() <= System.nanoTime());
+        long start = System.nanoTime();
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(1, queue.awaitBatch(batch));
+        assertTrue((System.nanoTime() - start) / 1000000L < 1000);
+    }
+
+    @Test
+    public void closeEndsTheWindow() throws Exception {
+        options.setCoalesceWindowMillis(5000);
+        queue.offer(message(10));
+        queue.close(false);
+        long start = System.nanoTime();
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(1, queue.awaitBatch(batch));
+        assertTrue((System.nanoTime() - start) / 1000000L < 1000);
+    }
+
+    @Test
+    public void awaitBatchWaitsForData() throws Exception {
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                pause(50);
+                queue.offer(message(10));
+            }
+        };
+        producer.start();
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        assertEquals(1, queue.awaitBatch(batch));
+        assertEquals(10, batch[0].remaining());
+        producer.join();
+    }
+
+    @Test
+    public void awaitBatchReturnsZeroWhenClosedAndDrained() throws Exception {
+        ByteBuffer[] batch = new ByteBuffer[WriteQueue.MAX_BATCH];
+        queue.offer(message(100));
+        queue.close(false);
+        assertEquals(1, queue.awaitBatch(batch));
+        queue.remove(1);
+        assertEquals(0, queue.awaitBatch(batch));
+    }
+
+    @Test
+    public void writeToGathersMessages() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            queue.offer(message(50));
+        }
+        LimitedChannel channel = new LimitedChannel(100000);
+        assertTrue(queue.writeTo(channel));
+        assertEquals(1, channel.writes);
+        assertEquals(500, channel.written);
+        assertEquals(0, queue.getQueuedBytes());
+        assertEquals(1, stats.getWriteCount());
+        assertEquals(10, stats.getMessagesWritten());
+    }
+
+    @Test
+    public void writeToKeepsWhatTheChannelDidNotTake() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            queue.offer(message(100));
+        }
+        LimitedChannel channel = new LimitedChannel(150);
+        assertFalse(queue.writeTo(channel));
+        assertEquals(250, queue.getQueuedBytes());
+        channel.limit = 0;
+        assertFalse(queue.writeTo(channel));
+        assertEquals(250, queue.getQueuedBytes());
+        channel.limit = 1000;
+        assertTrue(queue.writeTo(channel));
+        assertEquals(0, queue.getQueuedBytes());
+        assertEquals(400, channel.written);
+        assertTrue(queue.isEmpty());
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+    }
+}